@@ -0,0 +1,113 @@
+/*
+ARMAZENAMENTO
+
+Esta interface abstrai o meio em que os bytes de um arquivo
+de dados são guardados. Todas as operações são posicionais,
+isto é, recebem o endereço em que a leitura ou a escrita deve
+ocorrer, sem depender de um ponteiro de arquivo compartilhado.
+
+Há duas implementações:
+- ArmazenamentoArquivo: leituras e escritas por meio de um FileChannel
+- ArmazenamentoMapeado: o arquivo é mapeado em memória (FileChannel.map)
+
+O formato dos dados em disco é o mesmo nas duas implementações.
+
+Os arquivos abertos por abre() ficam sob o controle do log de
+transações (ArmazenamentoRegistrado / LogTransacoes).
+*/
+
+package bib;
+
+import java.io.IOException;
+
+public interface Armazenamento {
+
+  // Tipos de armazenamento disponíveis para um Arquivo
+  public enum Tipo {
+    ARQUIVO, // RandomAccessFile / FileChannel
+    MAPEADO // arquivo mapeado em memória
+  }
+
+  // Abre (ou cria) o arquivo indicado com o tipo de armazenamento escolhido.
+  // O arquivo fica sob o controle do log de transações (LogTransacoes).
+  public static Armazenamento abre(String nomeArquivo, Tipo tipo) throws IOException {
+    return LogTransacoes.instancia().abre(nomeArquivo, tipo);
+  }
+
+  // Abre o arquivo sem passar pelo log: as escritas vão direto para o arquivo
+  public static Armazenamento abreDireto(String nomeArquivo, Tipo tipo) throws IOException {
+    if (tipo == Tipo.MAPEADO)
+      return new ArmazenamentoMapeado(nomeArquivo);
+    return new ArmazenamentoArquivo(nomeArquivo);
+  }
+
+  public long tamanho() throws IOException; // tamanho lógico do arquivo, em bytes
+
+  public void defineTamanho(long tamanho) throws IOException; // trunca ou estende o arquivo
+
+  public void le(long posicao, byte[] ba, int inicio, int quantidade) throws IOException;
+
+  public void escreve(long posicao, byte[] ba, int inicio, int quantidade) throws IOException;
+
+  public void sincroniza() throws IOException; // força a gravação em disco (fsync)
+
+  public void close() throws IOException;
+
+  // Métodos auxiliares para os tipos primitivos usados pelas estruturas
+
+  public default void le(long posicao, byte[] ba) throws IOException {
+    le(posicao, ba, 0, ba.length);
+  }
+
+  public default void escreve(long posicao, byte[] ba) throws IOException {
+    escreve(posicao, ba, 0, ba.length);
+  }
+
+  public default byte leByte(long posicao) throws IOException {
+    byte[] ba = new byte[1];
+    le(posicao, ba);
+    return ba[0];
+  }
+
+  public default short leShort(long posicao) throws IOException {
+    byte[] ba = new byte[2];
+    le(posicao, ba);
+    return (short) (((ba[0] & 0xFF) << 8) | (ba[1] & 0xFF));
+  }
+
+  public default int leInt(long posicao) throws IOException {
+    byte[] ba = new byte[4];
+    le(posicao, ba);
+    return ((ba[0] & 0xFF) << 24) | ((ba[1] & 0xFF) << 16) | ((ba[2] & 0xFF) << 8) | (ba[3] & 0xFF);
+  }
+
+  public default long leLong(long posicao) throws IOException {
+    byte[] ba = new byte[8];
+    le(posicao, ba);
+    long v = 0;
+    for (int i = 0; i < 8; i++)
+      v = (v << 8) | (ba[i] & 0xFF);
+    return v;
+  }
+
+  public default void escreveByte(long posicao, int v) throws IOException {
+    escreve(posicao, new byte[] { (byte) v });
+  }
+
+  public default void escreveShort(long posicao, int v) throws IOException {
+    escreve(posicao, new byte[] { (byte) (v >>> 8), (byte) v });
+  }
+
+  public default void escreveInt(long posicao, int v) throws IOException {
+    escreve(posicao, new byte[] { (byte) (v >>> 24), (byte) (v >>> 16), (byte) (v >>> 8), (byte) v });
+  }
+
+  public default void escreveLong(long posicao, long v) throws IOException {
+    byte[] ba = new byte[8];
+    for (int i = 7; i >= 0; i--) {
+      ba[i] = (byte) v;
+      v >>>= 8;
+    }
+    escreve(posicao, ba);
+  }
+}
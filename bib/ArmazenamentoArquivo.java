@@ -0,0 +1,51 @@
+package bib;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Armazenamento tradicional: cada leitura ou escrita é uma chamada posicional
+// ao FileChannel do arquivo (sem seek).
+public class ArmazenamentoArquivo implements Armazenamento {
+
+    private RandomAccessFile raf;
+    private FileChannel canal;
+
+    public ArmazenamentoArquivo(String nomeArquivo) throws IOException {
+        raf = new RandomAccessFile(nomeArquivo, "rw");
+        canal = raf.getChannel();
+    }
+
+    public long tamanho() throws IOException {
+        return canal.size();
+    }
+
+    public void defineTamanho(long tamanho) throws IOException {
+        raf.setLength(tamanho);
+    }
+
+    public void le(long posicao, byte[] ba, int inicio, int quantidade) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(ba, inicio, quantidade);
+        while (bb.hasRemaining()) {
+            int lidos = canal.read(bb, posicao + bb.position() - inicio);
+            if (lidos < 0)
+                throw new EOFException("Leitura além do fim do arquivo");
+        }
+    }
+
+    public void escreve(long posicao, byte[] ba, int inicio, int quantidade) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(ba, inicio, quantidade);
+        while (bb.hasRemaining())
+            canal.write(bb, posicao + bb.position() - inicio);
+    }
+
+    public void sincroniza() throws IOException {
+        canal.force(true);
+    }
+
+    public void close() throws IOException {
+        raf.close();
+    }
+}
@@ -0,0 +1,154 @@
+package bib;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Armazenamento baseado em um arquivo mapeado em memória. Depois de mapeado,
+// ler ou escrever um registro é apenas um acesso à memória.
+//
+// O mapeamento cresce em blocos: ao escrever além da área mapeada, o arquivo é
+// estendido (e remapeado) em múltiplos de BLOCO bytes. O tamanho lógico é mantido
+// à parte e, no fechamento, o arquivo é truncado para ele, de forma que o formato
+// em disco continua idêntico ao do ArmazenamentoArquivo.
+//
+// As leituras podem ser feitas por várias threads ao mesmo tempo: cada uma usa
+// o mapeamento vigente quando começou (um remapeamento não invalida o
+// anterior). As escritas e os remapeamentos são sincronizados.
+public class ArmazenamentoMapeado implements Armazenamento {
+
+    public static final int BLOCO = 1 << 20; // 1 MiB
+
+    private RandomAccessFile raf;
+    private FileChannel canal;
+    private volatile MappedByteBuffer mapa;
+    private long capacidade; // bytes atualmente mapeados
+    private volatile long tamanhoLogico; // bytes efetivamente usados pelo arquivo
+
+    public ArmazenamentoMapeado(String nomeArquivo) throws IOException {
+        raf = new RandomAccessFile(nomeArquivo, "rw");
+        canal = raf.getChannel();
+        tamanhoLogico = canal.size();
+        mapeia(Math.max(arredonda(tamanhoLogico), BLOCO));
+    }
+
+    // Arredonda o tamanho para o próximo múltiplo do bloco
+    private static long arredonda(long tamanho) {
+        return (tamanho + BLOCO - 1) / BLOCO * BLOCO;
+    }
+
+    private void mapeia(long novaCapacidade) throws IOException {
+        if (novaCapacidade > Integer.MAX_VALUE)
+            throw new IOException("Arquivo grande demais para ser mapeado em memória");
+        mapa = canal.map(FileChannel.MapMode.READ_WRITE, 0, novaCapacidade);
+        capacidade = novaCapacidade;
+    }
+
+    // Garante que a área mapeada alcance o endereço indicado
+    private void garante(long fim) throws IOException {
+        if (fim > capacidade)
+            mapeia(arredonda(Math.max(fim, capacidade + BLOCO)));
+    }
+
+    private void confereLeitura(long posicao, int quantidade) throws IOException {
+        if (posicao < 0 || posicao + quantidade > tamanhoLogico)
+            throw new EOFException("Leitura além do fim do arquivo");
+    }
+
+    private void confereEscrita(long posicao, int quantidade) throws IOException {
+        garante(posicao + quantidade);
+        if (posicao + quantidade > tamanhoLogico)
+            tamanhoLogico = posicao + quantidade;
+    }
+
+    public long tamanho() {
+        return tamanhoLogico;
+    }
+
+    public synchronized void defineTamanho(long tamanho) throws IOException {
+        garante(tamanho);
+        // Zera a área descartada, para que ela não reapareça se o arquivo crescer
+        for (long p = tamanho; p < tamanhoLogico; p++)
+            mapa.put((int) p, (byte) 0);
+        tamanhoLogico = tamanho;
+    }
+
+    public void le(long posicao, byte[] ba, int inicio, int quantidade) throws IOException {
+        MappedByteBuffer m = mapa;
+        confereLeitura(posicao, quantidade);
+        m.get((int) posicao, ba, inicio, quantidade);
+    }
+
+    public synchronized void escreve(long posicao, byte[] ba, int inicio, int quantidade) throws IOException {
+        confereEscrita(posicao, quantidade);
+        mapa.put((int) posicao, ba, inicio, quantidade);
+    }
+
+    @Override
+    public byte leByte(long posicao) throws IOException {
+        MappedByteBuffer m = mapa;
+        confereLeitura(posicao, 1);
+        return m.get((int) posicao);
+    }
+
+    @Override
+    public short leShort(long posicao) throws IOException {
+        MappedByteBuffer m = mapa;
+        confereLeitura(posicao, 2);
+        return m.getShort((int) posicao);
+    }
+
+    @Override
+    public int leInt(long posicao) throws IOException {
+        MappedByteBuffer m = mapa;
+        confereLeitura(posicao, 4);
+        return m.getInt((int) posicao);
+    }
+
+    @Override
+    public long leLong(long posicao) throws IOException {
+        MappedByteBuffer m = mapa;
+        confereLeitura(posicao, 8);
+        return m.getLong((int) posicao);
+    }
+
+    @Override
+    public synchronized void escreveByte(long posicao, int v) throws IOException {
+        confereEscrita(posicao, 1);
+        mapa.put((int) posicao, (byte) v);
+    }
+
+    @Override
+    public synchronized void escreveShort(long posicao, int v) throws IOException {
+        confereEscrita(posicao, 2);
+        mapa.putShort((int) posicao, (short) v);
+    }
+
+    @Override
+    public synchronized void escreveInt(long posicao, int v) throws IOException {
+        confereEscrita(posicao, 4);
+        mapa.putInt((int) posicao, v);
+    }
+
+    @Override
+    public synchronized void escreveLong(long posicao, long v) throws IOException {
+        confereEscrita(posicao, 8);
+        mapa.putLong((int) posicao, v);
+    }
+
+    public synchronized void sincroniza() throws IOException {
+        mapa.force();
+    }
+
+    // Grava as páginas alteradas e devolve ao arquivo o seu tamanho lógico
+    public synchronized void close() throws IOException {
+        if (mapa == null)
+            return;
+        mapa.force();
+        mapa = null;
+        canal.truncate(tamanhoLogico);
+        raf.close();
+    }
+}
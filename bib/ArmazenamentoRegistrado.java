@@ -0,0 +1,336 @@
+package bib;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Armazenamento sob o controle do LogTransacoes. As escritas não vão direto
+// para o arquivo: elas alteram cópias em memória dos blocos do arquivo e são
+// anotadas como trechos da transação corrente. As leituras consultam primeiro
+// esses blocos e, depois, o arquivo. Os blocos só são gravados no arquivo no
+// checkpoint, depois que as transações que os alteraram já estão no log.
+//
+// Uma escrita feita fora de uma transação forma uma transação sozinha.
+//
+// Concorrência: a trava protege os blocos em memória e os tamanhos; as
+// leituras a tomam de forma compartilhada apenas para copiar os blocos
+// alterados e anotar os trechos que vêm do arquivo. A leitura do arquivo
+// base acontece fora dela, sob travaBase compartilhada (as leituras
+// posicionais do ArmazenamentoArquivo e o mapeamento do ArmazenamentoMapeado
+// admitem vários leitores). Só escreve, defineTamanho, desfazTransacao e
+// aplica tomam a trava exclusivamente; só aplica, que altera o arquivo base,
+// toma travaBase exclusivamente. A ordem é sempre travaBase e depois trava.
+public class ArmazenamentoRegistrado implements Armazenamento {
+
+    public static final int TAM_BLOCO = 4096;
+
+    private final String caminho;
+    private final Armazenamento base;
+    private final LogTransacoes log;
+    int referencias; // controlado pelo LogTransacoes
+
+    // Blocos alterados e ainda não aplicados ao arquivo
+    private final TreeMap<Long, byte[]> blocos = new TreeMap<>();
+    private long tamanhoLogico; // tamanho do arquivo, considerando as alterações
+    private long tamanhoValidoBase; // bytes do arquivo base que ainda valem (antes de um truncamento)
+    private final ReentrantReadWriteLock trava = new ReentrantReadWriteLock();
+    private final ReentrantReadWriteLock travaBase = new ReentrantReadWriteLock();
+
+    // Transação corrente: trechos a gravar no log e imagens anteriores dos
+    // blocos, para o cancelamento
+    private ByteArrayOutputStream trechos;
+    private DataOutputStream dosTrechos;
+    private int quantidadeTrechos;
+    private final HashMap<Long, byte[]> imagensAnteriores = new HashMap<>();
+    private long tamanhoLogicoAnterior;
+    private long tamanhoValidoBaseAnterior;
+
+    ArmazenamentoRegistrado(String caminho, Armazenamento base, LogTransacoes log) throws IOException {
+        this.caminho = caminho;
+        this.base = base;
+        this.log = log;
+        this.tamanhoLogico = base.tamanho();
+        this.tamanhoValidoBase = tamanhoLogico;
+    }
+
+    public long tamanho() {
+        trava.readLock().lock();
+        try {
+            return tamanhoLogico;
+        } finally {
+            trava.readLock().unlock();
+        }
+    }
+
+    // Memória ocupada pelos blocos alterados
+    long bytesEmMemoria() {
+        trava.readLock().lock();
+        try {
+            return (long) blocos.size() * TAM_BLOCO;
+        } finally {
+            trava.readLock().unlock();
+        }
+    }
+
+    // ------------------------------------------------------------------
+    // Leitura
+    // ------------------------------------------------------------------
+
+    public void le(long posicao, byte[] ba, int inicio, int quantidade) throws IOException {
+        travaBase.readLock().lock();
+        try {
+            // Trechos a ler do arquivo base: (posição, deslocamento em ba, quantidade)
+            long[] trechosBase = new long[6];
+            int n = 0;
+            long validosBase;
+
+            trava.readLock().lock();
+            try {
+                if (posicao < 0 || posicao + quantidade > tamanhoLogico)
+                    throw new EOFException("Leitura além do fim do arquivo");
+                validosBase = tamanhoValidoBase;
+                long pos = posicao;
+                int feito = 0;
+                while (feito < quantidade) {
+                    long nb = pos / TAM_BLOCO;
+                    int desl = (int) (pos % TAM_BLOCO);
+                    byte[] bloco = blocos.get(nb);
+                    int q;
+                    if (bloco != null) {
+                        q = Math.min(TAM_BLOCO - desl, quantidade - feito);
+                        System.arraycopy(bloco, desl, ba, inicio + feito, q);
+                    } else {
+                        // Trecho contínuo de blocos não alterados: uma única leitura do arquivo
+                        Long proximo = blocos.higherKey(nb);
+                        long fimTrecho = posicao + quantidade;
+                        if (proximo != null)
+                            fimTrecho = Math.min(fimTrecho, proximo * TAM_BLOCO);
+                        q = (int) (fimTrecho - pos);
+                        if (n == trechosBase.length)
+                            trechosBase = Arrays.copyOf(trechosBase, n * 2);
+                        trechosBase[n++] = pos;
+                        trechosBase[n++] = inicio + feito;
+                        trechosBase[n++] = q;
+                    }
+                    pos += q;
+                    feito += q;
+                }
+            } finally {
+                trava.readLock().unlock();
+            }
+
+            // O arquivo base só muda em aplica(), que espera por travaBase
+            for (int i = 0; i < n; i += 3)
+                leBase(trechosBase[i], ba, (int) trechosBase[i + 1], (int) trechosBase[i + 2], validosBase);
+        } finally {
+            travaBase.readLock().unlock();
+        }
+    }
+
+    // Lê do arquivo base; o que estiver além da parte válida é lido como zeros
+    private void leBase(long pos, byte[] ba, int inicio, int quantidade, long validosBase) throws IOException {
+        int validos = (int) Math.max(0, Math.min(quantidade, validosBase - pos));
+        if (validos > 0)
+            base.le(pos, ba, inicio, validos);
+        Arrays.fill(ba, inicio + validos, inicio + quantidade, (byte) 0);
+    }
+
+    // ------------------------------------------------------------------
+    // Escrita
+    // ------------------------------------------------------------------
+
+    public void escreve(long posicao, byte[] ba, int inicio, int quantidade) throws IOException {
+        boolean implicita = !log.emTransacao();
+        if (implicita)
+            log.inicia();
+        try {
+            travaBase.readLock().lock();
+            trava.writeLock().lock();
+            try {
+                registraTrecho(posicao, ba, inicio, quantidade);
+                long pos = posicao;
+                int feito = 0;
+                while (feito < quantidade) {
+                    long nb = pos / TAM_BLOCO;
+                    int desl = (int) (pos % TAM_BLOCO);
+                    int n = Math.min(TAM_BLOCO - desl, quantidade - feito);
+                    System.arraycopy(ba, inicio + feito, blocoParaEscrita(nb), desl, n);
+                    pos += n;
+                    feito += n;
+                }
+                if (posicao + quantidade > tamanhoLogico)
+                    tamanhoLogico = posicao + quantidade;
+            } finally {
+                trava.writeLock().unlock();
+                travaBase.readLock().unlock();
+            }
+            if (implicita)
+                log.confirma();
+        } catch (IOException | RuntimeException e) {
+            if (implicita)
+                log.cancela();
+            throw e;
+        }
+    }
+
+    public void defineTamanho(long tamanho) throws IOException {
+        boolean implicita = !log.emTransacao();
+        if (implicita)
+            log.inicia();
+        try {
+            travaBase.readLock().lock();
+            trava.writeLock().lock();
+            try {
+                registraTrecho(tamanho, null, 0, -1);
+                if (tamanho < tamanhoLogico) {
+                    // Zera, nos blocos em memória, a parte que deixou de existir
+                    for (Map.Entry<Long, byte[]> e : blocos.tailMap(tamanho / TAM_BLOCO, true).entrySet()) {
+                        long inicioBloco = e.getKey() * TAM_BLOCO;
+                        int desl = (int) Math.max(0, tamanho - inicioBloco);
+                        Arrays.fill(blocoParaEscrita(e.getKey()), desl, TAM_BLOCO, (byte) 0);
+                    }
+                    tamanhoValidoBase = Math.min(tamanhoValidoBase, tamanho);
+                }
+                tamanhoLogico = tamanho;
+            } finally {
+                trava.writeLock().unlock();
+                travaBase.readLock().unlock();
+            }
+            if (implicita)
+                log.confirma();
+        } catch (IOException | RuntimeException e) {
+            if (implicita)
+                log.cancela();
+            throw e;
+        }
+    }
+
+    // Bloco em memória pronto para ser alterado (guardando a imagem anterior
+    // na primeira alteração dentro da transação)
+    private byte[] blocoParaEscrita(long nb) throws IOException {
+        byte[] bloco = blocos.get(nb);
+        if (!imagensAnteriores.containsKey(nb))
+            imagensAnteriores.put(nb, bloco == null ? null : bloco.clone());
+        if (bloco == null) {
+            bloco = new byte[TAM_BLOCO];
+            long inicioBloco = nb * TAM_BLOCO;
+            int n = (int) Math.max(0, Math.min(TAM_BLOCO, tamanhoLogico - inicioBloco));
+            if (n > 0)
+                leBase(inicioBloco, bloco, 0, n, tamanhoValidoBase);
+            blocos.put(nb, bloco);
+        }
+        return bloco;
+    }
+
+    private void registraTrecho(long posicao, byte[] ba, int inicio, int quantidade) throws IOException {
+        if (trechos == null) {
+            trechos = new ByteArrayOutputStream();
+            dosTrechos = new DataOutputStream(trechos);
+            tamanhoLogicoAnterior = tamanhoLogico;
+            tamanhoValidoBaseAnterior = tamanhoValidoBase;
+            log.registraAlteracao(this);
+        }
+        dosTrechos.writeLong(posicao);
+        dosTrechos.writeInt(quantidade);
+        if (quantidade > 0)
+            dosTrechos.write(ba, inicio, quantidade);
+        quantidadeTrechos++;
+    }
+
+    // ------------------------------------------------------------------
+    // Integração com o log
+    // ------------------------------------------------------------------
+
+    void serializaTransacao(DataOutputStream dos) throws IOException {
+        trava.writeLock().lock();
+        try {
+            dos.writeUTF(caminho);
+            dos.writeInt(quantidadeTrechos);
+            trechos.writeTo(dos);
+        } finally {
+            trava.writeLock().unlock();
+        }
+    }
+
+    void encerraTransacao() {
+        trava.writeLock().lock();
+        try {
+            trechos = null;
+            dosTrechos = null;
+            quantidadeTrechos = 0;
+            imagensAnteriores.clear();
+        } finally {
+            trava.writeLock().unlock();
+        }
+    }
+
+    void desfazTransacao() {
+        trava.writeLock().lock();
+        try {
+            for (Map.Entry<Long, byte[]> e : imagensAnteriores.entrySet()) {
+                if (e.getValue() == null)
+                    blocos.remove(e.getKey());
+                else
+                    blocos.put(e.getKey(), e.getValue());
+            }
+            if (trechos != null) {
+                tamanhoLogico = tamanhoLogicoAnterior;
+                tamanhoValidoBase = tamanhoValidoBaseAnterior;
+            }
+            encerraTransacao();
+        } finally {
+            trava.writeLock().unlock();
+        }
+    }
+
+    // Grava no arquivo os blocos alterados (checkpoint). Só deve ser chamado
+    // quando todas as transações que os alteraram já estiverem no log.
+    void aplica() throws IOException {
+        travaBase.writeLock().lock();
+        trava.writeLock().lock();
+        try {
+            if (blocos.isEmpty() && base.tamanho() == tamanhoLogico)
+                return;
+            if (base.tamanho() > tamanhoValidoBase)
+                base.defineTamanho(tamanhoValidoBase);
+            for (Map.Entry<Long, byte[]> e : blocos.entrySet()) {
+                long inicioBloco = e.getKey() * TAM_BLOCO;
+                int n = (int) Math.min(TAM_BLOCO, tamanhoLogico - inicioBloco);
+                if (n > 0)
+                    base.escreve(inicioBloco, e.getValue(), 0, n);
+            }
+            if (base.tamanho() != tamanhoLogico)
+                base.defineTamanho(tamanhoLogico);
+            base.sincroniza();
+            blocos.clear();
+            tamanhoValidoBase = tamanhoLogico;
+        } finally {
+            trava.writeLock().unlock();
+            travaBase.writeLock().unlock();
+        }
+    }
+
+    // As alterações confirmadas já estão em disco (no log); a aplicação ao
+    // arquivo acontece no checkpoint
+    public void sincroniza() {
+    }
+
+    public void close() throws IOException {
+        log.fecha(this);
+    }
+
+    void fechaBase() throws IOException {
+        travaBase.writeLock().lock();
+        try {
+            base.close();
+        } finally {
+            travaBase.writeLock().unlock();
+        }
+    }
+}
@@ -1,39 +1,170 @@
 package bib;
 
-import java.io.*;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.CRC32;
 
 public class Arquivo<T extends Entidade> {
 
-    protected RandomAccessFile arquivo;
-    protected HashExtensivel<ParIDEndereco> indiceDireto;
+    protected Armazenamento arquivo;
+    protected IndicePrimario indiceDireto;
     protected String nomeArquivo;
     protected Constructor<T> construtor;
+    protected LogTransacoes log;
+    protected EspacoLivre espacoLivre;
+    protected SequenciaIds sequencia;
+    protected Armazenamento.Tipo tipo;
+    protected Compactacao compactacao; // compactação em andamento (ou null)
+    private Thread compactador; // ver iniciaCompactacaoAutomatica()
+    private final CountDownLatch encerramento = new CountDownLatch(1);
     protected int TAM_CABECALHO = 12;
+    protected final ArrayList<Integer> idsRepetidos = new ArrayList<>(); // ver reconstroiIndiceUnico()
+
+    // As leituras podem ser feitas ao mesmo tempo por várias threads; as
+    // alterações são exclusivas. A trava do arquivo é sempre obtida depois da
+    // trava do log (a transação) e antes das travas do índice direto.
+    protected final ReentrantReadWriteLock trava = new ReentrantReadWriteLock();
 
     public Arquivo(String nome, Constructor<T> construtor) throws Exception {
+        this(nome, construtor, Armazenamento.Tipo.ARQUIVO);
+    }
+
+    // O tipo de armazenamento (acesso direto ou mapeado em memória) é escolhido
+    // por instância; o formato do arquivo em disco é o mesmo nos dois casos.
+    public Arquivo(String nome, Constructor<T> construtor, Armazenamento.Tipo tipo) throws Exception {
         this.nomeArquivo = nome;
         this.construtor = construtor;
+        this.tipo = tipo;
         File d = new File("./dados");
         if (!d.exists()) {
             d.mkdir();
         }
-        this.arquivo = new RandomAccessFile("./dados/" + nomeArquivo + ".db", "rw");
-        if (arquivo.length() < TAM_CABECALHO) {
-            arquivo.writeInt(0); // último ID
-            arquivo.writeLong(-1); // ponteiro para a lista de vazios
+        this.log = LogTransacoes.instancia();
+        MapaCompactacao mapa = recuperaCompactacao();
+        this.arquivo = Armazenamento.abre("./dados/" + nomeArquivo + ".db", tipo);
+        if (arquivo.tamanho() < TAM_CABECALHO) {
+            log.inicia();
+            arquivo.escreveInt(0, 0); // último ID (reservado)
+            arquivo.escreveLong(4, -1); // antigo ponteiro para a lista de vazios
+            log.confirma();
+        } else if (arquivo.leLong(4) != -1) {
+            // A lista encadeada de vazios não é mais usada: os espaços livres
+            // passam a ser controlados pelo EspacoLivre, reconstruído a partir
+            // das lápides
+            log.inicia();
+            arquivo.escreveLong(4, -1);
+            log.confirma();
+        }
+        espacoLivre = EspacoLivre.abre("./dados/" + nomeArquivo + ".db", "./dados/" + nomeArquivo + ".vazios.db",
+                arquivo, TAM_CABECALHO);
+        sequencia = SequenciaIds.abre("./dados/" + nomeArquivo + ".db", arquivo.leInt(0));
+        indiceDireto = abreIndiceDireto();
+        if (mapa != null)
+            aplicaMapa(mapa);
+    }
+
+    // Abre o índice direto. O índice denso é o padrão: um índice em tabela hash
+    // de uma versão anterior é convertido na primeira abertura e apagado. Só
+    // continua em uso se os seus IDs passarem do limite do índice denso
+    // (IndiceDenso.MAXIMO_ID), que também recusa IDs acima desse limite.
+    private IndicePrimario abreIndiceDireto() throws Exception {
+        String base = "./dados/" + nomeArquivo;
+        boolean temHash = new File(base + ".d.db").exists() && new File(base + ".c.db").exists();
+        if (temHash && !new File(base + ".i.db").exists() && sequencia.ultimo() > IndiceDenso.MAXIMO_ID)
+            return new IndiceHash(base + ".d.db", base + ".c.db");
+
+        IndiceDenso denso = IndiceDenso.abre(base + ".i.db");
+        if (temHash) {
+            // Um índice denso já gravado vem de uma conversão interrompida
+            // depois de confirmada: resta apagar o índice hash
+            if (denso.vazio()) {
+                IndiceHash hash = new IndiceHash(base + ".d.db", base + ".c.db");
+                log.executa(() -> {
+                    denso.createAll(hash.readAll());
+                    return null;
+                });
+                hash.close();
+            }
+            Files.deleteIfExists(Paths.get(base + ".d.db"));
+            Files.deleteIfExists(Paths.get(base + ".c.db"));
         }
-        indiceDireto = new HashExtensivel<>(ParIDEndereco.class.getConstructor(), 3, "./dados/" + nomeArquivo + ".d.db",
-                "./dados/" + nomeArquivo + ".c.db");
+        return denso;
     }
 
+    // As operações de alteração formam, cada uma, uma transação no log: o
+    // registro, o cabeçalho e o índice direto são gravados juntos. Quando
+    // chamadas dentro de uma transação maior (por exemplo, a de um CRUD que
+    // também atualiza índices secundários), passam a fazer parte dela.
     public int create(T entidade) throws Exception {
+        return log.executa(() -> comTravaDeEscrita(() -> create1(entidade)));
+    }
 
-        // Obtém o novo ID
-        arquivo.seek(0);
-        int novoId = arquivo.readInt() + 1;
-        arquivo.seek(0);
-        arquivo.writeInt(novoId);
+    // Inclusão em lote, em uma única transação: os IDs são obtidos de uma só
+    // vez, os registros que não ocupam espaços livres são acrescentados ao
+    // fim do arquivo com uma única gravação e o índice direto recebe os pares
+    // agrupados por cesto. Os IDs são atribuídos às entidades e retornados na
+    // ordem da coleção.
+    public int[] createAll(Collection<T> entidades) throws Exception {
+        return log.executa(() -> comTravaDeEscrita(() -> createAll1(entidades)));
+    }
+
+    public boolean update(T novaEntidade) throws Exception {
+        return log.executa(() -> comTravaDeEscrita(() -> update1(novaEntidade)));
+    }
+
+    public boolean delete(int id) throws Exception {
+        return log.executa(() -> comTravaDeEscrita(() -> delete1(id)));
+    }
+
+    protected <R> R comTravaDeEscrita(LogTransacoes.Operacao<R> operacao) throws Exception {
+        trava.writeLock().lock();
+        try {
+            return operacao.executa();
+        } finally {
+            trava.writeLock().unlock();
+        }
+    }
+
+    protected <R> R comTravaDeLeitura(LogTransacoes.Operacao<R> operacao) throws Exception {
+        trava.readLock().lock();
+        try {
+            return operacao.executa();
+        } finally {
+            trava.readLock().unlock();
+        }
+    }
+
+    private int create1(T entidade) throws Exception {
+
+        // Obtém o novo ID (o cabeçalho só é gravado quando um novo bloco de
+        // IDs precisa ser reservado)
+        int novoId = sequencia.proximo(arquivo);
         entidade.setID(novoId);
 
         // Grava o registro no fim do arquivo
@@ -41,34 +172,96 @@ public class Arquivo<T extends Entidade> {
         int tam = vb.length;
         long endereco = buscaVazio(tam);
         if (endereco == -1) {
-            arquivo.seek(arquivo.length());
-            endereco = arquivo.getFilePointer();
-            arquivo.writeByte(' ');
-            arquivo.writeShort(tam);
-            arquivo.write(vb);
+            endereco = arquivo.tamanho();
+            escreveRegistro(endereco, vb);
         } else {
-            arquivo.seek(endereco);
-            arquivo.writeByte(' ');
-            arquivo.skipBytes(2);
-            arquivo.write(vb);
+            arquivo.escreveByte(endereco, ' ');
+            arquivo.escreve(endereco + 3, vb);
         }
-        indiceDireto.create(new ParIDEndereco(novoId, endereco));
+        indiceDireto.create(novoId, endereco);
+        if (compactacao != null)
+            compactacao.alterados.add(novoId);
         return novoId;
     }
 
+    private int[] createAll1(Collection<T> entidades) throws Exception {
+        int[] ids = new int[entidades.size()];
+        if (ids.length == 0)
+            return ids;
+        int primeiroId = sequencia.proximos(arquivo, ids.length);
+
+        ArrayList<ParIDEndereco> pares = new ArrayList<>(ids.length);
+        ByteArrayOutputStream lote = new ByteArrayOutputStream();
+        long fim = arquivo.tamanho();
+        int i = 0;
+        for (T entidade : entidades) {
+            int novoId = primeiroId + i;
+            entidade.setID(novoId);
+            ids[i++] = novoId;
+
+            byte[] vb = entidade.toByteArray();
+            long endereco = buscaVazio(vb.length);
+            if (endereco == -1) {
+                endereco = fim + lote.size();
+                lote.write(' ');
+                lote.write(vb.length >> 8);
+                lote.write(vb.length);
+                lote.write(vb);
+            } else {
+                arquivo.escreveByte(endereco, ' ');
+                arquivo.escreve(endereco + 3, vb);
+            }
+            pares.add(new ParIDEndereco(novoId, endereco));
+            if (compactacao != null)
+                compactacao.alterados.add(novoId);
+        }
+        if (lote.size() > 0)
+            arquivo.escreve(fim, lote.toByteArray());
+        indiceDireto.createAll(pares);
+        return ids;
+    }
+
     public T read(int id) throws Exception {
-        ParIDEndereco pie = indiceDireto.read(id);
-        if (pie == null)
-            return null;
+        return comTravaDeLeitura(() -> {
+            long endereco = indiceDireto.read(id);
+            if (endereco == -1)
+                return null;
+            return leRegistro(endereco, id);
+        });
+    }
+
+    // Lê vários registros de uma vez. Os endereços são obtidos no índice direto
+    // e os registros são lidos em ordem crescente de endereço, o que transforma
+    // leituras aleatórias em uma leitura quase sequencial do arquivo. A lista
+    // retornada segue essa mesma ordem; IDs inexistentes são ignorados.
+    public ArrayList<T> readVarios(Collection<Integer> ids) throws Exception {
+        return comTravaDeLeitura(() -> {
+            ArrayList<ParIDEndereco> enderecos = new ArrayList<>(ids.size());
+            for (int id : ids) {
+                long endereco = indiceDireto.read(id);
+                if (endereco != -1)
+                    enderecos.add(new ParIDEndereco(id, endereco));
+            }
+            enderecos.sort(Comparator.comparingLong(ParIDEndereco::getEndereco));
+
+            ArrayList<T> entidades = new ArrayList<>(enderecos.size());
+            for (ParIDEndereco pie : enderecos) {
+                T entidade = leRegistro(pie.getEndereco(), pie.getId());
+                if (entidade != null)
+                    entidades.add(entidade);
+            }
+            return entidades;
+        });
+    }
 
-        long endereco = pie.getEndereco();
-        arquivo.seek(endereco);
-        byte lapide = arquivo.readByte();
-        int tam = arquivo.readShort();
+    // Lê o registro do endereço indicado, se estiver ativo e pertencer ao ID
+    protected T leRegistro(long endereco, int id) throws Exception {
+        byte lapide = arquivo.leByte(endereco);
+        int tam = arquivo.leShort(endereco + 1);
 
         if (lapide == ' ') {
             byte[] vb = new byte[tam];
-            arquivo.read(vb);
+            arquivo.le(endereco + 3, vb);
 
             T entidade = construtor.newInstance();
             entidade.fromByteArray(vb);
@@ -78,19 +271,17 @@ public class Arquivo<T extends Entidade> {
         return null;
     }
 
-    public boolean update(T novaEntidade) throws Exception {
-        ParIDEndereco pie = indiceDireto.read(novaEntidade.getID());
-        if (pie == null)
+    private boolean update1(T novaEntidade) throws Exception {
+        long endereco = indiceDireto.read(novaEntidade.getID());
+        if (endereco == -1)
             return false;
-        long endereco = pie.getEndereco();
-        arquivo.seek(endereco);
 
-        byte lapide = arquivo.readByte();
-        int tam = arquivo.readShort();
+        byte lapide = arquivo.leByte(endereco);
+        int tam = arquivo.leShort(endereco + 1);
 
         if (lapide == ' ') {
             byte[] vb = new byte[tam];
-            arquivo.read(vb);
+            arquivo.le(endereco + 3, vb);
 
             T entidade = construtor.newInstance();
             entidade.fromByteArray(vb);
@@ -100,53 +291,47 @@ public class Arquivo<T extends Entidade> {
                 int tam2 = vb2.length;
 
                 if (tam2 <= tam) {
-                    arquivo.seek(endereco + 3);
-                    arquivo.write(vb2);
+                    arquivo.escreve(endereco + 3, vb2);
                 } else {
-                    arquivo.seek(endereco);
-                    arquivo.writeByte('*');
+                    arquivo.escreveByte(endereco, '*');
                     insereVazio(endereco, tam);
 
                     long novaPos = buscaVazio(tam2);
                     if (novaPos == -1) {
-                        arquivo.seek(arquivo.length());
-                        novaPos = arquivo.getFilePointer();
-                        arquivo.writeByte(' ');
-                        arquivo.writeShort(tam2);
-                        arquivo.write(vb2);
+                        novaPos = arquivo.tamanho();
+                        escreveRegistro(novaPos, vb2);
                     } else {
-                        arquivo.seek(novaPos);
-                        arquivo.writeByte(' ');
-                        arquivo.skipBytes(2);
-                        arquivo.write(vb2);
+                        arquivo.escreveByte(novaPos, ' ');
+                        arquivo.escreve(novaPos + 3, vb2);
                     }
-                    indiceDireto.update(new ParIDEndereco(novaEntidade.getID(), novaPos));
+                    indiceDireto.update(novaEntidade.getID(), novaPos);
                 }
+                if (compactacao != null)
+                    compactacao.alterados.add(novaEntidade.getID());
                 return true;
             }
         }
         return false;
     }
 
-    public boolean delete(int id) throws Exception {
-        ParIDEndereco pie = indiceDireto.read(id);
-        if (pie == null)
+    private boolean delete1(int id) throws Exception {
+        long endereco = indiceDireto.read(id);
+        if (endereco == -1)
             return false;
-        long endereco = pie.getEndereco();
-        arquivo.seek(endereco);
-        byte lapide = arquivo.readByte();
-        int tam = arquivo.readShort();
+        byte lapide = arquivo.leByte(endereco);
+        int tam = arquivo.leShort(endereco + 1);
 
         if (lapide == ' ') {
             byte[] vb = new byte[tam];
-            arquivo.read(vb);
+            arquivo.le(endereco + 3, vb);
             T entidade = construtor.newInstance();
             entidade.fromByteArray(vb);
             if (entidade.getID() == id) {
-                arquivo.seek(endereco);
-                arquivo.writeByte('*');
+                arquivo.escreveByte(endereco, '*');
                 insereVazio(endereco, tam);
                 indiceDireto.delete(id);
+                if (compactacao != null)
+                    compactacao.alterados.add(id);
                 return true;
             }
         }
@@ -154,73 +339,530 @@ public class Arquivo<T extends Entidade> {
     }
 
     public void close() throws Exception {
-        arquivo.close();
+        // A compactação automática é encerrada antes (ela também obtém a
+        // trava do log). A thread não é interrompida: a interrupção de uma
+        // thread durante uma leitura fecharia o FileChannel do arquivo.
+        encerramento.countDown();
+        if (compactador != null)
+            compactador.join();
+        log.executaExclusivo(() -> comTravaDeEscrita(() -> {
+            if (compactacao != null)
+                compactacao.cancela();
+            if (sequencia != null) {
+                sequencia.fecha(arquivo);
+                sequencia = null;
+            }
+            if (espacoLivre != null) {
+                espacoLivre.fecha();
+                espacoLivre = null;
+            }
+            arquivo.close();
+            indiceDireto.close();
+            return null;
+        }));
     }
 
-    public void insereVazio(long enderecoEspaco, int tamanhoEspaco) throws Exception {
-        long anterior = 4;
-        long endereco;
-        long proximo = -1;
-        short tamanho;
+    // Quantidade de registros copiados em cada passo de compacta()
+    public static final int LOTE_COMPACTACAO = 1000;
 
-        arquivo.seek(anterior); // cabeça da lista
-        endereco = arquivo.readLong();
+    // Compacta o arquivo de dados: os registros ativos são copiados, em
+    // sequência e sem folgas, para um novo arquivo, que substitui o atual. O
+    // índice direto passa a apontar para os novos endereços.
+    public void compacta() throws Exception {
+        Compactacao c = iniciaCompactacao();
+        try {
+            while (c.passo(LOTE_COMPACTACAO))
+                ;
+            c.conclui();
+        } catch (Exception e) {
+            c.cancela();
+            throw e;
+        }
+    }
 
-        if (endereco == -1) {
-            arquivo.seek(anterior);
-            arquivo.writeLong(enderecoEspaco);
-            arquivo.seek(enderecoEspaco + 3);
-            arquivo.writeLong(-1);
+    // Compactação automática: uma thread em segundo plano verifica, a cada
+    // INTERVALO_COMPACTACAO_MS, a fração do arquivo ocupada por espaços livres
+    // e compacta o arquivo quando ela passa do limite (e há ao menos
+    // MINIMO_COMPACTACAO bytes livres). A compactação é feita em passos de
+    // LOTE_COMPACTACAO registros, com uma pausa entre eles, para que as
+    // alterações não esperem a cópia inteira. A thread é encerrada por
+    // close(); uma compactação em andamento nesse momento é cancelada.
+    public static final double LIMITE_COMPACTACAO_PADRAO = 0.5;
+    public static final long MINIMO_COMPACTACAO = 1 << 20;
+    public static final long INTERVALO_COMPACTACAO_MS = 60_000;
+    public static final long PAUSA_COMPACTACAO_MS = 10;
+
+    public void iniciaCompactacaoAutomatica(double limite) {
+        iniciaCompactacaoAutomatica(limite, INTERVALO_COMPACTACAO_MS);
+    }
+
+    public synchronized void iniciaCompactacaoAutomatica(double limite, long intervaloMs) {
+        if (compactador != null)
             return;
-        } else {
-            do {
-                arquivo.seek(endereco + 1); // pula o lápide
-                tamanho = arquivo.readShort();
-                proximo = arquivo.readLong();
-                if (tamanhoEspaco < tamanho) {
-                    if (anterior == 4)
-                        arquivo.seek(anterior);
+        compactador = new Thread(() -> {
+            try {
+                while (!encerramento.await(intervaloMs, TimeUnit.MILLISECONDS)) {
+                    try {
+                        if (deveCompactar(limite))
+                            compactaEmSegundoPlano();
+                    } catch (IllegalStateException e) {
+                        // Arquivo compartilhado por outra instância, ou já em
+                        // compactação: tenta de novo na próxima verificação
+                    }
+                }
+            } catch (Exception e) {
+                // Erro de E/S: a compactação automática é abandonada; o
+                // arquivo continua utilizável sem ela
+            }
+        }, "compactacao-" + nomeArquivo);
+        compactador.setDaemon(true);
+        compactador.start();
+    }
+
+    private void compactaEmSegundoPlano() throws Exception {
+        Compactacao c = iniciaCompactacao();
+        try {
+            boolean encerrado = false;
+            while (!encerrado && c.passo(LOTE_COMPACTACAO))
+                encerrado = encerramento.await(PAUSA_COMPACTACAO_MS, TimeUnit.MILLISECONDS);
+            if (encerrado || encerramento.getCount() == 0)
+                c.cancela();
+            else
+                c.conclui();
+        } catch (Exception e) {
+            c.cancela();
+            throw e;
+        }
+    }
+
+    private boolean deveCompactar(double limite) throws Exception {
+        return comTravaDeLeitura(() -> espacoLivre.getBytesLivres() >= MINIMO_COMPACTACAO && fracaoLivre() > limite);
+    }
+
+    // Fração do arquivo de dados ocupada por espaços livres (registros
+    // excluídos e espaços deixados pelos registros que mudaram de lugar)
+    public double fracaoLivre() throws Exception {
+        return comTravaDeLeitura(() -> {
+            long dados = arquivo.tamanho() - TAM_CABECALHO;
+            return dados <= 0 ? 0.0 : (double) espacoLivre.getBytesLivres() / dados;
+        });
+    }
+
+    // Inicia uma compactação feita em passos (por exemplo, por uma thread em
+    // segundo plano). Entre um passo e outro, o arquivo continua sendo lido e
+    // alterado normalmente; os registros alterados depois de copiados são
+    // copiados novamente na conclusão.
+    public Compactacao iniciaCompactacao() throws Exception {
+        return log.executaExclusivo(() -> {
+            if (compactacao != null)
+                throw new IllegalStateException("Já há uma compactação em andamento");
+            if (arquivo instanceof ArmazenamentoRegistrado) {
+                synchronized (log) {
+                    if (((ArmazenamentoRegistrado) arquivo).referencias > 1)
+                        throw new IllegalStateException("O arquivo de dados está aberto em outra instância");
+                }
+            }
+            compactacao = new Compactacao();
+            return compactacao;
+        });
+    }
+
+    // Estado de uma compactação. Os passos e a conclusão são executados com
+    // as transações suspensas (LogTransacoes.executaExclusivo), de modo que
+    // cada um vê o arquivo em um estado consistente. As leituras só esperam
+    // durante a troca dos arquivos, na conclusão.
+    //
+    // A conclusão grava, antes de trocar os arquivos, o mapa com os novos
+    // endereços de todos os registros. A partir desse ponto, uma compactação
+    // interrompida por uma queda é completada na próxima abertura do arquivo;
+    // antes dele, ela é simplesmente descartada.
+    public class Compactacao {
+        private final Path temporario = Paths.get("./dados/" + nomeArquivo + ".db.compacta");
+        private final Armazenamento destino;
+        private final long fimOrigem; // os registros gravados além deste ponto são tratados como alterados
+        private long pos = TAM_CABECALHO; // próximo registro do arquivo atual a copiar
+        private long fimDestino = TAM_CABECALHO;
+        private final HashMap<Integer, Long> copias = new HashMap<>(); // ID -> endereço da cópia
+        final HashSet<Integer> alterados = new HashSet<>(); // IDs alterados desde o início
+
+        private Compactacao() throws Exception {
+            Files.deleteIfExists(temporario);
+            destino = Armazenamento.abreDireto(temporario.toString(), Armazenamento.Tipo.ARQUIVO);
+            destino.defineTamanho(TAM_CABECALHO);
+            fimOrigem = arquivo.tamanho();
+        }
+
+        // Copia até 'quantidade' registros ativos. Retorna false quando todos
+        // os registros existentes no início da compactação já foram copiados.
+        public boolean passo(int quantidade) throws Exception {
+            return log.executaExclusivo(() -> {
+                verificaAtiva();
+                ByteArrayOutputStream lote = new ByteArrayOutputStream();
+                long inicioLote = fimDestino;
+                int copiados = 0;
+                while (copiados < quantidade && pos + 3 <= fimOrigem) {
+                    byte lapide = arquivo.leByte(pos);
+                    int tam = arquivo.leShort(pos + 1);
+                    if (lapide == ' ') {
+                        byte[] vb = new byte[tam];
+                        arquivo.le(pos + 3, vb);
+                        T entidade = construtor.newInstance();
+                        entidade.fromByteArray(vb);
+                        copia(entidade, lote);
+                        copiados++;
+                    }
+                    pos += 3 + tam;
+                }
+                destino.escreve(inicioLote, lote.toByteArray());
+                return pos + 3 <= fimOrigem;
+            });
+        }
+
+        // Copia o registro para o fim do lote, descartando uma cópia anterior.
+        // Os dados são serializados novamente: a folga de um espaço
+        // reaproveitado maior que o registro não é copiada.
+        private void copia(T entidade, ByteArrayOutputStream lote) throws Exception {
+            descartaCopia(entidade.getID());
+            byte[] vb = entidade.toByteArray();
+            lote.write(' ');
+            lote.write(vb.length >> 8);
+            lote.write(vb.length);
+            lote.write(vb);
+            copias.put(entidade.getID(), fimDestino);
+            alterados.remove(entidade.getID());
+            fimDestino += 3 + vb.length;
+        }
+
+        private void descartaCopia(int id) throws Exception {
+            Long anterior = copias.remove(id);
+            if (anterior != null)
+                destino.escreveByte(anterior, '*');
+        }
+
+        // Copia o que faltar, recopia os registros alterados e troca os arquivos
+        public void conclui() throws Exception {
+            log.executaExclusivo(() -> comTravaDeEscrita(() -> {
+                verificaAtiva();
+                while (passo(LOTE_COMPACTACAO))
+                    ;
+
+                ByteArrayOutputStream lote = new ByteArrayOutputStream();
+                long inicioLote = fimDestino;
+                for (int id : new ArrayList<>(alterados)) {
+                    T entidade = read(id);
+                    if (entidade == null)
+                        descartaCopia(id);
                     else
-                        arquivo.seek(anterior + 3);
-                    arquivo.writeLong(enderecoEspaco);
-                    arquivo.seek(enderecoEspaco + 3);
-                    arquivo.writeLong(endereco);
-                    return;
+                        copia(entidade, lote);
                 }
-                anterior = endereco;
-                endereco = proximo;
-            } while (endereco == -1);
-            return;
+                destino.escreve(inicioLote, lote.toByteArray());
+                destino.escreveInt(0, arquivo.leInt(0));
+                destino.escreveLong(4, -1);
+                destino.sincroniza();
+                destino.close();
+
+                // Ponto de confirmação
+                MapaCompactacao mapa = new MapaCompactacao(copias);
+                mapa.grava(caminhoMapa());
+
+                // O fechamento aplica ao arquivo antigo o que ainda estiver no
+                // log, para que nada dele seja reaplicado sobre o novo
+                espacoLivre.fecha();
+                espacoLivre = null;
+                Files.deleteIfExists(Paths.get("./dados/" + nomeArquivo + ".vazios.db"));
+                arquivo.close();
+                Files.move(temporario, Paths.get("./dados/" + nomeArquivo + ".db"),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                compactacao = null;
+                arquivo = Armazenamento.abre("./dados/" + nomeArquivo + ".db", tipo);
+                espacoLivre = EspacoLivre.abre("./dados/" + nomeArquivo + ".db",
+                        "./dados/" + nomeArquivo + ".vazios.db", arquivo, TAM_CABECALHO);
+                aplicaMapa(mapa);
+                return null;
+            }));
+        }
+
+        // Abandona a compactação, apagando o arquivo parcial
+        public void cancela() throws Exception {
+            log.executaExclusivo(() -> {
+                if (compactacao == this) {
+                    compactacao = null;
+                    destino.close();
+                    Files.deleteIfExists(temporario);
+                }
+                return null;
+            });
         }
 
+        private void verificaAtiva() {
+            if (compactacao != this)
+                throw new IllegalStateException("A compactação já foi encerrada");
+        }
+    }
+
+    private Path caminhoMapa() {
+        return Paths.get("./dados/" + nomeArquivo + ".db.compacta.mapa");
+    }
+
+    // Completa (ou descarta) uma compactação interrompida. Chamado antes da
+    // abertura do arquivo de dados; o mapa retornado é aplicado ao índice
+    // direto depois que ele for aberto.
+    private MapaCompactacao recuperaCompactacao() throws Exception {
+        Path temporario = Paths.get("./dados/" + nomeArquivo + ".db.compacta");
+        MapaCompactacao mapa = MapaCompactacao.le(caminhoMapa());
+        if (mapa == null) {
+            Files.deleteIfExists(caminhoMapa());
+            Files.deleteIfExists(temporario);
+            return null;
+        }
+        if (Files.exists(temporario))
+            Files.move(temporario, Paths.get("./dados/" + nomeArquivo + ".db"), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        Files.deleteIfExists(Paths.get("./dados/" + nomeArquivo + ".vazios.db"));
+        return mapa;
+    }
+
+    // Atualiza o índice direto com os novos endereços e apaga o mapa. Se a
+    // aplicação for interrompida, ela é refeita por inteiro na próxima
+    // abertura (as atualizações podem ser repetidas).
+    private void aplicaMapa(MapaCompactacao mapa) throws Exception {
+        log.executa(() -> {
+            for (int i = 0; i < mapa.ids.length; i++)
+                indiceDireto.update(mapa.ids[i], mapa.enderecos[i]);
+            return null;
+        });
+        Files.deleteIfExists(caminhoMapa());
+    }
+
+    // Novos endereços dos registros de uma compactação. Formato:
+    // int quantidade, (int ID, long endereço) * quantidade, int crc32
+    private static class MapaCompactacao {
+        final int[] ids;
+        final long[] enderecos;
+
+        MapaCompactacao(HashMap<Integer, Long> copias) {
+            ids = new int[copias.size()];
+            enderecos = new long[copias.size()];
+            int i = 0;
+            for (HashMap.Entry<Integer, Long> e : copias.entrySet()) {
+                ids[i] = e.getKey();
+                enderecos[i++] = e.getValue();
+            }
+        }
+
+        private MapaCompactacao(int[] ids, long[] enderecos) {
+            this.ids = ids;
+            this.enderecos = enderecos;
+        }
+
+        void grava(Path caminho) throws Exception {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(8 + ids.length * 12);
+            DataOutputStream dos = new DataOutputStream(baos);
+            dos.writeInt(ids.length);
+            for (int i = 0; i < ids.length; i++) {
+                dos.writeInt(ids[i]);
+                dos.writeLong(enderecos[i]);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(baos.toByteArray());
+            dos.writeInt((int) crc.getValue());
+            try (FileOutputStream fos = new FileOutputStream(caminho.toFile())) {
+                baos.writeTo(fos);
+                fos.getFD().sync();
+            }
+        }
+
+        // Retorna null se o mapa não existir ou estiver incompleto
+        static MapaCompactacao le(Path caminho) throws Exception {
+            if (!Files.exists(caminho))
+                return null;
+            byte[] ba = Files.readAllBytes(caminho);
+            if (ba.length < 8)
+                return null;
+            CRC32 crc = new CRC32();
+            crc.update(ba, 0, ba.length - 4);
+            ByteBuffer bb = ByteBuffer.wrap(ba);
+            int n = bb.getInt();
+            if (bb.getInt(ba.length - 4) != (int) crc.getValue() || ba.length != 8 + n * 12)
+                return null;
+            int[] ids = new int[n];
+            long[] enderecos = new long[n];
+            for (int i = 0; i < n; i++) {
+                ids[i] = bb.getInt();
+                enderecos[i] = bb.getLong();
+            }
+            return new MapaCompactacao(ids, enderecos);
+        }
+    }
+
+    // Tamanho do buffer reaproveitado pelas varreduras sequenciais. Como o
+    // tamanho de um registro é um short, qualquer registro cabe nele.
+    public static final int TAM_BUFFER_VARREDURA = 64 * 1024;
+
+    // Percorre o arquivo de forma preguiçosa: cada registro só é lido e
+    // decodificado quando o próximo elemento é pedido. Registros excluídos
+    // ('*') são saltados sem decodificação. O filtro pode ser null.
+    public Iterator<T> iterador(Predicate<T> filtro) {
+        return new Varredura(filtro);
+    }
+
+    public Stream<T> stream(Predicate<T> filtro) {
+        return StreamSupport.stream(
+                Spliterators.spliteratorUnknownSize(iterador(filtro), Spliterator.ORDERED | Spliterator.NONNULL),
+                false);
+    }
+
+    public Stream<T> stream() {
+        return stream(null);
+    }
+
+    // Reconstrói, a partir dos registros aceitos pelo filtro (que pode ser
+    // null), um índice de hash em que a chave deve ser única (e-mail, código,
+    // GTIN). 'par' gera o elemento do índice de cada registro, e 'chave' dá a
+    // chave (já normalizada) desse elemento. Os pares são incluídos em uma única transação: se ela não for
+    // concluída, o índice continua vazio e pode ser reconstruído na próxima
+    // abertura. Os arquivos indicados (de um índice anterior) só são apagados
+    // depois disso.
+    //
+    // Bases antigas podem ter registros com a mesma chave (o registro era
+    // gravado antes de o índice recusar a chave repetida). Cada chave fica com
+    // o registro de menor ID; os demais ficam fora do índice e os seus IDs
+    // são acrescentados a idsRepetidos. Como eles continuam no arquivo, as
+    // exclusões do índice feitas em nome deles devem usar deleteExato(), para
+    // não apagar o par do registro que ficou com a chave.
+    protected <P extends RegistroHashExtensivel> void reconstroiIndiceUnico(HashExtensivel<P> indice,
+            Predicate<T> filtro, Function<T, P> par, Function<P, String> chave, String... arquivosAntigos)
+            throws Exception {
+        HashMap<String, Map.Entry<Integer, P>> pares = new HashMap<>();
+        ArrayList<Integer> repetidos = new ArrayList<>();
+        Iterator<T> it = iterador(filtro);
+        while (it.hasNext()) {
+            T entidade = it.next();
+            Map.Entry<Integer, P> novo = Map.entry(entidade.getID(), par.apply(entidade));
+            String k = chave.apply(novo.getValue());
+            Map.Entry<Integer, P> outro = pares.putIfAbsent(k, novo);
+            if (outro != null) {
+                if (novo.getKey() < outro.getKey())
+                    pares.put(k, novo);
+                repetidos.add(Math.max(novo.getKey(), outro.getKey()));
+            }
+        }
+        if (!pares.isEmpty()) {
+            ArrayList<P> elementos = new ArrayList<>(pares.size());
+            for (Map.Entry<Integer, P> e : pares.values())
+                elementos.add(e.getValue());
+            indice.createAll(elementos);
+        }
+        for (String nomeArquivo : arquivosAntigos)
+            new File(nomeArquivo).delete();
+
+        repetidos.sort(null);
+        idsRepetidos.addAll(repetidos);
+    }
+
+    // IDs dos registros deixados fora de um índice de chave única, na
+    // reconstrução feita nesta abertura, por repetirem a chave de outro
+    // registro (ver reconstroiIndiceUnico)
+    public ArrayList<Integer> getIdsRepetidos() {
+        return new ArrayList<>(idsRepetidos);
+    }
+
+    private class Varredura implements Iterator<T> {
+        private final Predicate<T> filtro;
+        private final byte[] buffer = new byte[TAM_BUFFER_VARREDURA];
+        private long inicioBuffer = 0; // endereço no arquivo do primeiro byte do buffer
+        private int bytesNoBuffer = 0;
+        private long pos = TAM_CABECALHO; // endereço do próximo registro
+        private final long fim;
+        private T proximo;
+
+        Varredura(Predicate<T> filtro) {
+            this.filtro = filtro;
+            try {
+                this.fim = arquivo.tamanho();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        // Garante que os bytes [pos, pos + quantidade) estejam no buffer. Cada
+        // leitura do arquivo é feita com a trava de leitura, mas a varredura
+        // como um todo não a mantém: alterações feitas enquanto ela avança
+        // podem ou não ser vistas.
+        private void garante(int quantidade) throws Exception {
+            if (pos >= inicioBuffer && pos + quantidade <= inicioBuffer + bytesNoBuffer)
+                return;
+            inicioBuffer = pos;
+            bytesNoBuffer = (int) Math.min(buffer.length, fim - pos);
+            comTravaDeLeitura(() -> {
+                arquivo.le(pos, buffer, 0, bytesNoBuffer);
+                return null;
+            });
+        }
+
+        private T avanca() throws Exception {
+            while (pos + 3 <= fim) {
+                garante(3);
+                int i = (int) (pos - inicioBuffer);
+                byte lapide = buffer[i];
+                short tam = (short) (((buffer[i + 1] & 0xFF) << 8) | (buffer[i + 2] & 0xFF));
+                if (tam < 0 || pos + 3 + tam > fim)
+                    break; // registro inconsistente: encerra a varredura
+                if (lapide == ' ') {
+                    garante(3 + tam);
+                    i = (int) (pos - inicioBuffer);
+                    T entidade = construtor.newInstance();
+                    entidade.fromByteArray(Arrays.copyOfRange(buffer, i + 3, i + 3 + tam));
+                    pos += 3 + tam;
+                    if (filtro == null || filtro.test(entidade))
+                        return entidade;
+                } else {
+                    pos += 3 + tam;
+                }
+            }
+            pos = fim;
+            return null;
+        }
+
+        public boolean hasNext() {
+            if (proximo == null) {
+                try {
+                    proximo = avanca();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return proximo != null;
+        }
+
+        public T next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            T t = proximo;
+            proximo = null;
+            return t;
+        }
+    }
+
+    // Grava um registro completo (lápide, tamanho e dados) em uma única escrita
+    protected void escreveRegistro(long endereco, byte[] vb) throws Exception {
+        byte[] registro = new byte[3 + vb.length];
+        registro[0] = ' ';
+        registro[1] = (byte) (vb.length >> 8);
+        registro[2] = (byte) vb.length;
+        System.arraycopy(vb, 0, registro, 3, vb.length);
+        arquivo.escreve(endereco, registro);
+    }
+
+    // Registra o espaço de um registro que acabou de receber a lápide '*'
+    public void insereVazio(long enderecoEspaco, int tamanhoEspaco) throws Exception {
+        espacoLivre.libera(enderecoEspaco, tamanhoEspaco);
     }
 
+    // Retira o menor espaço livre que comporte o registro (ou -1 se não
+    // houver). O espaço mantém o tamanho original gravado no registro.
     public long buscaVazio(int tamanhoEspacoNecessario) throws Exception {
-        long anterior = 4;
-        long endereco;
-        long proximo = -1;
-        short tamanho;
-
-        arquivo.seek(anterior); // cabeça da lista
-        endereco = arquivo.readLong();
-
-        while (endereco != -1) {
-            arquivo.seek(endereco + 1);
-            tamanho = arquivo.readShort();
-            proximo = arquivo.readLong();
-            if (tamanhoEspacoNecessario <= tamanho) {
-                if (anterior == 4)
-                    arquivo.seek(4);
-                else
-                    arquivo.seek(anterior + 3);
-                arquivo.writeLong(proximo);
-                return endereco;
-            }
-            anterior = endereco;
-            endereco = proximo;
-        }
-
-        return -1;
+        return espacoLivre.aloca(tamanhoEspacoNecessario);
     }
 
 }
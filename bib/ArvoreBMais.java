@@ -14,7 +14,20 @@
 package bib;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.lang.reflect.Constructor;
 
 // Esta versão da árvore funciona apenas como um conjunto de par de chaves.
@@ -27,145 +40,538 @@ public class ArvoreBMais<T extends RegistroArvoreBMais<T>> {
     private int ordem; // Número máximo de filhos que uma página pode conter
     private int maxElementos; // Variável igual a ordem - 1 para facilitar a clareza do código
     private int maxFilhos; // Variável igual a ordem para facilitar a clareza do código
-    private RandomAccessFile arquivo; // Arquivo em que a árvore será armazenada
+    private Armazenamento arquivo; // Arquivo em que a árvore será armazenada
+    private LogTransacoes log;
+    private Runnable descartaCache = this::limpaCache; // usado quando uma transação é cancelada
     private String nomeArquivo;
     private Constructor<T> construtor;
 
-    // Variáveis usadas nas funções recursivas (já que não é possível passar valores
-    // por referência)
-    private T elemAux;
-    private long paginaAux;
-    private boolean cresceu;
-    private boolean diminuiu;
+    // Concorrência em dois níveis:
+    // - a trava da árvore é compartilhada por todas as operações (leituras e
+    //   alterações); só as operações sobre a árvore inteira (descarte do cache,
+    //   carga em lote e fechamento) a obtêm de forma exclusiva;
+    // - cada página tem a sua trava (latch), obtida de cima para baixo. A
+    //   leitura trava a página seguinte do caminho antes de liberar a anterior
+    //   (crabbing). A alteração mantém travadas apenas as ancestrais que ainda
+    //   podem ser alteradas (divisão ou fusão propagada): ao chegar a uma página
+    //   segura, libera as de cima. A trava da raiz protege o ponteiro para a
+    //   raiz, no cabeçalho.
+    // Nas folhas, o percurso pelo ponteiro 'proxima' é sempre da esquerda para
+    // a direita, e as fusões travam os irmãos na mesma ordem.
+    //
+    // Atenção: toda inclusão e exclusão é uma transação do LogTransacoes, e a
+    // trava do log (LogTransacoes.trava) é única para a aplicação. Ela
+    // serializa todos os escritores, desta e de todas as outras árvores,
+    // tabelas hash e arquivos; as travas das páginas não tornam as inclusões
+    // simultâneas entre si. O que elas garantem é que as leituras não esperem
+    // uma inclusão ou exclusão inteira, mas apenas as páginas que ela ocupa.
+    // (Ver bib.DesempenhoArvoreBMais.)
+    private final ReentrantReadWriteLock trava = new ReentrantReadWriteLock();
+    private final ReentrantReadWriteLock travaRaiz = new ReentrantReadWriteLock();
+    private final ConcurrentHashMap<Long, ReentrantReadWriteLock> travasPaginas = new ConcurrentHashMap<>();
+
+    // Estado de uma operação. As funções recursivas devolvem por meio dele
+    // o que não cabe no valor de retorno (já que não é possível passar
+    // valores por referência); cada chamada tem o seu, de modo que não há
+    // estado compartilhado entre operações simultâneas.
+    private class Contexto {
+        byte[] chaveAux; // elemento promovido, já serializado
+        long paginaAux;
+        boolean cresceu;
+        boolean diminuiu;
+        private ByteBuffer buffer; // leitura das páginas que não estão no cache
+        final ArrayDeque<Lock> travas = new ArrayDeque<>(); // travas mantidas, de cima para baixo
+
+        ByteBuffer buffer() {
+            if (buffer == null)
+                buffer = ByteBuffer.allocate(tamanhoPagina);
+            return buffer;
+        }
+
+        void trava(Lock l) {
+            l.lock();
+            travas.addLast(l);
+        }
+
+        // A página corrente é segura: libera todas as travas acima dela
+        void liberaAncestrais() {
+            while (travas.size() > 1)
+                travas.removeFirst().unlock();
+        }
+
+        // Libera as travas das páginas abaixo da que foi travada com 'l' (se
+        // 'l' ainda estiver mantida)
+        void liberaAbaixo(Lock l) {
+            if (!travas.contains(l))
+                return;
+            while (travas.peekLast() != l)
+                travas.removeLast().unlock();
+        }
+
+        void liberaTodas() {
+            while (!travas.isEmpty())
+                travas.removeLast().unlock();
+        }
+    }
+
+    // Cache de páginas (buffer pool) com política LRU, indexado pelo endereço
+    // da página no arquivo. As páginas alteradas ficam marcadas como sujas e
+    // só são gravadas ao final de cada operação ou quando forem despejadas
+    // (sempre dentro da transação da operação, no LogTransacoes).
+    public static final int CAPACIDADE_CACHE_PADRAO = 64;
+
+    // Tamanho de bloco sugerido para as árvores com ordem derivada do bloco
+    public static final int TAMANHO_BLOCO_PADRAO = 4096;
+
+    // Cabeçalho: raiz (long), lista de excluídos (long), MAGICO, ordem e
+    // tamanho do bloco (int). Arquivos antigos tinham apenas os dois longs.
+    private static final int MAGICO = 0x41424D32; // "ABM2"
+    private static final int TAMANHO_CABECALHO = 28;
+    private static final int ORDEM_SEM_CABECALHO = 5; // ordem usada pelos índices antes do cabeçalho
+    private static final double PREENCHIMENTO_MIGRACAO = 0.75;
+    private int capacidadeCache;
+    private int tamanhoElemento; // Os elementos são de tamanho fixo
+    private int tamanhoPagina; // Tamanho, em bytes, de cada página
+    private byte[] registroVazio; // Preenche as posições vazias das páginas no arquivo
+    private ByteBuffer bufferPagina; // Reaproveitado nas gravações de páginas (feitas com o cache sincronizado)
+    private int tamanhoBloco; // Espaço ocupado por página no arquivo (>= tamanhoPagina)
+    private LinkedHashMap<Long, Pagina> cache;
+    private long acertosCache;
+    private long faltasCache;
 
     // Esta classe representa uma página da árvore (folha ou não folha).
+    // Os elementos ficam serializados, um após o outro, em um vetor de bytes,
+    // e os ponteiros para os filhos em um vetor de longs. Assim, ler uma página
+    // não cria um objeto para cada elemento: as comparações são feitas sobre
+    // os próprios bytes e os objetos só são criados para os elementos
+    // devolvidos a quem chamou a árvore.
     private class Pagina {
 
-        protected int ordem; // Número máximo de filhos que uma página pode ter
-        protected Constructor<T> construtor;
-        protected int maxElementos; // Variável igual a ordem - 1 para facilitar a clareza do código
-        protected int maxFilhos; // Variável igual a ordem para facilitar a clareza do código
-        protected int TAMANHO_ELEMENTO; // Os elementos são de tamanho fixo
-        protected int TAMANHO_PAGINA; // A página será de tamanho fixo, calculado a partir da ordem
-
-        protected ArrayList<T> elementos; // Elementos da página
-        protected ArrayList<Long> filhos; // Vetor de ponteiros para os filhos
+        protected int n; // Quantidade de elementos presentes na página
+        protected byte[] chaves; // Elementos serializados (com espaço para um a mais, usado na divisão)
+        protected long[] filhos; // Vetor de ponteiros para os filhos (também com uma posição a mais)
         protected long proxima; // Próxima folha, quando a página for uma folha
+        protected boolean suja; // Página alterada em memória e ainda não gravada
 
-        // Construtor da página
-        public Pagina(Constructor<T> ct, int o) throws Exception {
-
-            // Inicialização dos atributos
-            this.construtor = ct;
-            this.ordem = o;
-            this.maxFilhos = this.ordem;
-            this.maxElementos = this.ordem - 1;
-            this.elementos = new ArrayList<>(this.maxElementos);
-            this.filhos = new ArrayList<>(this.maxFilhos);
+        // Construtor da página (uma folha vazia)
+        public Pagina() {
+            this.chaves = new byte[(maxElementos + 1) * tamanhoElemento];
+            this.filhos = new long[maxFilhos + 1];
+            Arrays.fill(this.filhos, -1);
             this.proxima = -1;
+        }
+
+        protected boolean folha() {
+            return filhos[0] == -1;
+        }
+
+        // Posição do i-ésimo elemento no vetor de chaves
+        protected int posicao(int i) {
+            return i * tamanhoElemento;
+        }
+
+        // Compara o elemento passado com o i-ésimo elemento da página
+        protected int compara(T elem, int i) throws IOException {
+            return elem.compareTo(chaves, posicao(i));
+        }
+
+        // Busca binária: posição do primeiro elemento maior ou igual ao
+        // elemento passado (ou n, se não houver). Com elemento null, retorna 0.
+        protected int busca(T elem) throws IOException {
+            if (elem == null)
+                return 0;
+            int ini = 0, fim = n;
+            while (ini < fim) {
+                int meio = (ini + fim) >>> 1;
+                if (compara(elem, meio) > 0)
+                    ini = meio + 1;
+                else
+                    fim = meio;
+            }
+            return ini;
+        }
+
+        // Cria o objeto correspondente ao i-ésimo elemento da página
+        protected T elemento(int i) throws Exception {
+            T elem = construtor.newInstance();
+            elem.fromByteArray(Arrays.copyOfRange(chaves, posicao(i), posicao(i + 1)));
+            return elem;
+        }
+
+        // Insere um elemento na posição i, com o seu ponteiro direito
+        protected void insere(int i, byte[] origem, int inicio, long filhoDireito) {
+            System.arraycopy(chaves, posicao(i), chaves, posicao(i + 1), posicao(n - i));
+            System.arraycopy(filhos, i + 1, filhos, i + 2, n - i);
+            System.arraycopy(origem, inicio, chaves, posicao(i), tamanhoElemento);
+            filhos[i + 1] = filhoDireito;
+            n++;
+        }
 
-            // Cálculo do tamanho (fixo) da página
-            // cada elemento -> depende do objeto
-            // cada ponteiro de filho -> 8 bytes
-            // último filho -> 8 bytes
-            // ponteiro próximo -> 8 bytes
-            this.TAMANHO_ELEMENTO = this.construtor.newInstance().size();
-            this.TAMANHO_PAGINA = 4 + this.maxElementos * this.TAMANHO_ELEMENTO + this.maxFilhos * 8 + 8;
+        // Insere um elemento no início da página, com o seu ponteiro esquerdo
+        protected void insereInicio(byte[] origem, int inicio, long filhoEsquerdo) {
+            System.arraycopy(chaves, 0, chaves, posicao(1), posicao(n));
+            System.arraycopy(filhos, 0, filhos, 1, n + 1);
+            System.arraycopy(origem, inicio, chaves, 0, tamanhoElemento);
+            filhos[0] = filhoEsquerdo;
+            n++;
         }
 
-        // Retorna o vetor de bytes que representa a página para armazenamento em
-        // arquivo
-        protected byte[] toByteArray() throws IOException {
+        // Remove o i-ésimo elemento e o seu ponteiro direito
+        protected void remove(int i) {
+            System.arraycopy(chaves, posicao(i + 1), chaves, posicao(i), posicao(n - i - 1));
+            System.arraycopy(filhos, i + 2, filhos, i + 1, n - i - 1);
+            n--;
+        }
+
+        // Remove o primeiro elemento e o seu ponteiro esquerdo
+        protected void removeInicio() {
+            System.arraycopy(chaves, posicao(1), chaves, 0, posicao(n - 1));
+            System.arraycopy(filhos, 1, filhos, 0, n);
+            n--;
+        }
+
+        // Substitui o i-ésimo elemento
+        protected void defineElemento(int i, byte[] origem, int inicio) {
+            System.arraycopy(origem, inicio, chaves, posicao(i), tamanhoElemento);
+        }
+
+        // Acrescenta ao fim desta página os elementos da outra e os seus
+        // ponteiros, exceto o primeiro (usado na fusão de páginas)
+        protected void anexa(Pagina outra) {
+            System.arraycopy(outra.chaves, 0, chaves, posicao(n), posicao(outra.n));
+            System.arraycopy(outra.filhos, 1, filhos, n + 1, outra.n);
+            n += outra.n;
+        }
 
-            // Um fluxo de bytes é usado para construção do vetor de bytes
-            ByteArrayOutputStream ba = new ByteArrayOutputStream();
-            DataOutputStream out = new DataOutputStream(ba);
+        // Escreve a página no buffer, no formato do arquivo
+        protected void codifica(ByteBuffer buffer) {
+            buffer.clear();
 
             // Quantidade de elementos presentes na página
-            out.writeInt(this.elementos.size());
+            buffer.putInt(n);
 
             // Escreve todos os elementos
             int i = 0;
-            while (i < this.elementos.size()) {
-                out.writeLong(this.filhos.get(i).longValue());
-                out.write(this.elementos.get(i).toByteArray());
+            while (i < n) {
+                buffer.putLong(filhos[i]);
+                buffer.put(chaves, posicao(i), tamanhoElemento);
                 i++;
             }
-            if (this.filhos.size() > 0)
-                out.writeLong(this.filhos.get(i).longValue());
-            else
-                out.writeLong(-1L);
+            buffer.putLong(filhos[i]);
 
             // Completa o restante da página com registros vazios
-            byte[] registroVazio = new byte[TAMANHO_ELEMENTO];
-            while (i < this.maxElementos) {
-                out.write(registroVazio);
-                out.writeLong(-1L);
+            while (i < maxElementos) {
+                buffer.put(registroVazio);
+                buffer.putLong(-1L);
                 i++;
             }
 
             // Escreve o ponteiro para a próxima página
-            out.writeLong(this.proxima);
-
-            // Retorna o vetor de bytes que representa a página
-            return ba.toByteArray();
+            buffer.putLong(proxima);
         }
 
-        // Reconstrói uma página a partir de um vetor de bytes lido no arquivo
-        public void fromByteArray(byte[] buffer) throws Exception {
-
-            // Usa um fluxo de bytes para leitura dos atributos
-            ByteArrayInputStream ba = new ByteArrayInputStream(buffer);
-            DataInputStream in = new DataInputStream(ba);
+        // Reconstrói a página a partir do buffer lido no arquivo
+        protected void decodifica(ByteBuffer buffer) {
+            buffer.clear();
 
             // Lê a quantidade de elementos da página
-            int n = in.readInt();
+            n = buffer.getInt();
 
-            // Lê todos os elementos (reais ou vazios)
+            // Lê os elementos reais, salta os vazios e lê o ponteiro para a
+            // próxima página
             int i = 0;
-            this.elementos = new ArrayList<>(this.maxElementos);
-            this.filhos = new ArrayList<>(this.maxFilhos);
-            T elem;
             while (i < n) {
-                this.filhos.add(in.readLong());
-                byte[] registro = new byte[TAMANHO_ELEMENTO];
-                in.read(registro);
-                elem = this.construtor.newInstance();
-                elem.fromByteArray(registro);
-                this.elementos.add(elem);
+                filhos[i] = buffer.getLong();
+                buffer.get(chaves, posicao(i), tamanhoElemento);
                 i++;
             }
-            this.filhos.add(in.readLong());
-            in.skipBytes((this.maxElementos - i) * (TAMANHO_ELEMENTO + 8));
-            this.proxima = in.readLong();
+            filhos[i] = buffer.getLong();
+            buffer.position(tamanhoPagina - 8);
+            proxima = buffer.getLong();
         }
     }
 
     // ------------------------------------------------------------------------------
 
     public ArvoreBMais(Constructor<T> c, int o, String na) throws Exception {
+        this(c, o, na, CAPACIDADE_CACHE_PADRAO);
+    }
+
+    // Árvore com ordem fixa: cada página ocupa exatamente o seu tamanho no
+    // arquivo, sem alinhamento.
+    public ArvoreBMais(Constructor<T> c, int o, String na, int capacidadeCache) throws Exception {
+        this(c, o, 0, o, na, capacidadeCache);
+    }
+
+    // Árvore com a ordem derivada do tamanho do bloco (por exemplo, 4 KiB):
+    // a maior ordem cuja página cabe no bloco. As páginas ficam alinhadas aos
+    // blocos no arquivo, de modo que cada leitura ou escrita de página
+    // corresponde a um bloco do sistema de arquivos.
+    public ArvoreBMais(Constructor<T> c, String na, int tamanhoBloco) throws Exception {
+        this(c, na, tamanhoBloco, CAPACIDADE_CACHE_PADRAO);
+    }
+
+    public ArvoreBMais(Constructor<T> c, String na, int tamanhoBloco, int capacidadeCache) throws Exception {
+        this(c, ordemParaBloco(c, tamanhoBloco), tamanhoBloco, ORDEM_SEM_CABECALHO, na, capacidadeCache);
+    }
+
+    // tamanhoBloco == 0 indica blocos do tamanho exato da página. A ordem
+    // 'ordemSemCabecalho' é a usada para ler arquivos gravados antes do
+    // cabeçalho, que não registram a sua ordem.
+    private ArvoreBMais(Constructor<T> c, int o, int tamanhoBloco, int ordemSemCabecalho, String na,
+            int capacidadeCache) throws Exception {
 
         // Inicializa os atributos da árvore
         construtor = c;
-        ordem = o;
-        maxElementos = o - 1;
-        maxFilhos = o;
         nomeArquivo = na;
+        defineOrdem(o, tamanhoBloco);
+        if (this.tamanhoBloco < this.tamanhoPagina)
+            throw new IllegalArgumentException("O bloco de " + tamanhoBloco + " bytes não comporta uma página de ordem " + o);
+
+        // O cache precisa comportar ao menos as páginas usadas ao mesmo tempo
+        // em uma fusão (pai, filho e os dois irmãos)
+        this.capacidadeCache = Math.max(capacidadeCache, 8);
+        this.cache = new LinkedHashMap<>(16, 0.75f, true);
 
         // Abre (ou cria) o arquivo, escrevendo uma raiz empty, se necessário.
-        arquivo = new RandomAccessFile(nomeArquivo, "rw");
-        if (arquivo.length() < 16) {
-            arquivo.writeLong(-1); // raiz empty
-            arquivo.writeLong(-1); // pointeiro lista excluídos
+        arquivo = Armazenamento.abre(nomeArquivo, Armazenamento.Tipo.ARQUIVO);
+        log = LogTransacoes.instancia();
+        if (arquivo.tamanho() == 0) {
+            log.inicia();
+            escreveCabecalho(arquivo, -1); // raiz empty
+            log.confirma();
+        } else {
+            // Arquivo gravado com outra ordem (ou sem cabeçalho): reconstrói
+            // a árvore na ordem pedida
+            boolean semCabecalho = arquivo.tamanho() < TAMANHO_CABECALHO || arquivo.leInt(16) != MAGICO;
+            int ordemArquivo = semCabecalho ? ordemSemCabecalho : arquivo.leInt(20);
+            int blocoArquivo = semCabecalho ? -1 : arquivo.leInt(24);
+            if (ordemArquivo != ordem || blocoArquivo != this.tamanhoBloco)
+                migra(ordemArquivo);
         }
+        log.adicionaOuvinteCancelamento(descartaCache);
+    }
+
+    // Maior ordem cuja página cabe em um bloco do tamanho dado
+    public static int ordemParaBloco(Constructor<?> c, int tamanhoBloco) throws Exception {
+        int tamanhoElemento = ((RegistroArvoreBMais<?>) c.newInstance()).size();
+        // página = 4 + (ordem - 1) * elemento + ordem * 8 + 8
+        int o = (tamanhoBloco - 12 + tamanhoElemento) / (tamanhoElemento + 8);
+        if (o < 3)
+            throw new IllegalArgumentException("O bloco de " + tamanhoBloco + " bytes é pequeno demais para a árvore");
+        return o;
+    }
+
+    private void defineOrdem(int o, int tamanhoBloco) throws Exception {
+        ordem = o;
+        maxElementos = o - 1;
+        maxFilhos = o;
+
+        // Cálculo do tamanho (fixo) da página
+        // quantidade de elementos -> 4 bytes
+        // cada elemento -> depende do objeto
+        // cada ponteiro de filho -> 8 bytes
+        // ponteiro próximo -> 8 bytes
+        this.tamanhoElemento = construtor.newInstance().size();
+        this.tamanhoPagina = 4 + maxElementos * tamanhoElemento + maxFilhos * 8 + 8;
+        this.registroVazio = new byte[tamanhoElemento];
+        this.bufferPagina = ByteBuffer.allocate(tamanhoPagina);
+        this.tamanhoBloco = tamanhoBloco == 0 ? this.tamanhoPagina : tamanhoBloco;
+    }
+
+    // O cabeçalho ocupa o primeiro bloco do arquivo; as páginas começam no
+    // bloco seguinte
+    private void escreveCabecalho(Armazenamento destino, long raiz) throws IOException {
+        byte[] cabecalho = new byte[tamanhoBloco];
+        ByteArrayOutputStream ba = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(ba);
+        out.writeLong(raiz);
+        out.writeLong(-1); // pointeiro lista excluídos
+        out.writeInt(MAGICO);
+        out.writeInt(ordem);
+        out.writeInt(tamanhoBloco);
+        System.arraycopy(ba.toByteArray(), 0, cabecalho, 0, TAMANHO_CABECALHO);
+        destino.escreve(0, cabecalho);
+    }
+
+    // Lê todos os elementos com a ordem em que o arquivo foi gravado e os
+    // recarrega, em lote, na ordem atual. As páginas guardam endereços
+    // absolutos, então basta conhecer a ordem antiga para percorrê-las.
+    private void migra(int ordemArquivo) throws Exception {
+        int o = ordem, bloco = tamanhoBloco;
+        defineOrdem(ordemArquivo, 0);
+        ArrayList<T> elementos = read(null, Integer.MAX_VALUE);
+        limpaCache();
+        defineOrdem(o, bloco);
+        carregaEmLote(elementos.iterator(), PREENCHIMENTO_MIGRACAO);
     }
 
     // Testa se a árvore está empty. Uma árvore empty é identificada pela raiz == -1
     public boolean empty() throws IOException {
-        long raiz;
-        arquivo.seek(0);
-        raiz = arquivo.readLong();
-        return raiz == -1;
+        trava.readLock().lock();
+        travaRaiz.readLock().lock();
+        try {
+            long raiz;
+            raiz = arquivo.leLong(0);
+            return raiz == -1;
+        } finally {
+            travaRaiz.readLock().unlock();
+            trava.readLock().unlock();
+        }
+    }
+
+    // Recupera uma página, preferencialmente a partir do cache. Em caso de falta,
+    // a página é lida do arquivo e passa a ocupar o cache, despejando a menos
+    // recentemente usada se necessário. O acesso ao cache é sincronizado, pois
+    // várias leituras podem acontecer ao mesmo tempo.
+    private Pagina lePagina(Contexto ctx, long endereco) throws Exception {
+        synchronized (cache) {
+            Pagina pa = cache.get(endereco);
+            if (pa != null) {
+                acertosCache++;
+                return pa;
+            }
+            faltasCache++;
+        }
+        Pagina pa = new Pagina();
+        arquivo.le(endereco, ctx.buffer().array(), 0, tamanhoPagina);
+        pa.decodifica(ctx.buffer());
+        synchronized (cache) {
+            Pagina outra = cache.putIfAbsent(endereco, pa); // lida ao mesmo tempo por outra thread
+            if (outra != null)
+                return outra;
+            despejaExcedente();
+        }
+        return pa;
+    }
+
+    private ReentrantReadWriteLock travaDaPagina(long endereco) {
+        return travasPaginas.computeIfAbsent(endereco, e -> new ReentrantReadWriteLock());
+    }
+
+    // Leitura acoplada: trava a página para leitura e só então libera a
+    // trava anterior do caminho (página de cima ou folha à esquerda)
+    private Pagina lePaginaAcoplada(Contexto ctx, long endereco) throws Exception {
+        Lock l = travaDaPagina(endereco).readLock();
+        l.lock();
+        ctx.liberaTodas();
+        ctx.travas.addLast(l);
+        return lePagina(ctx, endereco);
+    }
+
+    // Trava a página para alteração e a lê
+    private Pagina lePaginaParaEscrita(Contexto ctx, long endereco) throws Exception {
+        ctx.trava(travaDaPagina(endereco).writeLock());
+        return lePagina(ctx, endereco);
+    }
+
+    // Registra a página como alterada. A gravação no arquivo é adiada até o
+    // fim da operação (descarregaCache) ou até o despejo da página.
+    private void escrevePagina(long endereco, Pagina pa) throws Exception {
+        pa.suja = true;
+        synchronized (cache) {
+            cache.put(endereco, pa);
+            despejaExcedente();
+        }
+    }
+
+    // Obtém o endereço para uma nova página. Testa se há páginas excluídas e,
+    // se não houver, reserva o espaço no fim do arquivo (a gravação da página
+    // pode ser adiada pelo cache, então o arquivo já é estendido aqui).
+    // A lista de excluídos só é usada pelas alterações, que são serializadas
+    // pelas transações do log; as páginas dela não são alcançáveis pelas
+    // leituras e, por isso, não precisam ser travadas.
+    private long alocaPagina(Contexto ctx) throws Exception {
+        long end = arquivo.leLong(8);
+        if (end == -1) {
+            end = arquivo.tamanho();
+            arquivo.defineTamanho(end + tamanhoBloco);
+        } else { // reusa um endereço e atualiza a lista de excluídos no cabeçalho
+            Pagina pa_excluida = lePagina(ctx, end);
+            arquivo.escreveLong(8, pa_excluida.proxima);
+        }
+        return end;
+    }
+
+    // Remove do cache as páginas menos recentemente usadas, gravando as sujas.
+    // Chamado com o cache sincronizado. As páginas sujas pertencem à alteração
+    // em andamento e só são gravadas pela thread dela (dentro da sua
+    // transação); uma leitura simultânea as deixa no cache.
+    private void despejaExcedente() throws Exception {
+        boolean gravaSujas = log.emTransacao();
+        Iterator<Map.Entry<Long, Pagina>> it = cache.entrySet().iterator();
+        while (cache.size() > capacidadeCache && it.hasNext()) {
+            Map.Entry<Long, Pagina> e = it.next();
+            if (e.getValue().suja) {
+                if (!gravaSujas)
+                    continue;
+                gravaPagina(e.getKey(), e.getValue());
+            }
+            it.remove();
+        }
+    }
+
+    private void gravaPagina(long endereco, Pagina pa) throws Exception {
+        pa.codifica(bufferPagina);
+        arquivo.escreve(endereco, bufferPagina.array(), 0, tamanhoPagina);
+        pa.suja = false;
+    }
+
+    // Grava no arquivo todas as páginas sujas que estão no cache
+    public void descarregaCache() throws Exception {
+        synchronized (cache) {
+            for (Map.Entry<Long, Pagina> e : cache.entrySet())
+                if (e.getValue().suja)
+                    gravaPagina(e.getKey(), e.getValue());
+        }
+    }
+
+    // Descarta as páginas do cache (por exemplo, quando a transação que as
+    // alterou é cancelada). Espera as operações em andamento terminarem.
+    private void limpaCache() {
+        trava.writeLock().lock();
+        try {
+            synchronized (cache) {
+                cache.clear();
+            }
+        } finally {
+            trava.writeLock().unlock();
+        }
+    }
+
+    // Contadores do cache, úteis para o seu dimensionamento
+    public long getAcertosCache() {
+        synchronized (cache) {
+            return acertosCache;
+        }
+    }
+
+    public long getFaltasCache() {
+        synchronized (cache) {
+            return faltasCache;
+        }
+    }
+
+    public void zeraContadoresCache() {
+        synchronized (cache) {
+            acertosCache = 0;
+            faltasCache = 0;
+        }
+    }
+
+    public void close() throws Exception {
+        log.executaExclusivo(() -> {
+            trava.writeLock().lock();
+            try {
+                descarregaCache();
+                cache.clear();
+                log.removeOuvinteCancelamento(descartaCache);
+                arquivo.close();
+            } finally {
+                trava.writeLock().unlock();
+            }
+            return null;
+        });
     }
 
     // Busca recursiva por um elemento a partir da chave. Este metodo invoca
@@ -173,24 +579,76 @@ public class ArvoreBMais<T extends RegistroArvoreBMais<T>> {
     // O método retorna a lista de elementos que possuem a chave (considerando
     // a possibilidade chaves repetidas)
     public ArrayList<T> read(T elem) throws Exception {
+        trava.readLock().lock();
+        Contexto ctx = new Contexto();
+        try {
+            // Recupera a raiz da árvore
+            long raiz;
+            ctx.trava(travaRaiz.readLock());
+            raiz = arquivo.leLong(0);
+
+            // Executa a busca recursiva
+            if (raiz != -1)
+                return read1(ctx, elem, raiz);
+            else {
+                ArrayList<T> resposta = new ArrayList<>();
+                return resposta;
+            }
+        } finally {
+            ctx.liberaTodas();
+            trava.readLock().unlock();
+        }
+    }
 
-        // Recupera a raiz da árvore
-        long raiz;
-        arquivo.seek(0);
-        raiz = arquivo.readLong();
+    // Leitura por intervalo: retorna até 'quantidade' elementos, em ordem,
+    // a partir do primeiro elemento maior ou igual a 'inicio' (ou do início
+    // da árvore, se 'inicio' for null). A descida é feita uma única vez e,
+    // a partir da folha encontrada, as folhas seguintes são percorridas pelo
+    // ponteiro 'proxima'. Usado, por exemplo, para paginação.
+    public ArrayList<T> read(T inicio, int quantidade) throws Exception {
+        trava.readLock().lock();
+        Contexto ctx = new Contexto();
+        try {
+            ArrayList<T> lista = new ArrayList<>();
 
-        // Executa a busca recursiva
-        if (raiz != -1)
-            return read1(elem, raiz);
-        else {
-            ArrayList<T> resposta = new ArrayList<>();
-            return resposta;
+            // Recupera a raiz da árvore
+            long raiz;
+            ctx.trava(travaRaiz.readLock());
+            raiz = arquivo.leLong(0);
+            if (raiz == -1 || quantidade <= 0)
+                return lista;
+
+            // Desce até a folha em que o início do intervalo deve estar
+            Pagina pa = lePaginaAcoplada(ctx, raiz);
+            while (!pa.folha()) {
+                pa = lePaginaAcoplada(ctx, pa.filhos[pa.busca(inicio)]);
+            }
+
+            // Ultrapassa os elementos menores que o início do intervalo
+            int i = pa.busca(inicio);
+
+            // Copia os elementos, avançando pelas folhas seguintes quando preciso
+            while (lista.size() < quantidade) {
+                if (i == pa.n) {
+                    if (pa.proxima == -1)
+                        break;
+                    pa = lePaginaAcoplada(ctx, pa.proxima);
+                    i = 0;
+                    continue;
+                }
+                lista.add(pa.elemento(i));
+                i++;
+            }
+            return lista;
+        } finally {
+            ctx.liberaTodas();
+            trava.readLock().unlock();
         }
     }
 
     // Busca recursiva. Este método recebe a referência de uma página e busca
     // pela chave na mesma. A busca continua pelos filhos, se houverem.
-    private ArrayList<T> read1(T elem, long pagina) throws Exception {
+    private ArrayList<T> read1(Contexto ctx, T elem, long pagina) throws Exception {
 
         // Como a busca é recursiva, a descida para um filho inexistente
         // (filho de uma página folha) retorna um vetor vazio.
@@ -199,42 +657,33 @@ public class ArvoreBMais<T extends RegistroArvoreBMais<T>> {
             return resposta;
         }
 
-        // Reconstrói a página passada como referência a partir
-        // do registro lido no arquivo
-        arquivo.seek(pagina);
-        Pagina pa = new Pagina(construtor, ordem);
-        byte[] buffer = new byte[pa.TAMANHO_PAGINA];
-        arquivo.read(buffer);
-        pa.fromByteArray(buffer);
+        // Recupera a página passada como referência (do cache ou do arquivo)
+        Pagina pa = lePaginaAcoplada(ctx, pagina);
 
         // Encontra o ponto em que a chave deve estar na página
         // Nesse primeiro passo, todas as chaves menores que a chave buscada
-        // são ultrapassadas
-        int i = 0;
-        while (elem!=null && i < pa.elementos.size() && elem.compareTo(pa.elementos.get(i)) > 0) {
-            i++;
-        }
+        // são ultrapassadas (busca binária)
+        int i = pa.busca(elem);
 
         // Chave encontrada (ou pelo menos o ponto onde ela deveria estar).
         // Segundo passo - testa se a chave é a chave buscada e se está em uma folha
         // Obs.: em uma árvore B+, todas as chaves válidas estão nas folhas
-        if (i < pa.elementos.size() && pa.filhos.get(0) == -1 && (elem==null || elem.compareTo(pa.elementos.get(i)) == 0)) {
+        if (i < pa.n && pa.folha() && (elem==null || pa.compara(elem, i) == 0)) {
 
-            // Cria a lista de retorno e insere os elementos encontrados
+            // Cria a lista de retorno e insere os elementos encontrados. Os
+            // elementos iguais ao buscado são contíguos: a leitura termina no
+            // primeiro maior (e não no fim da árvore).
             ArrayList<T> lista = new ArrayList<>();
-            while (elem==null || elem.compareTo(pa.elementos.get(i)) <= 0) {
+            while (elem==null || pa.compara(elem, i) == 0) {
 
-                if (elem==null || elem.compareTo(pa.elementos.get(i)) == 0)
-                    lista.add(pa.elementos.get(i));
+                lista.add(pa.elemento(i));
                 i++;
 
                 // Se chegar ao fim da folha, então avança para a folha seguinte
-                if (i == pa.elementos.size()) {
+                if (i == pa.n) {
                     if (pa.proxima == -1)
                         break;
-                    arquivo.seek(pa.proxima);
-                    arquivo.read(buffer);
-                    pa.fromByteArray(buffer);
+                    pa = lePaginaAcoplada(ctx, pa.proxima);
                     i = 0;
                 }
             }
@@ -244,7 +693,7 @@ public class ArvoreBMais<T extends RegistroArvoreBMais<T>> {
         // Terceiro passo - se a chave não tiver sido encontrada nesta folha,
         // testa se ela está na próxima folha. Isso pode ocorrer devido ao
         // processo de ordenação.
-        else if (i == pa.elementos.size() && pa.filhos.get(0) == -1) {
+        else if (i == pa.n && pa.folha()) {
 
             // Testa se há uma próxima folha. Nesse caso, retorna um vetor vazio
             if (pa.proxima == -1) {
@@ -253,29 +702,24 @@ public class ArvoreBMais<T extends RegistroArvoreBMais<T>> {
             }
 
             // Lê a próxima folha
-            arquivo.seek(pa.proxima);
-            arquivo.read(buffer);
-            pa.fromByteArray(buffer);
+            pa = lePaginaAcoplada(ctx, pa.proxima);
 
             // Testa se a chave é a primeira da próxima folha
             i = 0;
-            if (elem.compareTo(pa.elementos.get(i)) <= 0) {
+            if (pa.compara(elem, i) <= 0) {
 
                 // Cria a lista de retorno
                 ArrayList<T> lista = new ArrayList<>();
 
                 // Testa se a chave foi encontrada, e adiciona todas as chaves
                 // secundárias
-                while (elem.compareTo(pa.elementos.get(i)) <= 0) {
-                    if (elem.compareTo(pa.elementos.get(i)) == 0)
-                        lista.add(pa.elementos.get(i));
+                while (pa.compara(elem, i) == 0) {
+                    lista.add(pa.elemento(i));
                     i++;
-                    if (i == pa.elementos.size()) {
+                    if (i == pa.n) {
                         if (pa.proxima == -1)
                             break;
-                        arquivo.seek(pa.proxima);
-                        arquivo.read(buffer);
-                        pa.fromByteArray(buffer);
+                        pa = lePaginaAcoplada(ctx, pa.proxima);
                         i = 0;
                     }
                 }
@@ -291,115 +735,132 @@ public class ArvoreBMais<T extends RegistroArvoreBMais<T>> {
         }
 
         // Chave ainda não foi encontrada, continua a busca recursiva pela árvore
-        if (elem==null || i == pa.elementos.size() || elem.compareTo(pa.elementos.get(i)) <= 0)
-            return read1(elem, pa.filhos.get(i));
+        if (elem==null || i == pa.n || pa.compara(elem, i) <= 0)
+            return read1(ctx, elem, pa.filhos[i]);
         else
-            return read1(elem, pa.filhos.get(i + 1));
+            return read1(ctx, elem, pa.filhos[i + 1]);
     }
 
     // Inclusão de novos elementos na árvore. A inclusão é recursiva. A primeira
     // função chama a segunda recursivamente, passando a raiz como referência.
     // Eventualmente, a árvore pode crescer para cima.
     public boolean create(T elem) throws Exception {
+        // A operação inteira forma uma transação no log (e, portanto, espera
+        // as inclusões e exclusões das outras threads). As travas das páginas
+        // são liberadas antes da confirmação, para que as leituras não esperem
+        // a gravação do log em disco.
+        log.inicia();
+        try {
+            boolean inserido;
+            trava.readLock().lock();
+            try {
+                inserido = create0(elem);
+            } finally {
+                trava.readLock().unlock();
+            }
+            log.confirma();
+            return inserido;
+        } catch (Exception e) {
+            log.cancela();
+            throw e;
+        }
+    }
+
+    private boolean create0(T elem) throws Exception {
+        Contexto ctx = new Contexto();
+        boolean inserido;
+        try {
+            inserido = create0(ctx, elem);
+        } finally {
+            ctx.liberaTodas();
+        }
+
+        // Grava as páginas alteradas durante a inclusão
+        descarregaCache();
+        return inserido;
+    }
 
-        // Carrega a raiz
-        arquivo.seek(0);
+    private boolean create0(Contexto ctx, T elem) throws Exception {
+        // Carrega a raiz. A trava da raiz só é liberada se a raiz não puder
+        // ser dividida.
         long pagina;
-        pagina = arquivo.readLong();
+        ctx.trava(travaRaiz.writeLock());
+        pagina = arquivo.leLong(0);
 
         // O processo de inclusão permite que os valores passados como referência
         // sejam substituídos por outros valores, para permitir a divisão de páginas
-        // e crescimento da árvore. Assim, são usados os valores globais elemAux
-        // e chave2Aux. Quando há uma divisão, as chaves promovidas são armazenadas
-        // nessas variáveis.
-        elemAux = elem.clone();
+        // e crescimento da árvore. Assim, é usado o campo chaveAux do contexto
+        // (o elemento já serializado). Quando há uma divisão, o elemento
+        // promovido é armazenado nesse campo.
+        ctx.chaveAux = elem.toByteArray();
 
         // Se houver crescimento, então será criada uma página extra e será mantido um
-        // ponteiro para essa página. Os valores também são globais.
-        paginaAux = -1;
-        cresceu = false;
+        // ponteiro para essa página, também no contexto.
+        ctx.paginaAux = -1;
+        ctx.cresceu = false;
 
         // Chamada recursiva para a inserção do par de chaves
-        boolean inserido = create1(pagina);
+        boolean inserido = create1(ctx, elem, pagina);
 
         // Testa a necessidade de criação de uma nova raiz.
-        if (cresceu) {
+        if (ctx.cresceu) {
 
             // Cria a nova página que será a raiz. O ponteiro esquerdo da raiz
             // será a raiz antiga e o seu ponteiro direito será para a nova página.
-            Pagina novaPagina = new Pagina(construtor, ordem);
-            novaPagina.elementos = new ArrayList<>(this.maxElementos);
-            novaPagina.elementos.add(elemAux);
-            novaPagina.filhos = new ArrayList<>(this.maxFilhos);
-            novaPagina.filhos.add(pagina);
-            novaPagina.filhos.add(paginaAux);
-
-            // Acha o espaço em disco. Testa se há páginas excluídas.
-            arquivo.seek(8);
-            long end = arquivo.readLong();
-            if(end==-1) {
-                end = arquivo.length();
-            } else { // reusa um endereço e atualiza a lista de excluídos no cabeçalho
-                arquivo.seek(end);
-                Pagina pa_excluida = new Pagina(construtor, ordem);
-                byte[] buffer = new byte[pa_excluida.TAMANHO_PAGINA];
-                arquivo.read(buffer);
-                pa_excluida.fromByteArray(buffer);
-                arquivo.seek(8);
-                arquivo.writeLong(pa_excluida.proxima);
-            }
-            arquivo.seek(end);
-            long raiz = arquivo.getFilePointer();
-            arquivo.write(novaPagina.toByteArray());
-            arquivo.seek(0);
-            arquivo.writeLong(raiz);
+            Pagina novaPagina = new Pagina();
+            novaPagina.filhos[0] = pagina;
+            novaPagina.insere(0, ctx.chaveAux, 0, ctx.paginaAux);
+
+            // Acha o espaço em disco (página excluída ou fim do arquivo)
+            long raiz = alocaPagina(ctx);
+            escrevePagina(raiz, novaPagina);
+            arquivo.escreveLong(0, raiz);
             inserido = true;
         }
-
         return inserido;
     }
 
     // Função recursiva de inclusão. A função passa uma página de referência.
     // As inclusões são sempre feitas em uma folha.
-    private boolean create1(long pagina) throws Exception {
+    private boolean create1(Contexto ctx, T elem, long pagina) throws Exception {
 
         // Testa se passou para o filho de uma página folha. Nesse caso,
-        // inicializa as variáveis globais de controle.
+        // inicializa as variáveis de controle do contexto.
         if (pagina == -1) {
-            cresceu = true;
-            paginaAux = -1;
+            ctx.cresceu = true;
+            ctx.paginaAux = -1;
             return false;
         }
 
-        // Lê a página passada como referência
-        arquivo.seek(pagina);
-        Pagina pa = new Pagina(construtor, ordem);
-        byte[] buffer = new byte[pa.TAMANHO_PAGINA];
-        arquivo.read(buffer);
-        pa.fromByteArray(buffer);
+        // Lê a página passada como referência. Se ela tiver espaço para mais
+        // um elemento, não será dividida, e as páginas de cima podem ser liberadas.
+        Pagina pa = lePaginaParaEscrita(ctx, pagina);
+        Lock travaPagina = ctx.travas.peekLast();
+        if (pa.n < maxElementos)
+            ctx.liberaAncestrais();
 
         // Busca o próximo ponteiro de descida. Como pode haver repetição
         // da primeira chave, a segunda também é usada como referência.
         // Nesse primeiro passo, todos os pares menores são ultrapassados.
-        int i = 0;
-        while (i < pa.elementos.size() && (elemAux.compareTo(pa.elementos.get(i)) > 0)) {
-            i++;
-        }
+        int i = pa.busca(elem);
 
         // Testa se o registro já existe em uma folha. Se isso acontecer, então
         // a inclusão é cancelada.
-        if (i < pa.elementos.size() && pa.filhos.get(0) == -1 && elemAux.compareTo(pa.elementos.get(i)) == 0) {
-            cresceu = false;
+        if (i < pa.n && pa.folha() && pa.compara(elem, i) == 0) {
+            ctx.cresceu = false;
             return false;
         }
 
         // Continua a busca recursiva por uma nova página. A busca continuará até o
-        // filho inexistente de uma página folha ser alcançado.
-        boolean inserido;
-        if (i == pa.elementos.size() || elemAux.compareTo(pa.elementos.get(i)) < 0)
-            inserido = create1(pa.filhos.get(i));
-        else
-            inserido = create1(pa.filhos.get(i + 1));
+        // filho inexistente de uma página folha ser alcançado. Um elemento igual
+        // ao da posição i (que restou apenas como separador em uma página
+        // interna) desce pelo ponteiro direito dele; a posição avança junto,
+        // para que um eventual elemento promovido seja inserido ao lado desse
+        // ponteiro.
+        if (i < pa.n && pa.compara(elem, i) == 0)
+            i++;
+        boolean inserido = create1(ctx, elem, pa.filhos[i]);
+        ctx.liberaAbaixo(travaPagina);
 
         // A partir deste ponto, as chamadas recursivas já foram encerradas.
         // Assim, o próximo código só é executado ao retornar das chamadas recursivas.
@@ -409,109 +870,68 @@ public class ArvoreBMais<T extends RegistroArvoreBMais<T>> {
         // A inclusão pode ter sido resolvida porque o par de chaves já existia
         // (inclusão inválida)
         // ou porque o novo elemento coube em uma página existente.
-        if (!cresceu)
+        if (!ctx.cresceu)
             return inserido;
 
-        // Se tiver espaço na página, faz a inclusão nela mesmo
-        if (pa.elementos.size() < maxElementos) {
+        // Puxa todos elementos para a direita, para gerar o espaço para o novo
+        // elemento, e insere o novo elemento. A página tem espaço para um
+        // elemento a mais que o máximo, que é resolvido pela divisão abaixo.
+        pa.insere(i, ctx.chaveAux, 0, ctx.paginaAux);
 
-            // Puxa todos elementos para a direita, começando do último
-            // para gerar o espaço para o novo elemento e insere o novo elemento
-            pa.elementos.add(i, elemAux);
-            pa.filhos.add(i + 1, paginaAux);
+        // Se couber na página, a inclusão termina aqui
+        if (pa.n <= maxElementos) {
 
-            // Escreve a página atualizada no arquivo
-            arquivo.seek(pagina);
-            arquivo.write(pa.toByteArray());
+            // Escreve a página atualizada (no cache)
+            escrevePagina(pagina, pa);
 
             // Encerra o processo de crescimento e retorna
-            cresceu = false;
+            ctx.cresceu = false;
             return true;
         }
 
         // O elemento não cabe na página. A página deve ser dividida e o elemento
-        // do meio deve ser promovido (sem retirar a referência da folha).
+        // do meio deve ser promovido.
 
         // Cria uma nova página
-        Pagina np = new Pagina(construtor, ordem);
-
-        // Move a metade superior dos elementos para a nova página,
-        // considerando que maxElementos pode ser ímpar
-        int meio = maxElementos / 2;
-        np.filhos.add(pa.filhos.get(meio)); // COPIA o primeiro ponteiro
-        for (int j = 0; j < (maxElementos - meio); j++) {
-            np.elementos.add(pa.elementos.remove(meio)); // MOVE os elementos
-            np.filhos.add(pa.filhos.remove(meio + 1)); // MOVE os demais ponteiros
-        }
-
-        // Testa o lado de inserção
-        // Caso 1 - Novo registro deve ficar na página da esquerda
-        if (i <= meio) {
-            pa.elementos.add(i, elemAux);
-            pa.filhos.add(i + 1, paginaAux);
-
-            // Se a página for folha, seleciona o primeiro elemento da página
-            // da direita para ser promovido, mantendo-o na folha
-            if (pa.filhos.get(0) == -1)
-                elemAux = np.elementos.get(0).clone();
-
-            // caso contrário, promove o maior elemento da página esquerda
-            // removendo-o da página
-            else {
-                elemAux = pa.elementos.remove(pa.elementos.size() - 1);
-                pa.filhos.remove(pa.filhos.size() - 1);
-            }
+        Pagina np = new Pagina();
+        int total = pa.n;
+
+        // Se a página for folha, a metade superior dos elementos vai para a
+        // nova página e o primeiro elemento dela é promovido, sem ser retirado
+        // da folha
+        if (pa.folha()) {
+            int meio = total - total / 2;
+            np.n = total - meio;
+            System.arraycopy(pa.chaves, pa.posicao(meio), np.chaves, 0, np.posicao(np.n));
+            pa.n = meio;
+            ctx.chaveAux = Arrays.copyOf(np.chaves, tamanhoElemento);
         }
 
-        // Caso 2 - Novo registro deve ficar na página da direita
+        // caso contrário, o elemento do meio é promovido e retirado da página.
+        // Os elementos e ponteiros à sua direita vão para a nova página.
         else {
-
-            int j = maxElementos - meio;
-            while (elemAux.compareTo(np.elementos.get(j - 1)) < 0)
-                j--;
-            np.elementos.add(j, elemAux);
-            np.filhos.add(j + 1, paginaAux);
-
-            // Seleciona o primeiro elemento da página da direita para ser promovido
-            elemAux = np.elementos.get(0).clone();
-
-            // Se não for folha, remove o elemento promovido da página
-            if (pa.filhos.get(0) != -1) {
-                np.elementos.remove(0);
-                np.filhos.remove(0);
-            }
-
+            int meio = total / 2;
+            ctx.chaveAux = Arrays.copyOfRange(pa.chaves, pa.posicao(meio), pa.posicao(meio + 1));
+            np.n = total - meio - 1;
+            System.arraycopy(pa.chaves, pa.posicao(meio + 1), np.chaves, 0, np.posicao(np.n));
+            System.arraycopy(pa.filhos, meio + 1, np.filhos, 0, np.n + 1);
+            pa.n = meio;
         }
 
         // Obtém um endereço para a nova página (página excluída ou fim do arquivo)
-        arquivo.seek(8);
-        long end = arquivo.readLong();
-        if(end==-1) {
-            end = arquivo.length();
-        } else { // reusa um endereço e atualiza a lista de excluídos no cabeçalho
-            arquivo.seek(end);
-            Pagina pa_excluida = new Pagina(construtor, ordem);
-            buffer = new byte[pa_excluida.TAMANHO_PAGINA];
-            arquivo.read(buffer);
-            pa_excluida.fromByteArray(buffer);
-            arquivo.seek(8);
-            arquivo.writeLong(pa_excluida.proxima);
-        }
+        long end = alocaPagina(ctx);
 
         // Se a página era uma folha e apontava para outra folha,
         // então atualiza os ponteiros dessa página e da página nova
-        if (pa.filhos.get(0) == -1) {
+        if (pa.folha()) {
             np.proxima = pa.proxima;
             pa.proxima = end;
         }
 
-        // Grava as páginas no arquivo
-        paginaAux = end;
-        arquivo.seek(paginaAux);
-        arquivo.write(np.toByteArray());
-
-        arquivo.seek(pagina);
-        arquivo.write(pa.toByteArray());
+        // Grava as páginas (no cache)
+        ctx.paginaAux = end;
+        escrevePagina(ctx.paginaAux, np);
+        escrevePagina(pagina, pa);
 
         return true;
     }
@@ -521,53 +941,77 @@ public class ArvoreBMais<T extends RegistroArvoreBMais<T>> {
     // Eventualmente, a árvore pode reduzir seu tamanho, por meio da exclusão da
     // raiz.
     public boolean delete(T elem) throws Exception {
+        // A operação inteira forma uma transação no log (ver create)
+        log.inicia();
+        try {
+            boolean excluido;
+            trava.readLock().lock();
+            try {
+                excluido = delete0(elem);
+            } finally {
+                trava.readLock().unlock();
+            }
+            log.confirma();
+            return excluido;
+        } catch (Exception e) {
+            log.cancela();
+            throw e;
+        }
+    }
+
+    private boolean delete0(T elem) throws Exception {
+        Contexto ctx = new Contexto();
+        boolean excluido;
+        try {
+            excluido = delete0(ctx, elem);
+        } finally {
+            ctx.liberaTodas();
+        }
 
-        // Encontra a raiz da árvore
-        arquivo.seek(0);
+        // Grava as páginas alteradas durante a exclusão
+        descarregaCache();
+        return excluido;
+    }
+
+    private boolean delete0(Contexto ctx, T elem) throws Exception {
+        // Encontra a raiz da árvore. A trava da raiz só é liberada se a raiz
+        // não puder ser eliminada.
         long pagina;
-        pagina = arquivo.readLong();
+        ctx.trava(travaRaiz.writeLock());
+        pagina = arquivo.leLong(0);
 
-        // variável global de controle da redução do tamanho da árvore
-        diminuiu = false;
+        // controle da redução do tamanho da árvore, no contexto da operação
+        ctx.diminuiu = false;
 
-        // Chama recursivamente a exclusão de registro (na elemAux e no
-        // chave2Aux) passando uma página como referência
-        boolean excluido = delete1(elem, pagina);
+        // Chama recursivamente a exclusão de registro, passando uma página
+        // como referência
+        boolean excluido = delete1(ctx, elem, pagina);
 
         // Se a exclusão tiver sido possível e a página tiver reduzido seu tamanho,
         // por meio da fusão das duas páginas filhas da raiz, elimina essa raiz
-        if (excluido && diminuiu) {
+        if (excluido && ctx.diminuiu) {
 
-            // Lê a raiz
-            arquivo.seek(pagina);
-            Pagina pa = new Pagina(construtor, ordem);
-            byte[] buffer = new byte[pa.TAMANHO_PAGINA];
-            arquivo.read(buffer);
-            pa.fromByteArray(buffer);
+            // Lê a raiz (ainda travada, pois não era segura)
+            Pagina pa = lePagina(ctx, pagina);
 
             // Se a página tiver 0 elementos, apenas atualiza o ponteiro para a raiz,
             // no cabeçalho do arquivo, para o seu primeiro filho e insere a raiz velha
             // na lista de páginas excluídas
-            if (pa.elementos.size() == 0) {
-                arquivo.seek(0);
-                arquivo.writeLong(pa.filhos.get(0));
+            if (pa.n == 0) {
+                arquivo.escreveLong(0, pa.filhos[0]);
 
-                arquivo.seek(8);
-                long end = arquivo.readLong();  // cabeça da lista de páginas excluídas
+                long end = arquivo.leLong(8);  // cabeça da lista de páginas excluídas
                 pa.proxima = end;
-                arquivo.seek(8);
-                arquivo.writeLong(pagina);
-                arquivo.seek(pagina);
-                arquivo.write(pa.toByteArray());
+                arquivo.escreveLong(8, pagina);
+                escrevePagina(pagina, pa);
             }
         }
-
         return excluido;
     }
 
     // Função recursiva de exclusão. A função passa uma página de referência.
     // As exclusões são sempre feitas em folhas e a fusão é propagada para cima.
-    private boolean delete1(T elem, long pagina) throws Exception {
+    private boolean delete1(Contexto ctx, T elem, long pagina) throws Exception {
 
         // Declaração de variáveis
         boolean excluido = false;
@@ -576,39 +1020,35 @@ public class ArvoreBMais<T extends RegistroArvoreBMais<T>> {
         // Testa se o registro não foi encontrado na árvore, ao alcançar uma folha
         // inexistente (filho de uma folha real)
         if (pagina == -1) {
-            diminuiu = false;
+            ctx.diminuiu = false;
             return false;
         }
 
-        // Lê o registro da página no arquivo
-        arquivo.seek(pagina);
-        Pagina pa = new Pagina(construtor, ordem);
-        byte[] buffer = new byte[pa.TAMANHO_PAGINA];
-        arquivo.read(buffer);
-        pa.fromByteArray(buffer);
+        // Lê o registro da página (do cache ou do arquivo). Se ela puder perder
+        // um elemento sem ficar abaixo do mínimo, as páginas de cima não serão
+        // alteradas e podem ser liberadas.
+        Pagina pa = lePaginaParaEscrita(ctx, pagina);
+        Lock travaPagina = ctx.travas.peekLast();
+        if (pa.n - 1 >= maxElementos / 2)
+            ctx.liberaAncestrais();
 
         // Encontra a página em que o par de chaves está presente
         // Nesse primeiro passo, salta todas os pares de chaves menores
-        int i = 0;
-        while (i < pa.elementos.size() && elem.compareTo(pa.elementos.get(i)) > 0) {
-            i++;
-        }
+        int i = pa.busca(elem);
 
         // Chaves encontradas em uma folha
-        if (i < pa.elementos.size() && pa.filhos.get(0) == -1 && elem.compareTo(pa.elementos.get(i)) == 0) {
+        if (i < pa.n && pa.folha() && pa.compara(elem, i) == 0) {
 
             // Puxa todas os elementos seguintes para uma posição anterior, sobrescrevendo
             // o elemento a ser excluído
-            pa.elementos.remove(i);
-            pa.filhos.remove(i + 1);
+            pa.remove(i);
 
-            // Atualiza o registro da página no arquivo
-            arquivo.seek(pagina);
-            arquivo.write(pa.toByteArray());
+            // Atualiza o registro da página (no cache)
+            escrevePagina(pagina, pa);
 
             // Se a página contiver menos elementos do que o mínimo necessário,
             // indica a necessidade de fusão de páginas
-            diminuiu = pa.elementos.size() < maxElementos / 2;
+            ctx.diminuiu = pa.n < maxElementos / 2;
             return true;
         }
 
@@ -618,89 +1058,84 @@ public class ArvoreBMais<T extends RegistroArvoreBMais<T>> {
         // A variável diminuído mantem um registro de qual página eventualmente
         // pode ter ficado com menos elementos do que o mínimo necessário.
         // Essa página será filha da página atual
-        if (i == pa.elementos.size() || elem.compareTo(pa.elementos.get(i)) < 0) {
-            excluido = delete1(elem, pa.filhos.get(i));
+        if (i == pa.n || pa.compara(elem, i) < 0) {
+            excluido = delete1(ctx, elem, pa.filhos[i]);
             diminuido = i;
         } else {
-            excluido = delete1(elem, pa.filhos.get(i + 1));
+            excluido = delete1(ctx, elem, pa.filhos[i + 1]);
             diminuido = i + 1;
         }
+        ctx.liberaAbaixo(travaPagina);
 
         // A partir deste ponto, o código é executado após o retorno das chamadas
         // recursivas do método
 
         // Testa se há necessidade de fusão de páginas
-        if (diminuiu) {
-
-            // Carrega a página filho que ficou com menos elementos do
-            // do que o mínimo necessário
-            long paginaFilho = pa.filhos.get(diminuido);
-            Pagina pFilho = new Pagina(construtor, ordem);
-            arquivo.seek(paginaFilho);
-            arquivo.read(buffer);
-            pFilho.fromByteArray(buffer);
+        if (ctx.diminuiu) {
 
             // Cria uma página para o irmão (da direita ou esquerda)
             long paginaIrmaoEsq = -1, paginaIrmaoDir = -1;
             Pagina pIrmaoEsq = null, pIrmaoDir = null; // inicializados com null para controle de existência
 
-            // Carrega os irmãos (que existirem)
+            // Carrega os irmãos (que existirem) e a página filho que ficou com
+            // menos elementos do que o mínimo necessário. As três são travadas
+            // da esquerda para a direita, na mesma ordem das leituras que
+            // percorrem as folhas.
             if (diminuido > 0) { // possui um irmão esquerdo, pois não é a primeira filho do pai
-                paginaIrmaoEsq = pa.filhos.get(diminuido - 1);
-                pIrmaoEsq = new Pagina(construtor, ordem);
-                arquivo.seek(paginaIrmaoEsq);
-                arquivo.read(buffer);
-                pIrmaoEsq.fromByteArray(buffer);
+                paginaIrmaoEsq = pa.filhos[diminuido - 1];
+                pIrmaoEsq = lePaginaParaEscrita(ctx, paginaIrmaoEsq);
             }
-            if (diminuido < pa.elementos.size()) { // possui um irmão direito, pois não é o último filho do pai
-                paginaIrmaoDir = pa.filhos.get(diminuido + 1);
-                pIrmaoDir = new Pagina(construtor, ordem);
-                arquivo.seek(paginaIrmaoDir);
-                arquivo.read(buffer);
-                pIrmaoDir.fromByteArray(buffer);
+            long paginaFilho = pa.filhos[diminuido];
+            Pagina pFilho = lePaginaParaEscrita(ctx, paginaFilho);
+            if (diminuido < pa.n) { // possui um irmão direito, pois não é o último filho do pai
+                paginaIrmaoDir = pa.filhos[diminuido + 1];
+                pIrmaoDir = lePaginaParaEscrita(ctx, paginaIrmaoDir);
             }
 
             // Verifica se o irmão esquerdo existe e pode ceder algum elemento
-            if (pIrmaoEsq != null && pIrmaoEsq.elementos.size() > maxElementos / 2) {
+            if (pIrmaoEsq != null && pIrmaoEsq.n > maxElementos / 2) {
+                int ultimo = pIrmaoEsq.n - 1;
 
                 // Se for folha, copia o elemento do irmão, já que o do pai será extinto ou
-                // repetido
-                if (pFilho.filhos.get(0) == -1)
-                    pFilho.elementos.add(0, pIrmaoEsq.elementos.remove(pIrmaoEsq.elementos.size() - 1));
-
-                // Se não for folha, desce o elemento do pai
-                else
-                    pFilho.elementos.add(0, pa.elementos.get(diminuido - 1));
+                // repetido, e copia o elemento vindo do irmão para o pai (página atual)
+                if (pFilho.folha()) {
+                    pFilho.insereInicio(pIrmaoEsq.chaves, pIrmaoEsq.posicao(ultimo), pIrmaoEsq.filhos[ultimo + 1]);
+                    pa.defineElemento(diminuido - 1, pFilho.chaves, 0);
+                }
 
-                // Copia o elemento vindo do irmão para o pai (página atual)
-                pa.elementos.set(diminuido - 1, pFilho.elementos.get(0));
+                // Se não for folha, desce o elemento do pai e sobe para o pai o
+                // último elemento do irmão
+                else {
+                    pFilho.insereInicio(pa.chaves, pa.posicao(diminuido - 1), pIrmaoEsq.filhos[ultimo + 1]);
+                    pa.defineElemento(diminuido - 1, pIrmaoEsq.chaves, pIrmaoEsq.posicao(ultimo));
+                }
 
                 // Reduz o elemento no irmão
-                pFilho.filhos.add(0, pIrmaoEsq.filhos.remove(pIrmaoEsq.filhos.size() - 1));
+                pIrmaoEsq.n--;
 
             }
 
             // Senão, verifica se o irmão direito existe e pode ceder algum elemento
-            else if (pIrmaoDir != null && pIrmaoDir.elementos.size() > maxElementos / 2) {
+            else if (pIrmaoDir != null && pIrmaoDir.n > maxElementos / 2) {
                 // Se for folha
-                if (pFilho.filhos.get(0) == -1) {
+                if (pFilho.folha()) {
 
                     // move o elemento do irmão
-                    pFilho.elementos.add(pIrmaoDir.elementos.remove(0));
-                    pFilho.filhos.add(pIrmaoDir.filhos.remove(0));
+                    pFilho.insere(pFilho.n, pIrmaoDir.chaves, 0, pIrmaoDir.filhos[0]);
+                    pIrmaoDir.removeInicio();
 
                     // sobe o próximo elemento do irmão
-                    pa.elementos.set(diminuido, pIrmaoDir.elementos.get(0));
+                    pa.defineElemento(diminuido, pIrmaoDir.chaves, 0);
                 }
 
                 // Se não for folha, rotaciona os elementos
                 else {
                     // Copia o elemento do pai, com o ponteiro esquerdo do irmão
-                    pFilho.elementos.add(pa.elementos.get(diminuido));
-                    pFilho.filhos.add(pIrmaoDir.filhos.remove(0));
+                    pFilho.insere(pFilho.n, pa.chaves, pa.posicao(diminuido), pIrmaoDir.filhos[0]);
 
                     // Sobe o elemento esquerdo do irmão para o pai
-                    pa.elementos.set(diminuido, pIrmaoDir.elementos.remove(0));
+                    pa.defineElemento(diminuido, pIrmaoDir.chaves, 0);
+                    pIrmaoDir.removeInicio();
                 }
             }
 
@@ -708,32 +1143,23 @@ public class ArvoreBMais<T extends RegistroArvoreBMais<T>> {
             else if (pIrmaoEsq != null) {
                 // Se a página reduzida não for folha, então o elemento
                 // do pai deve descer para o irmão
-                if (pFilho.filhos.get(0) != -1) {
-                    pIrmaoEsq.elementos.add(pa.elementos.remove(diminuido - 1));
-                    pIrmaoEsq.filhos.add(pFilho.filhos.remove(0));
-                }
-                // Senão, apenas remove o elemento do pai
-                else {
-                    pa.elementos.remove(diminuido - 1);
-                    pFilho.filhos.remove(0);
-                }
-                pa.filhos.remove(diminuido); // remove o ponteiro para a própria página
+                if (!pFilho.folha())
+                    pIrmaoEsq.insere(pIrmaoEsq.n, pa.chaves, pa.posicao(diminuido - 1), pFilho.filhos[0]);
+
+                // Remove o elemento do pai e o ponteiro para a própria página
+                pa.remove(diminuido - 1);
 
                 // Copia todos os registros para o irmão da esquerda
-                pIrmaoEsq.elementos.addAll(pFilho.elementos);
-                pIrmaoEsq.filhos.addAll(pFilho.filhos);
-                pFilho.elementos.clear(); 
-                pFilho.filhos.clear();
+                pIrmaoEsq.anexa(pFilho);
+                pFilho.n = 0;
 
                 // Se as páginas forem folhas, copia o ponteiro para a folha seguinte
-                if (pIrmaoEsq.filhos.get(0) == -1)
+                if (pIrmaoEsq.folha())
                     pIrmaoEsq.proxima = pFilho.proxima;
 
                 // Insere o filho na lista de páginas excluídas
-                arquivo.seek(8);
-                pFilho.proxima = arquivo.readLong();
-                arquivo.seek(8);
-                arquivo.writeLong(paginaFilho);
+                pFilho.proxima = arquivo.leLong(8);
+                arquivo.escreveLong(8, paginaFilho);
 
             }
 
@@ -741,89 +1167,282 @@ public class ArvoreBMais<T extends RegistroArvoreBMais<T>> {
             else {
                 // Se a página reduzida não for folha, então o elemento
                 // do pai deve descer para o irmão
-                if (pFilho.filhos.get(0) != -1) {
-                    pFilho.elementos.add(pa.elementos.remove(diminuido));
-                    pFilho.filhos.add(pIrmaoDir.filhos.remove(0));
-                }
-                // Senão, apenas remove o elemento do pai
-                else {
-                    pa.elementos.remove(diminuido);
-                    pFilho.filhos.remove(0);
-                }
-                pa.filhos.remove(diminuido + 1); // remove o ponteiro para o irmão direito
+                if (!pFilho.folha())
+                    pFilho.insere(pFilho.n, pa.chaves, pa.posicao(diminuido), pIrmaoDir.filhos[0]);
+
+                // Remove o elemento do pai e o ponteiro para o irmão direito
+                pa.remove(diminuido);
 
                 // Move todos os registros do irmão da direita
-                pFilho.elementos.addAll(pIrmaoDir.elementos);
-                pFilho.filhos.addAll(pIrmaoDir.filhos);
-                pIrmaoDir.elementos.clear(); 
-                pIrmaoDir.filhos.clear();
+                pFilho.anexa(pIrmaoDir);
+                pIrmaoDir.n = 0;
 
                 // Se a página for folha, copia o ponteiro para a próxima página
                 pFilho.proxima = pIrmaoDir.proxima;
 
                 // Insere o irmão da direita na lista de páginas excluídas
-                arquivo.seek(8);
-                pIrmaoDir.proxima = arquivo.readLong();
-                arquivo.seek(8);
-                arquivo.writeLong(paginaIrmaoDir);
+                pIrmaoDir.proxima = arquivo.leLong(8);
+                arquivo.escreveLong(8, paginaIrmaoDir);
 
             }
 
             // testa se o pai também ficou sem o número mínimo de elementos
-            diminuiu = pa.elementos.size() < maxElementos / 2;
+            ctx.diminuiu = pa.n < maxElementos / 2;
 
             // Atualiza os demais registros
-            arquivo.seek(pagina);
-            arquivo.write(pa.toByteArray());
-            arquivo.seek(paginaFilho);
-            arquivo.write(pFilho.toByteArray());
-            if (pIrmaoEsq != null) {
-                arquivo.seek(paginaIrmaoEsq);
-                arquivo.write(pIrmaoEsq.toByteArray());
+            escrevePagina(pagina, pa);
+            escrevePagina(paginaFilho, pFilho);
+            if (pIrmaoEsq != null)
+                escrevePagina(paginaIrmaoEsq, pIrmaoEsq);
+            if (pIrmaoDir != null)
+                escrevePagina(paginaIrmaoDir, pIrmaoDir);
+        }
+        return excluido;
+    }
+
+    // ------------------------------------------------------------------------------
+    // Carga em lote
+
+    // Constrói a árvore de baixo para cima a partir de elementos já ordenados
+    // (em ordem estritamente crescente), substituindo todo o conteúdo atual.
+    // As folhas são preenchidas até a fração 'preenchimento' da sua capacidade
+    // e encadeadas pelo ponteiro 'proxima'; os níveis internos são montados na
+    // mesma passada, à medida que as páginas de baixo vão sendo completadas.
+    // As páginas são gravadas em sequência em um arquivo temporário, que
+    // substitui o arquivo da árvore ao final. Por isso, a carga não passa pelo
+    // log e não pode ser feita dentro de uma transação.
+    public void carregaEmLote(Iterator<T> ordenados, double preenchimento) throws Exception {
+        if (log.emTransacao())
+            throw new IllegalStateException("A carga em lote não pode ser feita dentro de uma transação");
+
+        // Nenhuma transação começa durante a carga. A trava do log é obtida
+        // antes da trava da árvore, na mesma ordem das alterações.
+        log.executaExclusivo(() -> {
+            trava.writeLock().lock();
+            try {
+                carregaEmLote0(ordenados, preenchimento);
+            } finally {
+                trava.writeLock().unlock();
             }
-            if (pIrmaoDir != null) {
-                arquivo.seek(paginaIrmaoDir);
-                arquivo.write(pIrmaoDir.toByteArray());
+            return null;
+        });
+    }
+
+    private void carregaEmLote0(Iterator<T> ordenados, double preenchimento) throws Exception {
+        if (!(preenchimento > 0 && preenchimento <= 1))
+            throw new IllegalArgumentException("O preenchimento deve estar entre 0 e 1");
+        if (arquivo instanceof ArmazenamentoRegistrado) {
+            synchronized (log) {
+                if (((ArmazenamentoRegistrado) arquivo).referencias > 1)
+                    throw new IllegalStateException("O arquivo da árvore está aberto em outra instância");
             }
         }
-        return excluido;
+
+        // Monta a nova árvore no arquivo temporário
+        Path temporario = Paths.get(nomeArquivo + ".lote");
+        Files.deleteIfExists(temporario);
+        Armazenamento destino = Armazenamento.abreDireto(temporario.toString(), Armazenamento.Tipo.ARQUIVO);
+        try {
+            CargaEmLote carga = new CargaEmLote(destino, preenchimento);
+            T anterior = null;
+            while (ordenados.hasNext()) {
+                T elem = ordenados.next();
+                if (anterior != null && elem.compareTo(anterior) <= 0)
+                    throw new IllegalArgumentException("Elementos fora de ordem ou repetidos na carga em lote: " + elem);
+                carga.adiciona(0, elem.toByteArray(), -1);
+                anterior = elem;
+            }
+            long raiz = carga.encerra();
+            escreveCabecalho(destino, raiz);
+            destino.defineTamanho(carga.fim);
+            destino.sincroniza();
+            destino.close();
+        } catch (Exception e) {
+            destino.close();
+            Files.deleteIfExists(temporario);
+            throw e;
+        }
+
+        // Troca os arquivos. O fechamento aplica ao arquivo antigo o que ainda
+        // estiver no log, para que nada dele seja reaplicado sobre o novo.
+        cache.clear();
+        travasPaginas.clear();
+        arquivo.close();
+        Files.move(temporario, Paths.get(nomeArquivo), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        arquivo = Armazenamento.abre(nomeArquivo, Armazenamento.Tipo.ARQUIVO);
+    }
+
+    // Estado da carga em lote. Cada nível (0 = folhas) recebe entradas formadas
+    // pela menor chave de uma subárvore e pelo endereço da sua raiz (nas
+    // folhas, o próprio elemento e -1). Quando uma página do nível se completa,
+    // ela recebe um endereço, mas só é gravada quando a página seguinte também
+    // se completar: assim, o ponteiro 'proxima' já é gravado correto e, no
+    // encerramento, as duas últimas páginas do nível podem ser equilibradas,
+    // para que nenhuma fique abaixo da ocupação mínima da árvore.
+    private class CargaEmLote {
+
+        private final Armazenamento destino;
+        private final int capacidadeFolha; // elementos por folha
+        private final int capacidadeInterna; // filhos por página interna
+        private final ArrayList<Nivel> niveis = new ArrayList<>();
+        private long fim = tamanhoBloco; // as páginas começam depois do cabeçalho
+
+        private class Nivel {
+            ArrayList<byte[]> chaves = new ArrayList<>();
+            ArrayList<Long> enderecos = new ArrayList<>();
+            ArrayList<byte[]> chavesAnterior; // página completa ainda não gravada
+            ArrayList<Long> enderecosAnterior;
+            long enderecoAnterior;
+            int gravadas; // páginas já gravadas neste nível
+        }
+
+        CargaEmLote(Armazenamento destino, double preenchimento) {
+            this.destino = destino;
+            this.capacidadeFolha = limita((int) Math.round(maxElementos * preenchimento), minimo(0), maxElementos);
+            this.capacidadeInterna = limita((int) Math.round(maxFilhos * preenchimento), minimo(1), maxFilhos);
+        }
+
+        private int limita(int valor, int min, int max) {
+            return Math.max(min, Math.min(valor, max));
+        }
+
+        // Ocupação mínima (elementos nas folhas, filhos nas páginas internas),
+        // a mesma que a exclusão usa para decidir se uma página diminuiu demais
+        private int minimo(int nivel) {
+            if (nivel == 0)
+                return Math.max(1, maxElementos / 2);
+            return Math.max(2, maxElementos / 2 + 1);
+        }
+
+        private int maximo(int nivel) {
+            return nivel == 0 ? maxElementos : maxFilhos;
+        }
+
+        void adiciona(int nivel, byte[] chave, long endereco) throws Exception {
+            if (nivel == niveis.size())
+                niveis.add(new Nivel());
+            Nivel nv = niveis.get(nivel);
+            nv.chaves.add(chave);
+            nv.enderecos.add(endereco);
+            if (nv.chaves.size() == (nivel == 0 ? capacidadeFolha : capacidadeInterna)) {
+                long end = fim;
+                fim += tamanhoBloco;
+                if (nv.chavesAnterior != null)
+                    grava(nivel, nv.chavesAnterior, nv.enderecosAnterior, nv.enderecoAnterior, end, true);
+                nv.chavesAnterior = nv.chaves;
+                nv.enderecosAnterior = nv.enderecos;
+                nv.enderecoAnterior = end;
+                nv.chaves = new ArrayList<>();
+                nv.enderecos = new ArrayList<>();
+            }
+        }
+
+        // Grava as páginas pendentes de cada nível, de baixo para cima, e
+        // retorna o endereço da raiz (-1 se não houver elementos)
+        long encerra() throws Exception {
+            for (int nivel = 0; nivel < niveis.size(); nivel++) {
+                Nivel nv = niveis.get(nivel);
+
+                // Última página abaixo do mínimo: junta-a com a anterior e, se
+                // não couberem em uma só, divide o total entre as duas
+                if (nv.chavesAnterior != null && !nv.chaves.isEmpty() && nv.chaves.size() < minimo(nivel)) {
+                    nv.chavesAnterior.addAll(nv.chaves);
+                    nv.enderecosAnterior.addAll(nv.enderecos);
+                    nv.chaves = new ArrayList<>();
+                    nv.enderecos = new ArrayList<>();
+                    int total = nv.chavesAnterior.size();
+                    if (total > maximo(nivel)) {
+                        int meio = total - total / 2;
+                        nv.chaves.addAll(nv.chavesAnterior.subList(meio, total));
+                        nv.enderecos.addAll(nv.enderecosAnterior.subList(meio, total));
+                        nv.chavesAnterior.subList(meio, total).clear();
+                        nv.enderecosAnterior.subList(meio, total).clear();
+                    }
+                }
+
+                // Um nível com uma única página é o nível da raiz
+                boolean unica = nv.gravadas == 0 && (nv.chavesAnterior == null || nv.chaves.isEmpty());
+                if (nv.chavesAnterior != null) {
+                    long proxima = -1;
+                    if (!nv.chaves.isEmpty()) {
+                        proxima = fim;
+                        fim += tamanhoBloco;
+                    }
+                    grava(nivel, nv.chavesAnterior, nv.enderecosAnterior, nv.enderecoAnterior, proxima, !unica);
+                    if (unica)
+                        return nv.enderecoAnterior;
+                    if (proxima != -1)
+                        grava(nivel, nv.chaves, nv.enderecos, proxima, -1, true);
+                } else if (!nv.chaves.isEmpty()) {
+                    long end = fim;
+                    fim += tamanhoBloco;
+                    grava(nivel, nv.chaves, nv.enderecos, end, -1, !unica);
+                    if (unica)
+                        return end;
+                }
+            }
+            return -1;
+        }
+
+        // Grava uma página do nível e, se não for a raiz, passa a sua menor
+        // chave e o seu endereço para o nível de cima
+        private void grava(int nivel, ArrayList<byte[]> chaves, ArrayList<Long> enderecos, long endereco, long proxima,
+                boolean sobe) throws Exception {
+            Pagina pa = new Pagina();
+            if (nivel == 0) {
+                for (byte[] chave : chaves)
+                    pa.insere(pa.n, chave, 0, -1);
+                pa.proxima = proxima;
+            } else {
+                pa.filhos[0] = enderecos.get(0);
+                for (int i = 1; i < chaves.size(); i++)
+                    pa.insere(pa.n, chaves.get(i), 0, enderecos.get(i));
+            }
+            pa.codifica(bufferPagina);
+            destino.escreve(endereco, bufferPagina.array(), 0, tamanhoPagina);
+            niveis.get(nivel).gravadas++;
+            if (sobe)
+                adiciona(nivel + 1, chaves.get(0), endereco);
+        }
     }
 
     // Imprime a árvore, usando uma chamada recursiva.
-    // A função recursiva é chamada com uma página de referência (raiz)
+    // A função recursiva é chamada com uma página de referência (raiz).
+    // A árvore inteira fica travada durante a impressão.
     public void print() throws Exception {
-        long raiz;
-        arquivo.seek(0);
-        raiz = arquivo.readLong();
-        System.out.println("Raiz: " + String.format("%04d", raiz));
-        if (raiz != -1)
-            print1(raiz);
-        System.out.println();
+        trava.writeLock().lock();
+        try {
+            long raiz;
+            raiz = arquivo.leLong(0);
+            System.out.println("Raiz: " + String.format("%04d", raiz));
+            if (raiz != -1)
+                print1(new Contexto(), raiz);
+            System.out.println();
+        } finally {
+            trava.writeLock().unlock();
+        }
     }
 
     // Impressão recursiva
-    private void print1(long pagina) throws Exception {
+    private void print1(Contexto ctx, long pagina) throws Exception {
 
         // Retorna das chamadas recursivas
         if (pagina == -1)
             return;
         int i;
 
-        // Lê o registro da página passada como referência no arquivo
-        arquivo.seek(pagina);
-        Pagina pa = new Pagina(construtor, ordem);
-        byte[] buffer = new byte[pa.TAMANHO_PAGINA];
-        arquivo.read(buffer);
-        pa.fromByteArray(buffer);
+        // Lê o registro da página passada como referência
+        Pagina pa = lePagina(ctx, pagina);
 
         // Imprime a página
         String endereco = String.format("%04d", pagina);
-        System.out.print(endereco + "  " + pa.elementos.size() + ":"); // endereço e número de elementos
-        for (i = 0; i < pa.elementos.size(); i++) {
-            System.out.print("(" + String.format("%04d", pa.filhos.get(i)) + ") " + pa.elementos.get(i) + " ");
+        System.out.print(endereco + "  " + pa.n + ":"); // endereço e número de elementos
+        for (i = 0; i < pa.n; i++) {
+            System.out.print("(" + String.format("%04d", pa.filhos[i]) + ") " + pa.elemento(i) + " ");
         }
         if (i > 0)
-            System.out.print("(" + String.format("%04d", pa.filhos.get(i)) + ")");
+            System.out.print("(" + String.format("%04d", pa.filhos[i]) + ")");
         else
             System.out.print("(-001)");
         for (; i < maxElementos; i++) {
@@ -835,10 +1454,10 @@ public class ArvoreBMais<T extends RegistroArvoreBMais<T>> {
             System.out.println(" --> (" + String.format("%04d", pa.proxima) + ")");
 
         // Chama recursivamente cada filho, se a página não for folha
-        if (pa.filhos.get(0) != -1) {
-            for (i = 0; i < pa.elementos.size(); i++)
-                print1(pa.filhos.get(i));
-            print1(pa.filhos.get(i));
+        if (!pa.folha()) {
+            for (i = 0; i < pa.n; i++)
+                print1(ctx, pa.filhos[i]);
+            print1(ctx, pa.filhos[i]);
         }
     }
 
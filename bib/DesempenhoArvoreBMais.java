@@ -0,0 +1,127 @@
+/*
+DESEMPENHO DA ÁRVORE B+ COM VÁRIAS THREADS
+
+Mede a vazão da ArvoreBMais com 1, 4, 16 e 64 threads. Deve ser
+usado com a aplicação parada (as alterações passam pelo log de
+transações da aplicação):
+
+  java bib.DesempenhoArvoreBMais [segundos] [percentualEscritas] [elementos]
+
+- A árvore (páginas de ArvoreBMais.TAMANHO_BLOCO_PADRAO bytes) é
+  carregada em lote com 'elementos' pares e é a mesma para todas
+  as rodadas.
+- Em cada rodada, cada thread faz, durante 'segundos', buscas de
+  pares existentes e, na proporção pedida, inclusões e exclusões
+  de pares próprios (cada inclusão é desfeita pela exclusão
+  seguinte, de modo que o tamanho da árvore não muda).
+- São exibidas as leituras e as alterações por segundo.
+
+As alterações são transações do LogTransacoes, serializadas pela
+trava única do log: o número de alterações por segundo não cresce
+com as threads. O que as travas das páginas permitem é que as
+leituras cresçam com as threads mesmo com alterações em andamento.
+*/
+
+package bib;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class DesempenhoArvoreBMais {
+
+    private static final int[] THREADS = { 1, 4, 16, 64 };
+
+    public static void main(String[] args) throws Exception {
+        int segundos = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int percentualEscritas = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int elementos = args.length > 2 ? Integer.parseInt(args[2]) : 100000;
+
+        File dir = Files.createTempDirectory("arvore").toFile();
+        ArvoreBMais<ParIntInt> arvore = new ArvoreBMais<>(ParIntInt.class.getConstructor(),
+                new File(dir, "desempenho.db").getPath(), ArvoreBMais.TAMANHO_BLOCO_PADRAO);
+        try {
+            arvore.carregaEmLote(new Iterator<ParIntInt>() {
+                int i = 0;
+
+                public boolean hasNext() {
+                    return i < elementos;
+                }
+
+                public ParIntInt next() {
+                    int k = i++;
+                    return new ParIntInt(2 * k, k);
+                }
+            }, 0.75);
+
+            System.out.println(elementos + " elementos, " + percentualEscritas + "% de alterações, "
+                    + segundos + " s por rodada");
+            System.out.println(String.format("%8s %16s %16s", "threads", "leituras/s", "alterações/s"));
+            for (int n : THREADS)
+                rodada(arvore, n, segundos, percentualEscritas, elementos);
+        } finally {
+            arvore.close();
+            for (File f : dir.listFiles())
+                f.delete();
+            dir.delete();
+        }
+    }
+
+    private static void rodada(ArvoreBMais<ParIntInt> arvore, int threads, int segundos, int percentualEscritas,
+            int elementos) throws Exception {
+        AtomicBoolean fim = new AtomicBoolean();
+        AtomicLong leituras = new AtomicLong();
+        AtomicLong alteracoes = new AtomicLong();
+        AtomicReference<Throwable> erro = new AtomicReference<>();
+        List<Thread> lista = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int semente = t;
+            lista.add(new Thread(() -> {
+                Random r = new Random(semente);
+                // Pares próprios da thread: chaves ímpares, fora dos carregados
+                ParIntInt proprio = new ParIntInt(2 * r.nextInt(elementos) + 1, semente);
+                boolean incluido = false;
+                long l = 0, a = 0;
+                try {
+                    while (!fim.get()) {
+                        if (r.nextInt(100) < percentualEscritas) {
+                            if (incluido)
+                                arvore.delete(proprio);
+                            else
+                                arvore.create(proprio);
+                            incluido = !incluido;
+                            a++;
+                        } else {
+                            int k = r.nextInt(elementos);
+                            if (arvore.read(new ParIntInt(2 * k, k)).size() != 1)
+                                throw new Exception("par não encontrado: " + k);
+                            l++;
+                        }
+                    }
+                    if (incluido)
+                        arvore.delete(proprio);
+                } catch (Throwable e) {
+                    erro.compareAndSet(null, e);
+                }
+                leituras.addAndGet(l);
+                alteracoes.addAndGet(a);
+            }));
+        }
+        long t0 = System.nanoTime();
+        lista.forEach(Thread::start);
+        Thread.sleep(segundos * 1000L);
+        fim.set(true);
+        for (Thread t : lista)
+            t.join();
+        if (erro.get() != null)
+            throw new Exception(erro.get());
+        double s = (System.nanoTime() - t0) / 1e9;
+        System.out.println(String.format("%8d %16.0f %16.0f", threads, leituras.get() / s, alteracoes.get() / s));
+    }
+}
@@ -0,0 +1,92 @@
+/*
+DESEMPENHO DA TABELA HASH COM O DIRETÓRIO CRESCENDO
+
+Mede o custo de uma busca na HashExtensivel à medida que o
+diretório cresce, com o diretório residente em memória e com o
+diretório recarregado a cada operação. Deve ser usado com a
+aplicação parada (as inclusões passam pelo log de transações da
+aplicação):
+
+  java bib.DesempenhoHash [elementosPorCesto] [maximo]
+
+- Para 1.000, 10.000, 100.000, ... elementos (até 'maximo'), é
+  criada uma tabela de ParIDEndereco com cestos pequenos (para
+  que o diretório fique profundo) e são medidas buscas de IDs
+  existentes, escolhidos ao acaso.
+- São exibidas a profundidade global do diretório e o tempo médio
+  de uma busca nos dois modos. Com o diretório residente, o tempo
+  deve ficar praticamente constante; recarregado, ele cresce com o
+  tamanho do diretório (2^profundidade endereços por busca).
+*/
+
+package bib;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Random;
+
+public class DesempenhoHash {
+
+    private static final int BLOCO = 10000; // elementos incluídos por transação
+
+    public static void main(String[] args) throws Exception {
+        int porCesto = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int maximo = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+
+        System.out.println(String.format("%10s %12s %18s %20s", "elementos", "profundidade", "residente (us)",
+                "recarregado (us)"));
+        File dir = Files.createTempDirectory("hash").toFile();
+        try {
+            for (int n = 1000; n <= maximo; n *= 10)
+                mede(dir, n, porCesto);
+        } finally {
+            for (File f : dir.listFiles())
+                f.delete();
+            dir.delete();
+        }
+    }
+
+    private static void mede(File dir, int n, int porCesto) throws Exception {
+        String nd = new File(dir, "hash" + n + ".d.db").getPath();
+        String nc = new File(dir, "hash" + n + ".c.db").getPath();
+
+        HashExtensivel<ParIDEndereco> h = new HashExtensivel<>(ParIDEndereco.class.getConstructor(), porCesto, nd, nc);
+        ArrayList<ParIDEndereco> bloco = new ArrayList<>(BLOCO);
+        for (int id = 1; id <= n; id++) {
+            bloco.add(new ParIDEndereco(id, id * 10L));
+            if (bloco.size() == BLOCO || id == n) {
+                h.createAll(bloco);
+                bloco.clear();
+            }
+        }
+        int profundidade = h.estatisticas().profundidadeGlobal;
+        double residente = buscas(h, n, 200000);
+        h.close();
+
+        h = new HashExtensivel<>(ParIDEndereco.class.getConstructor(), porCesto, nd, nc, false);
+        // Recarregar o diretório custa proporcionalmente ao seu tamanho:
+        // menos buscas nos diretórios grandes
+        double recarregado = buscas(h, n, Math.max(200, 2000000 >> profundidade));
+        h.close();
+
+        System.out.println(String.format("%10d %12d %18.2f %20.2f", n, profundidade, residente, recarregado));
+    }
+
+    // Tempo médio (em microssegundos) de uma busca de um ID existente, depois
+    // de um aquecimento com o mesmo número de buscas
+    private static double buscas(HashExtensivel<ParIDEndereco> h, int n, int quantidade) throws Exception {
+        Random r = new Random(1);
+        long t0 = 0;
+        for (int rodada = 0; rodada < 2; rodada++) {
+            t0 = System.nanoTime();
+            for (int i = 0; i < quantidade; i++) {
+                int id = 1 + r.nextInt(n);
+                ParIDEndereco p = h.read(id);
+                if (p == null || p.getEndereco() != id * 10L)
+                    throw new Exception("ID " + id + " não encontrado");
+            }
+        }
+        return (System.nanoTime() - t0) / 1000.0 / quantidade;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+DESEMPENHO DAS BUSCAS COM VÁRIOS TAMANHOS DE PÁGINA
+
+Mede o tempo de uma busca na ArvoreBMais e na HashExtensivel com
+páginas (e cestos) de tamanhos diferentes. Deve ser usado com a
+aplicação parada (as inclusões passam pelo log de transações da
+aplicação):
+
+  java bib.DesempenhoPaginas [elementos] [tamanho1 tamanho2 ...]
+
+- Os tamanhos padrão são 512, 4096 e 16384 bytes.
+- A árvore (de ParIntInt) é carregada em lote e a tabela (de
+  ParIDEndereco) recebe os elementos em transações de 10.000. O
+  cache da árvore comporta todas as páginas, de modo que o tempo
+  medido é o da busca dentro das páginas (busca binária sobre os
+  elementos serializados), e não o da leitura do disco.
+- São exibidos os elementos por página e o tempo médio de uma
+  busca de um elemento existente, escolhido ao acaso. Com a busca
+  binária, o tempo da árvore cresce pouco com o tamanho da página.
+  A tabela não tem cache de cestos: cada busca lê o cesto inteiro
+  do arquivo, e é essa leitura que faz o tempo crescer com o
+  tamanho do cesto (o hash só é calculado nas posições visitadas
+  pela busca binária).
+*/
+
+package bib;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Random;
+
+public class DesempenhoPaginas {
+
+    private static final int BUSCAS = 500000;
+
+    public static void main(String[] args) throws Exception {
+        int elementos = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int[] tamanhos = { 512, 4096, 16384 };
+        if (args.length > 1) {
+            tamanhos = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++)
+                tamanhos[i - 1] = Integer.parseInt(args[i]);
+        }
+
+        System.out.println(elementos + " elementos, " + BUSCAS + " buscas");
+        System.out.println(String.format("%8s %16s %14s %16s %14s", "página", "árvore: elem.", "árvore (us)",
+                "hash: elem.", "hash (us)"));
+        File dir = Files.createTempDirectory("paginas").toFile();
+        try {
+            for (int tamanho : tamanhos) {
+                double[] arvore = arvore(dir, elementos, tamanho);
+                double[] hash = hash(dir, elementos, tamanho);
+                System.out.println(String.format("%8d %16.0f %14.2f %16.0f %14.2f", tamanho, arvore[0], arvore[1],
+                        hash[0], hash[1]));
+            }
+        } finally {
+            for (File f : dir.listFiles())
+                f.delete();
+            dir.delete();
+        }
+    }
+
+    // Elementos por página e tempo médio de busca na árvore
+    private static double[] arvore(File dir, int n, int tamanho) throws Exception {
+        int ordem = ArvoreBMais.ordemParaBloco(ParIntInt.class.getConstructor(), tamanho);
+        // Todas as páginas no cache (com folga para as folhas 75% cheias)
+        int cache = (int) (2L * n / (ordem - 1)) + 64;
+        ArvoreBMais<ParIntInt> arvore = new ArvoreBMais<>(ParIntInt.class.getConstructor(),
+                new File(dir, "arvore" + tamanho + ".db").getPath(), tamanho, cache);
+        try {
+            arvore.carregaEmLote(new Iterator<ParIntInt>() {
+                int i = 0;
+
+                public boolean hasNext() {
+                    return i < n;
+                }
+
+                public ParIntInt next() {
+                    int k = i++;
+                    return new ParIntInt(2 * k, k);
+                }
+            }, 0.75);
+
+            Random r = new Random(1);
+            long t0 = 0;
+            for (int rodada = 0; rodada < 2; rodada++) { // a primeira rodada é o aquecimento
+                t0 = System.nanoTime();
+                for (int i = 0; i < BUSCAS; i++) {
+                    int k = r.nextInt(n);
+                    if (arvore.read(new ParIntInt(2 * k, k)).size() != 1)
+                        throw new Exception("elemento " + k + " não encontrado na árvore");
+                }
+            }
+            return new double[] { ordem - 1, (System.nanoTime() - t0) / 1000.0 / BUSCAS };
+        } finally {
+            arvore.close();
+        }
+    }
+
+    // Elementos por cesto e tempo médio de busca na tabela hash
+    private static double[] hash(File dir, int n, int tamanho) throws Exception {
+        HashExtensivel<ParIDEndereco> h = new HashExtensivel<>(ParIDEndereco.class.getConstructor(),
+                new File(dir, "hash" + tamanho + ".d.db").getPath(),
+                new File(dir, "hash" + tamanho + ".c.db").getPath(), tamanho);
+        try {
+            ArrayList<ParIDEndereco> bloco = new ArrayList<>();
+            for (int id = 1; id <= n; id++) {
+                bloco.add(new ParIDEndereco(id, id * 10L));
+                if (bloco.size() == 10000 || id == n) {
+                    h.createAll(bloco);
+                    bloco.clear();
+                }
+            }
+
+            Random r = new Random(1);
+            long t0 = 0;
+            for (int rodada = 0; rodada < 2; rodada++) {
+                t0 = System.nanoTime();
+                for (int i = 0; i < BUSCAS; i++) {
+                    int id = 1 + r.nextInt(n);
+                    if (h.read(id) == null)
+                        throw new Exception("ID " + id + " não encontrado na tabela");
+                }
+            }
+            return new double[] { h.estatisticas().capacidadeCesto, (System.nanoTime() - t0) / 1000.0 / BUSCAS };
+        } finally {
+            h.close();
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/*
+GERENCIADOR DE ESPAÇO LIVRE
+
+Controla os espaços deixados pelos registros excluídos (ou
+movidos) em um arquivo de dados, para que sejam reaproveitados
+por novos registros:
+
+- Os espaços ficam em memória, agrupados por tamanho em uma
+  árvore (TreeMap). A alocação escolhe o menor espaço que
+  comporta o registro (best fit), em O(log n), sem percorrer o
+  arquivo.
+- Alterações feitas dentro de uma transação do LogTransacoes são
+  anotadas e desfeitas se a transação for cancelada.
+- No fechamento, os espaços são gravados em um arquivo auxiliar
+  compacto. Na abertura, esse arquivo só é usado se corresponder
+  ao arquivo de dados (mesmo tamanho e CRC válido) e é apagado
+  em seguida; sem ele (por exemplo, após uma queda), os espaços
+  são reconstruídos por uma varredura das lápides do arquivo.
+
+Instâncias de Arquivo sobre o mesmo arquivo de dados compartilham
+o mesmo gerenciador.
+
+Formato do arquivo auxiliar:
+  int MAGICO, long tamanho do arquivo de dados, int quantidade,
+  (long endereço, short tamanho) * quantidade, int crc32
+*/
+
+package bib;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+public class EspacoLivre {
+
+    private static final int MAGICO = 0x50464553; // "PFES"
+    private static final int TAM_BUFFER_VARREDURA = 64 * 1024;
+
+    // Gerenciadores abertos, pelo caminho do arquivo de dados
+    private static final HashMap<String, EspacoLivre> abertos = new HashMap<>();
+
+    private final String chave;
+    private final String nomeAuxiliar;
+    private final Armazenamento arquivo;
+    private final LogTransacoes log;
+    private int referencias;
+
+    // Espaços livres: tamanho -> endereços com esse tamanho
+    private final TreeMap<Integer, ArrayDeque<Long>> espacos = new TreeMap<>();
+    private int quantidade;
+    private long bytesLivres;
+
+    // Alterações da transação corrente, para o cancelamento. Cada entrada é
+    // {endereço, tamanho, 1 se foi liberado ou 0 se foi alocado}.
+    private final ArrayList<long[]> desfazer = new ArrayList<>();
+    private final Runnable aoConfirmar = this::esqueceTransacao;
+    private final Runnable aoCancelar = this::desfazTransacao;
+
+    // Abre o gerenciador do arquivo de dados (ou compartilha o que já estiver
+    // aberto). 'inicio' é o endereço do primeiro registro do arquivo.
+    public static synchronized EspacoLivre abre(String nomeDados, String nomeAuxiliar, Armazenamento arquivo,
+            long inicio) throws IOException {
+        String chave = new File(nomeDados).getCanonicalPath();
+        EspacoLivre e = abertos.get(chave);
+        if (e == null) {
+            e = new EspacoLivre(chave, nomeAuxiliar, arquivo, inicio);
+            abertos.put(chave, e);
+        }
+        e.referencias++;
+        return e;
+    }
+
+    private EspacoLivre(String chave, String nomeAuxiliar, Armazenamento arquivo, long inicio) throws IOException {
+        this.chave = chave;
+        this.nomeAuxiliar = nomeAuxiliar;
+        this.arquivo = arquivo;
+        this.log = LogTransacoes.instancia();
+        if (!carregaAuxiliar())
+            reconstroi(inicio);
+
+        // A partir daqui, o arquivo auxiliar deixa de valer: ele só é regravado
+        // no fechamento
+        Files.deleteIfExists(new File(nomeAuxiliar).toPath());
+        log.adicionaOuvinteConfirmacao(aoConfirmar);
+        log.adicionaOuvinteCancelamento(aoCancelar);
+    }
+
+    // Fecha uma referência. Na última, grava o arquivo auxiliar.
+    public void fecha() throws IOException {
+        synchronized (EspacoLivre.class) {
+            if (referencias == 0 || --referencias > 0)
+                return;
+            abertos.remove(chave);
+        }
+        log.removeOuvinteConfirmacao(aoConfirmar);
+        log.removeOuvinteCancelamento(aoCancelar);
+        gravaAuxiliar();
+    }
+
+    // ------------------------------------------------------------------
+    // Alocação
+    // ------------------------------------------------------------------
+
+    // Retira e retorna o menor espaço com pelo menos 'tamanho' bytes de dados,
+    // ou -1 se não houver nenhum
+    public synchronized long aloca(int tamanho) {
+        Map.Entry<Integer, ArrayDeque<Long>> e = espacos.ceilingEntry(tamanho);
+        if (e == null)
+            return -1;
+        long endereco = e.getValue().pop();
+        if (e.getValue().isEmpty())
+            espacos.remove(e.getKey());
+        quantidade--;
+        bytesLivres -= e.getKey();
+        anota(endereco, e.getKey(), false);
+        return endereco;
+    }
+
+    // Registra o espaço de um registro excluído ('tamanho' = tamanho gravado
+    // no registro, sem contar a lápide e o próprio tamanho)
+    public synchronized void libera(long endereco, int tamanho) {
+        insere(endereco, tamanho);
+        anota(endereco, tamanho, true);
+    }
+
+    public synchronized int getQuantidade() {
+        return quantidade;
+    }
+
+    public synchronized long getBytesLivres() {
+        return bytesLivres;
+    }
+
+    private void insere(long endereco, int tamanho) {
+        espacos.computeIfAbsent(tamanho, t -> new ArrayDeque<>()).push(endereco);
+        quantidade++;
+        bytesLivres += tamanho;
+    }
+
+    private void retira(long endereco, int tamanho) {
+        ArrayDeque<Long> enderecos = espacos.get(tamanho);
+        if (enderecos != null && enderecos.remove(endereco)) {
+            if (enderecos.isEmpty())
+                espacos.remove(tamanho);
+            quantidade--;
+            bytesLivres -= tamanho;
+        }
+    }
+
+    // ------------------------------------------------------------------
+    // Integração com o log
+    // ------------------------------------------------------------------
+
+    private void anota(long endereco, int tamanho, boolean liberado) {
+        if (log.emTransacao())
+            desfazer.add(new long[] { endereco, tamanho, liberado ? 1 : 0 });
+    }
+
+    private synchronized void esqueceTransacao() {
+        desfazer.clear();
+    }
+
+    private synchronized void desfazTransacao() {
+        for (int i = desfazer.size() - 1; i >= 0; i--) {
+            long[] d = desfazer.get(i);
+            if (d[2] == 1)
+                retira(d[0], (int) d[1]);
+            else
+                insere(d[0], (int) d[1]);
+        }
+        desfazer.clear();
+    }
+
+    // ------------------------------------------------------------------
+    // Persistência
+    // ------------------------------------------------------------------
+
+    private boolean carregaAuxiliar() throws IOException {
+        File f = new File(nomeAuxiliar);
+        if (!f.exists() || f.length() < 20)
+            return false;
+        byte[] ba = Files.readAllBytes(f.toPath());
+        CRC32 crc = new CRC32();
+        crc.update(ba, 0, ba.length - 4);
+        ByteBuffer bb = ByteBuffer.wrap(ba);
+        if (bb.getInt(ba.length - 4) != (int) crc.getValue())
+            return false;
+        if (bb.getInt() != MAGICO || bb.getLong() != arquivo.tamanho())
+            return false;
+        int n = bb.getInt();
+        if (ba.length != 20 + n * 10)
+            return false;
+        for (int i = 0; i < n; i++) {
+            long endereco = bb.getLong();
+            insere(endereco, bb.getShort());
+        }
+        return true;
+    }
+
+    private synchronized void gravaAuxiliar() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(20 + quantidade * 10);
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeInt(MAGICO);
+        dos.writeLong(arquivo.tamanho());
+        dos.writeInt(quantidade);
+        for (Map.Entry<Integer, ArrayDeque<Long>> e : espacos.entrySet())
+            for (long endereco : e.getValue()) {
+                dos.writeLong(endereco);
+                dos.writeShort(e.getKey());
+            }
+        CRC32 crc = new CRC32();
+        crc.update(baos.toByteArray());
+        dos.writeInt((int) crc.getValue());
+        try (FileOutputStream fos = new FileOutputStream(nomeAuxiliar)) {
+            baos.writeTo(fos);
+            fos.getFD().sync();
+        }
+    }
+
+    // Percorre os cabeçalhos dos registros (lápide e tamanho) e registra os
+    // excluídos. Os dados dos registros não são decodificados.
+    private void reconstroi(long inicio) throws IOException {
+        long fim = arquivo.tamanho();
+        byte[] buffer = new byte[TAM_BUFFER_VARREDURA];
+        long inicioBuffer = 0;
+        int bytesNoBuffer = 0;
+        long pos = inicio;
+        while (pos + 3 <= fim) {
+            if (pos < inicioBuffer || pos + 3 > inicioBuffer + bytesNoBuffer) {
+                inicioBuffer = pos;
+                bytesNoBuffer = (int) Math.min(buffer.length, fim - pos);
+                arquivo.le(pos, buffer, 0, bytesNoBuffer);
+            }
+            int i = (int) (pos - inicioBuffer);
+            byte lapide = buffer[i];
+            short tam = (short) (((buffer[i + 1] & 0xFF) << 8) | (buffer[i + 2] & 0xFF));
+            if (tam < 0 || pos + 3 + tam > fim)
+                break; // registro inconsistente: encerra a varredura
+            if (lapide == '*')
+                insere(pos, tam);
+            pos += 3 + tam;
+        }
+    }
+}
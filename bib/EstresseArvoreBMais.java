@@ -0,0 +1,205 @@
+/*
+ESTRESSE DA ÁRVORE B+
+
+Verifica a ArvoreBMais sob inclusões e exclusões aleatórias. Deve
+ser usado com a aplicação parada (as operações passam pelo log de
+transações da aplicação):
+
+  java bib.EstresseArvoreBMais [operacoes] [escritores] [leitores]
+
+1. Fase sequencial: árvore de ordem pequena (muitas divisões e
+   fusões) e chaves com a primeira parte repetida. Depois de cada
+   operação, o resultado e o conteúdo inteiro da árvore são
+   comparados com um TreeSet. Esta fase cobre o caso de um elemento
+   igual a um separador de página interna: o elemento promovido da
+   divisão do filho tem de ficar à direita do separador.
+2. Fase concorrente: os escritores incluem e excluem pares próprios
+   enquanto os leitores buscam, por ponto e por faixa, pares
+   estáveis (incluídos antes e nunca excluídos). Cada leitura
+   confere a ordem e a presença de todos os pares estáveis da
+   faixa; no fim, a árvore inteira é conferida.
+
+A ferramenta termina com código 1 na primeira divergência. Os
+arquivos das árvores são criados em um diretório temporário.
+*/
+
+package bib;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class EstresseArvoreBMais {
+
+    private static final int ORDEM = 4;
+    private static final int CACHE = 8; // o mínimo: força a leitura das páginas do arquivo
+
+    public static void main(String[] args) throws Exception {
+        int operacoes = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int escritores = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int leitores = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+
+        File dir = Files.createTempDirectory("arvore").toFile();
+        try {
+            sequencial(new File(dir, "sequencial.db").getPath(), operacoes);
+            concorrente(new File(dir, "concorrente.db").getPath(), operacoes, escritores, leitores);
+        } catch (Throwable e) {
+            System.out.println("FALHA: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(1);
+        } finally {
+            for (File f : dir.listFiles())
+                f.delete();
+            dir.delete();
+        }
+        System.out.println("OK");
+    }
+
+    private static long chave(ParIntInt p) {
+        return ((long) p.getChave() << 32) | (p.getValor() & 0xFFFFFFFFL);
+    }
+
+    private static void sequencial(String nomeArquivo, int operacoes) throws Exception {
+        ArvoreBMais<ParIntInt> arvore = new ArvoreBMais<>(ParIntInt.class.getConstructor(), ORDEM, nomeArquivo, CACHE);
+        TreeSet<Long> referencia = new TreeSet<>();
+        Random r = new Random(5);
+        long t0 = System.nanoTime();
+        try {
+            for (int i = 0; i < operacoes; i++) {
+                int c = r.nextInt(20), v = r.nextInt(50);
+                long k = ((long) c << 32) | v;
+                boolean inclusao = r.nextInt(3) != 0;
+                boolean obtido = inclusao ? arvore.create(new ParIntInt(c, v)) : arvore.delete(new ParIntInt(c, v));
+                boolean esperado = inclusao ? referencia.add(k) : referencia.remove(k);
+                if (obtido != esperado)
+                    throw new Exception("operação " + i + ": " + (inclusao ? "inclusão" : "exclusão") + " de ("
+                            + c + ";" + v + ") devolveu " + obtido);
+
+                ArrayList<ParIntInt> todos = arvore.read(null);
+                if (todos.size() != referencia.size())
+                    throw new Exception("operação " + i + ": " + todos.size() + " elementos, esperados " + referencia.size());
+                Iterator<Long> it = referencia.iterator();
+                for (ParIntInt p : todos)
+                    if (chave(p) != it.next())
+                        throw new Exception("operação " + i + ": elemento fora de ordem ou faltando: " + p);
+            }
+        } finally {
+            arvore.close();
+        }
+        System.out.println("Sequencial: " + operacoes + " operações conferidas em "
+                + (System.nanoTime() - t0) / 1_000_000 + " ms");
+    }
+
+    private static void concorrente(String nomeArquivo, int operacoes, int escritores, int leitores)
+            throws Exception {
+        ArvoreBMais<ParIntInt> arvore = new ArvoreBMais<>(ParIntInt.class.getConstructor(), ORDEM + 1, nomeArquivo, 64);
+        try {
+            // Pares estáveis: primeira parte par. Os escritores usam a primeira
+            // parte ímpar e valores próprios (valor % escritores == escritor).
+            TreeSet<Long> estaveis = new TreeSet<>();
+            Random r0 = new Random(1);
+            for (int i = 0; i < 3000; i++) {
+                int c = 2 * r0.nextInt(100), v = r0.nextInt(100000);
+                if (arvore.create(new ParIntInt(c, v)))
+                    estaveis.add(((long) c << 32) | v);
+            }
+            Long[] vetorEstaveis = estaveis.toArray(new Long[0]);
+
+            AtomicReference<Throwable> erro = new AtomicReference<>();
+            AtomicBoolean fim = new AtomicBoolean();
+            AtomicLong leituras = new AtomicLong();
+            int porEscritor = Math.max(1, operacoes / Math.max(1, escritores));
+
+            List<Thread> threadsEscritores = new ArrayList<>();
+            for (int w = 0; w < escritores; w++) {
+                int escritor = w;
+                threadsEscritores.add(new Thread(() -> {
+                    Random r = new Random(100 + escritor);
+                    try {
+                        for (int i = 0; i < porEscritor && erro.get() == null; i++) {
+                            ParIntInt p = new ParIntInt(2 * r.nextInt(100) + 1, r.nextInt(300) * escritores + escritor);
+                            if (r.nextInt(3) != 0)
+                                arvore.create(p);
+                            else
+                                arvore.delete(p);
+                        }
+                    } catch (Throwable e) {
+                        erro.compareAndSet(null, e);
+                    }
+                }));
+            }
+            List<Thread> threadsLeitores = new ArrayList<>();
+            for (int q = 0; q < leitores; q++) {
+                int leitor = q;
+                threadsLeitores.add(new Thread(() -> {
+                    Random r = new Random(7 + leitor);
+                    try {
+                        while (!fim.get() && erro.get() == null) {
+                            long x = vetorEstaveis[r.nextInt(vetorEstaveis.length)];
+                            ParIntInt p = new ParIntInt((int) (x >> 32), (int) x);
+                            if (r.nextInt(3) == 0) {
+                                if (arvore.read(p).size() != 1)
+                                    throw new Exception("par estável não encontrado: " + p);
+                            } else {
+                                confereFaixa(arvore.read(p, 80), x, estaveis);
+                            }
+                            leituras.incrementAndGet();
+                        }
+                    } catch (Throwable e) {
+                        erro.compareAndSet(null, e);
+                    }
+                }));
+            }
+
+            long t0 = System.nanoTime();
+            threadsLeitores.forEach(Thread::start);
+            threadsEscritores.forEach(Thread::start);
+            for (Thread t : threadsEscritores)
+                t.join();
+            fim.set(true);
+            for (Thread t : threadsLeitores)
+                t.join();
+            if (erro.get() != null)
+                throw new Exception("fase concorrente: " + erro.get(), erro.get());
+
+            ArrayList<ParIntInt> todos = arvore.read(null);
+            for (int i = 1; i < todos.size(); i++)
+                if (chave(todos.get(i)) <= chave(todos.get(i - 1)))
+                    throw new Exception("ordem final: " + todos.get(i - 1) + " antes de " + todos.get(i));
+            for (long x : vetorEstaveis)
+                if (arvore.read(new ParIntInt((int) (x >> 32), (int) x)).size() != 1)
+                    throw new Exception("par estável perdido: " + (x >> 32) + ";" + (int) x);
+            System.out.println("Concorrente: " + escritores + " escritores, " + leitores + " leitores, "
+                    + leituras.get() + " leituras conferidas em " + (System.nanoTime() - t0) / 1_000_000 + " ms");
+        } finally {
+            arvore.close();
+        }
+    }
+
+    // A faixa deve começar em x, estar em ordem e conter todos os pares
+    // estáveis até o seu último elemento
+    private static void confereFaixa(ArrayList<ParIntInt> faixa, long x, TreeSet<Long> estaveis) throws Exception {
+        if (faixa.isEmpty() || chave(faixa.get(0)) != x)
+            throw new Exception("faixa não começa no par estável " + (x >> 32) + ";" + (int) x);
+        long anterior = Long.MIN_VALUE;
+        HashSet<Long> presentes = new HashSet<>();
+        for (ParIntInt p : faixa) {
+            long k = chave(p);
+            if (k <= anterior)
+                throw new Exception("faixa fora de ordem: " + faixa);
+            anterior = k;
+            presentes.add(k);
+        }
+        for (long e : estaveis.subSet(x, true, anterior, true))
+            if (!presentes.contains(e))
+                throw new Exception("faixa sem o par estável " + (e >> 32) + ";" + (int) e);
+    }
+}
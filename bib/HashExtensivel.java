@@ -5,9 +5,35 @@ Os nomes dos métodos foram mantidos em inglês
 apenas para manter a coerência com o resto da
 disciplina:
 - boolean create(T elemento)
-- long read(int hashcode)
-- boolean update(T novoElemento)   //  a chave (hashcode) deve ser a mesma
-- boolean delete(int hashcode)
+- T read(T chave)                  //  elemento com a mesma chave completa
+- T read(long hash)                //  para chaves numéricas (hash = chave)
+- boolean update(T novoElemento)   //  a chave deve ser a mesma
+- boolean delete(T chave)
+- boolean deleteExato(T elemento)  //  só se o elemento gravado for idêntico
+- boolean delete(long hash)
+- ArrayList<T> readAll()           //  todos os elementos, sem ordem
+- boolean empty()
+- Estatisticas estatisticas()      //  profundidade e ocupação dos cestos
+
+Vários elementos podem ter o mesmo hash (de 64 bits): eles
+ficam no mesmo cesto e são distinguidos por mesmaChave().
+
+Nas exclusões, um cesto é juntado ao seu irmão (o cesto que
+difere dele apenas no último bit da profundidade local) quando
+os dois, somados, ocupam até OCUPACAO_JUNCAO da capacidade. O
+diretório é reduzido à metade sempre que nenhum cesto usa a
+profundidade global. Os cestos liberados formam uma lista
+encadeada no próprio arquivo de cestos (cujo início é gravado
+no fim do diretório) e são reaproveitados nas divisões.
+
+O tamanho dos cestos pode ser dado em bytes (por exemplo,
+TAMANHO_CESTO_PADRAO, uma página de 4 KiB): cabem tantos
+elementos quantos o tamanho permitir, e o cesto é completado
+até o tamanho pedido. O tamanho e a capacidade dos cestos ficam
+gravados no fim do diretório e prevalecem sobre os informados
+na abertura; para mudar o tamanho de um índice existente, use
+ReconstroiHash (uma troca de arquivos interrompida dessa
+ferramenta é concluída na abertura).
 
 Implementado pelo Prof. Marcos Kutova
 v1.1 - 2021
@@ -16,19 +42,66 @@ v1.1 - 2021
 package bib;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.lang.reflect.Constructor;
 
 public class HashExtensivel<T extends RegistroHashExtensivel> {
 
   String nomeArquivoDiretorio;
   String nomeArquivoCestos;
-  RandomAccessFile arqDiretorio;
-  RandomAccessFile arqCestos;
+  Armazenamento arqDiretorio;
+  Armazenamento arqCestos;
   int quantidadeDadosPorCesto;
-  Diretorio diretorio;
+  volatile Diretorio diretorio;
   Constructor<T> construtor;
-
+  boolean diretorioResidente; // se verdadeiro, o diretório em memória é a cópia de referência
+  LogTransacoes log;
+  Runnable descartaDiretorio = this::descartaDiretorio; // usado quando uma transação é cancelada
+  ThreadLocal<T> elementoAuxiliar = new ThreadLocal<>(); // usado para calcular o hash dos elementos serializados
+
+  // Concorrência:
+  // - a trava do diretório é compartilhada pelas alterações que mexem em um
+  //   único cesto e exclusiva na divisão de cestos (que altera o diretório);
+  // - cada cesto é protegido por uma das travas de TRAVAS_CESTOS (escolhida
+  //   pelo endereço do cesto), de modo que operações em cestos diferentes
+  //   não esperam umas pelas outras;
+  // - as leituras não usam a trava do diretório: anotam a versão do
+  //   diretório, leem o cesto e repetem a busca se uma divisão tiver
+  //   ocorrido nesse meio tempo (versão ímpar = divisão em andamento).
+  //   O diretório residente nunca é alterado no lugar: a divisão altera uma
+  //   cópia e a publica ao final.
+  static final int TRAVAS_CESTOS = 64;
+  static final int TENTATIVAS_OTIMISTAS = 16;
+  final ReentrantReadWriteLock trava = new ReentrantReadWriteLock();
+  final ReentrantReadWriteLock[] travasCestos = new ReentrantReadWriteLock[TRAVAS_CESTOS];
+  final AtomicLong versaoDiretorio = new AtomicLong();
+  int tamanhoCesto; // tamanho de cada cesto no arquivo, em bytes
+
+  // Dois cestos irmãos são juntados quando, somados, ocupam até esta fração
+  // da capacidade de um cesto
+  static final double OCUPACAO_JUNCAO = 0.75;
+  int limiteJuncao;
+
+  // Na inclusão em lote, as divisões de cestos alteram uma única cópia do
+  // diretório, visível apenas para a thread do lote (que mantém a trava
+  // exclusiva do diretório), gravada e publicada uma só vez ao final
+  Diretorio diretorioLote;
+  boolean diretorioLoteAlterado;
+
+  // Os elementos do cesto ficam serializados, em ordem de hash, em um vetor
+  // de bytes, acompanhados de um vetor com os seus hashes. As buscas são
+  // binárias sobre esse vetor e os objetos só são criados para os elementos
+  // com o hash procurado (para a comparação da chave completa) e para os
+  // devolvidos. Um cesto lido apenas para uma busca (leCestoParaBusca) não
+  // tem o vetor de hashes: o hash é calculado só nas posições visitadas pela
+  // busca binária, de modo que o custo da busca não cresce com o cesto.
   public class Cesto {
 
     Constructor<T> construtor;
@@ -38,7 +111,8 @@ public class HashExtensivel<T extends RegistroHashExtensivel> {
 
     byte profundidadeLocal; // profundidade local do cesto
     short quantidade; // quantidade de elementos presentes no cesto
-    ArrayList<T> elementos; // sequência de elementos armazenados
+    byte[] dados; // sequência de elementos armazenados (serializados)
+    long[] hashes; // hash de cada elemento armazenado (null: calculado na busca)
 
     public Cesto(Constructor<T> ct, int qtdmax) throws Exception {
       this(ct, qtdmax, 0);
@@ -53,99 +127,157 @@ public class HashExtensivel<T extends RegistroHashExtensivel> {
       profundidadeLocal = (byte) pl;
       quantidade = 0;
       quantidadeMaxima = (short) qtdmax;
-      elementos = new ArrayList<>(quantidadeMaxima);
-      bytesPorElemento = ct.newInstance().size();
-      bytesPorCesto = (short) (bytesPorElemento * quantidadeMaxima + 3);
+      bytesPorElemento = elementoAuxiliar().size();
+      bytesPorCesto = (short) Math.max(bytesPorElemento * quantidadeMaxima + 3, tamanhoCesto);
+      dados = new byte[bytesPorElemento * quantidadeMaxima];
+      hashes = new long[quantidadeMaxima];
     }
 
     public byte[] toByteArray() throws Exception {
-      ByteArrayOutputStream baos = new ByteArrayOutputStream();
-      DataOutputStream dos = new DataOutputStream(baos);
-      dos.writeByte(profundidadeLocal);
-      dos.writeShort(quantidade);
-      int i = 0;
-      while (i < quantidade) {
-        dos.write(elementos.get(i).toByteArray());
-        i++;
-      }
-      byte[] vazio = new byte[bytesPorElemento];
-      while (i < quantidadeMaxima) {
-        dos.write(vazio);
-        i++;
-      }
-      return baos.toByteArray();
+      // As posições vazias ficam zeradas
+      byte[] ba = new byte[bytesPorCesto];
+      ba[0] = profundidadeLocal;
+      ba[1] = (byte) (quantidade >> 8);
+      ba[2] = (byte) quantidade;
+      System.arraycopy(dados, 0, ba, 3, quantidade * bytesPorElemento);
+      return ba;
     }
 
     public void fromByteArray(byte[] ba) throws Exception {
-      ByteArrayInputStream bais = new ByteArrayInputStream(ba);
-      DataInputStream dis = new DataInputStream(bais);
-      profundidadeLocal = dis.readByte();
-      quantidade = dis.readShort();
-      int i = 0;
-      elementos = new ArrayList<>(quantidadeMaxima);
-      byte[] dados = new byte[bytesPorElemento];
-      T elem;
-      while (i < quantidadeMaxima) {
-        dis.read(dados);
-        elem = construtor.newInstance();
-        elem.fromByteArray(dados);
-        elementos.add(elem);
-        i++;
+      profundidadeLocal = ba[0];
+      quantidade = (short) (((ba[1] & 0xFF) << 8) | (ba[2] & 0xFF));
+      System.arraycopy(ba, 3, dados, 0, quantidade * bytesPorElemento);
+      T aux = elementoAuxiliar();
+      for (int i = 0; i < quantidade; i++)
+        hashes[i] = aux.hash(dados, i * bytesPorElemento);
+    }
+
+    // Como fromByteArray, sem calcular os hashes (cesto apenas para busca)
+    void fromByteArrayParaBusca(byte[] ba) {
+      profundidadeLocal = ba[0];
+      quantidade = (short) (((ba[1] & 0xFF) << 8) | (ba[2] & 0xFF));
+      System.arraycopy(ba, 3, dados, 0, quantidade * bytesPorElemento);
+      hashes = null;
+    }
+
+    // Hash do i-ésimo elemento
+    long hash(int i) throws Exception {
+      return hashes != null ? hashes[i] : elementoAuxiliar().hash(dados, i * bytesPorElemento);
+    }
+
+    // Cria o objeto correspondente ao i-ésimo elemento do cesto
+    T elemento(int i) throws Exception {
+      T elem = construtor.newInstance();
+      elem.fromByteArray(Arrays.copyOfRange(dados, i * bytesPorElemento, (i + 1) * bytesPorElemento));
+      return elem;
+    }
+
+    // Busca binária: posição do primeiro elemento com hash maior ou igual ao
+    // procurado (ou a quantidade, se não houver)
+    int busca(long hashElem) throws Exception {
+      int ini = 0, fim = quantidade;
+      while (ini < fim) {
+        int meio = (ini + fim) >>> 1;
+        if (hash(meio) < hashElem)
+          ini = meio + 1;
+        else
+          fim = meio;
       }
+      return ini;
     }
 
     // Inserir elementos no cesto
-    public boolean create(T elem) {
+    public boolean create(T elem) throws Exception {
       if (full())
         return false;
-      int i = quantidade - 1; // posição do último elemento no cesto
-      while (i >= 0 && elem.hashCode() < elementos.get(i).hashCode())
-        i--;
-      elementos.add(i + 1, elem);
+      long hashElem = elem.hash();
+      int i = busca(hashElem);
+      while (i < quantidade && hashes[i] == hashElem) // mantém a ordem de inserção entre hashes iguais
+        i++;
+      System.arraycopy(dados, i * bytesPorElemento, dados, (i + 1) * bytesPorElemento, (quantidade - i) * bytesPorElemento);
+      System.arraycopy(hashes, i, hashes, i + 1, quantidade - i);
+      System.arraycopy(elem.toByteArray(), 0, dados, i * bytesPorElemento, bytesPorElemento);
+      hashes[i] = hashElem;
       quantidade++;
       return true;
     }
 
+    // Posição do elemento com o hash indicado e a mesma chave de 'chave' (ou
+    // o primeiro com o hash, se 'chave' for null), ou -1 se não houver
+    int posicao(long hashElem, T chave) throws Exception {
+      for (int i = busca(hashElem); i < quantidade && hash(i) == hashElem; i++)
+        if (chave == null || elemento(i).mesmaChave(chave))
+          return i;
+      return -1;
+    }
+
     // Buscar um elemento no cesto
-    public T read(int hashElem) {
-      if (empty())
-        return null;
-      int i = 0;
-      while (i < quantidade && hashElem > elementos.get(i).hashCode())
-        i++;
-      if (i < quantidade && hashElem == elementos.get(i).hashCode())
-        return elementos.get(i);
-      else
-        return null;
+    public T read(long hashElem, T chave) throws Exception {
+      int i = posicao(hashElem, chave);
+      return i == -1 ? null : elemento(i);
+    }
+
+    public T read(T chave) throws Exception {
+      return read(chave.hash(), chave);
     }
 
     // atualizar um elemento do cesto
-    public boolean update(T elem) {
-      if (empty())
-        return false;
-      int i = 0;
-      while (i < quantidade && elem.hashCode() > elementos.get(i).hashCode())
-        i++;
-      if (i < quantidade && elem.hashCode() == elementos.get(i).hashCode()) {
-        elementos.set(i, elem);
-        return true;
-      } else
+    public boolean update(T elem) throws Exception {
+      int i = posicao(elem.hash(), elem);
+      if (i == -1)
         return false;
+      System.arraycopy(elem.toByteArray(), 0, dados, i * bytesPorElemento, bytesPorElemento);
+      return true;
+    }
+
+    // Posição do elemento gravado idêntico a 'elem' (mesma chave e mesmos
+    // demais campos), ou -1 se não houver
+    int posicaoExata(long hashElem, T elem) throws Exception {
+      byte[] ba = elem.toByteArray();
+      for (int i = busca(hashElem); i < quantidade && hash(i) == hashElem; i++)
+        if (Arrays.equals(dados, i * bytesPorElemento, (i + 1) * bytesPorElemento, ba, 0, bytesPorElemento))
+          return i;
+      return -1;
     }
 
     // pagar um elemento do cesto
-    public boolean delete(int hashElem) {
-      if (empty())
-        return false;
-      int i = 0;
-      while (i < quantidade && hashElem > elementos.get(i).hashCode())
-        i++;
-      if (hashElem == elementos.get(i).hashCode()) {
-        elementos.remove(i);
-        quantidade--;
-        return true;
-      } else
+    public boolean delete(long hashElem, T chave, boolean exato) throws Exception {
+      int i = exato ? posicaoExata(hashElem, chave) : posicao(hashElem, chave);
+      if (i == -1)
         return false;
+      System.arraycopy(dados, (i + 1) * bytesPorElemento, dados, i * bytesPorElemento, (quantidade - i - 1) * bytesPorElemento);
+      System.arraycopy(hashes, i + 1, hashes, i, quantidade - i - 1);
+      quantidade--;
+      return true;
+    }
+
+    // Acrescenta ao fim do cesto o i-ésimo elemento de outro cesto, já
+    // serializado (usado na divisão, que percorre a origem em ordem de hash)
+    void acrescenta(Cesto origem, int i) {
+      System.arraycopy(origem.dados, i * bytesPorElemento, dados, quantidade * bytesPorElemento, bytesPorElemento);
+      hashes[quantidade] = origem.hashes[i];
+      quantidade++;
+    }
+
+    // Preenche o cesto (vazio) com os elementos de dois cestos irmãos,
+    // intercalados em ordem de hash
+    void junta(Cesto a, Cesto b) {
+      int i = 0, j = 0;
+      while (i < a.quantidade || j < b.quantidade) {
+        if (j == b.quantidade || (i < a.quantidade && a.hashes[i] <= b.hashes[j]))
+          acrescenta(a, i++);
+        else
+          acrescenta(b, j++);
+      }
+    }
+
+    // Verifica se todos os elementos têm o hash indicado (a divisão do cesto
+    // não os separaria)
+    boolean todosComHash(long hashElem) {
+      for (int i = 0; i < quantidade; i++)
+        if (hashes[i] != hashElem)
+          return false;
+      return true;
     }
 
     public boolean empty() {
@@ -160,7 +292,11 @@ public class HashExtensivel<T extends RegistroHashExtensivel> {
       String s = "Profundidade Local: " + profundidadeLocal + "\nQuantidade: " + quantidade + "\n| ";
       int i = 0;
       while (i < quantidade) {
-        s += elementos.get(i).toString() + " | ";
+        try {
+          s += elemento(i).toString() + " | ";
+        } catch (Exception e) {
+          s += "? | ";
+        }
         i++;
       }
       while (i < quantidadeMaxima) {
@@ -180,11 +316,15 @@ public class HashExtensivel<T extends RegistroHashExtensivel> {
 
     byte profundidadeGlobal;
     long[] enderecos;
+    long cestoLivre; // primeiro cesto da lista de cestos liberados (-1 se vazia)
+    int tamanhoCestoGravado; // tamanho dos cestos gravado no diretório (0 se ausente)
+    short capacidadeGravada; // elementos por cesto gravado no diretório
 
     public Diretorio() {
       profundidadeGlobal = 0;
       enderecos = new long[1];
       enderecos[0] = 0;
+      cestoLivre = -1;
     }
 
     public boolean atualizaEndereco(int p, long e) {
@@ -204,6 +344,9 @@ public class HashExtensivel<T extends RegistroHashExtensivel> {
         dos.writeLong(enderecos[i]);
         i++;
       }
+      dos.writeLong(cestoLivre);
+      dos.writeInt(tamanhoCesto);
+      dos.writeShort(quantidadeDadosPorCesto);
       return baos.toByteArray();
     }
 
@@ -218,6 +361,25 @@ public class HashExtensivel<T extends RegistroHashExtensivel> {
         enderecos[i] = dis.readLong();
         i++;
       }
+      // Diretórios gravados antes da lista de cestos livres ou do tamanho dos
+      // cestos terminam antes desses campos (e podem ter, depois de uma
+      // redução, restos de endereços, cujos 4 primeiros bytes são nulos)
+      cestoLivre = dis.available() >= 8 ? dis.readLong() : -1;
+      if (dis.available() >= 6) {
+        tamanhoCestoGravado = dis.readInt();
+        capacidadeGravada = dis.readShort();
+      }
+    }
+
+    // Cópia independente, usada pela divisão de cestos
+    public Diretorio copia() {
+      Diretorio d = new Diretorio();
+      d.profundidadeGlobal = profundidadeGlobal;
+      d.enderecos = enderecos.clone();
+      d.cestoLivre = cestoLivre;
+      d.tamanhoCestoGravado = tamanhoCestoGravado;
+      d.capacidadeGravada = capacidadeGravada;
+      return d;
     }
 
     public String toString() {
@@ -254,97 +416,440 @@ public class HashExtensivel<T extends RegistroHashExtensivel> {
       return true;
     }
 
+    // O diretório pode ser reduzido à metade se nenhum cesto usar a
+    // profundidade global, isto é, se as duas metades forem iguais
+    protected boolean podeReduzir() {
+      if (profundidadeGlobal == 0)
+        return false;
+      int q1 = (int) Math.pow(2, profundidadeGlobal - 1);
+      for (int i = 0; i < q1; i++)
+        if (enderecos[i] != enderecos[i + q1])
+          return false;
+      return true;
+    }
+
+    protected void reduz() {
+      profundidadeGlobal--;
+      enderecos = Arrays.copyOf(enderecos, (int) Math.pow(2, profundidadeGlobal));
+    }
+
     // Para efeito de determinar o cesto em que o elemento deve ser inserido,
-    // só serão considerados valores absolutos da chave.
-    protected int hash(int chave) {
-      return Math.abs(chave) % (int) Math.pow(2, profundidadeGlobal);
+    // são considerados os 'profundidadeGlobal' bits menos significativos do
+    // hash (para chaves positivas, o mesmo que o resto da divisão).
+    protected int hash(long chave) {
+      return hash2(chave, profundidadeGlobal);
     }
 
     // Método auxiliar para atualizar endereço ao duplicar o diretório
-    protected int hash2(int chave, int pl) { // cálculo do hash para uma dada profundidade local
-      return Math.abs(chave) % (int) Math.pow(2, pl);
+    protected int hash2(long chave, int pl) { // cálculo do hash para uma dada profundidade local
+      return (int) (chave & ((1L << pl) - 1));
     }
 
   }
 
+  // Tamanho de cesto que ocupa uma página de disco
+  public static final int TAMANHO_CESTO_PADRAO = 4096;
+
   public HashExtensivel(Constructor<T> ct, int n, String nd, String nc) throws Exception {
+    this(ct, n, nd, nc, true);
+  }
+
+  // Com o diretório residente, ele é lido do disco apenas na abertura e
+  // regravado somente quando é alterado (duplicação ou atualização de
+  // endereços). Sem ele, o diretório é recarregado a cada operação.
+  public HashExtensivel(Constructor<T> ct, int n, String nd, String nc, boolean residente) throws Exception {
+    this(ct, n, 0, nd, nc, residente);
+  }
+
+  // Cestos com 'bytesPorCesto' bytes (por exemplo, TAMANHO_CESTO_PADRAO),
+  // com tantos elementos quantos couberem
+  public HashExtensivel(Constructor<T> ct, String nd, String nc, int bytesPorCesto) throws Exception {
+    this(ct, 0, bytesPorCesto, nd, nc, true);
+  }
+
+  private HashExtensivel(Constructor<T> ct, int n, int bytesPorCesto, String nd, String nc, boolean residente)
+      throws Exception {
     construtor = ct;
-    quantidadeDadosPorCesto = n;
+    diretorioResidente = residente;
     nomeArquivoDiretorio = nd;
     nomeArquivoCestos = nc;
 
-    arqDiretorio = new RandomAccessFile(nomeArquivoDiretorio, "rw");
-    arqCestos = new RandomAccessFile(nomeArquivoCestos, "rw");
+    for (int i = 0; i < TRAVAS_CESTOS; i++)
+      travasCestos[i] = new ReentrantReadWriteLock();
+
+    // Completa uma reconstrução (ReconstroiHash) interrompida na troca dos arquivos
+    ReconstroiHash.concluiTroca(nomeArquivoDiretorio, nomeArquivoCestos);
+
+    arqDiretorio = Armazenamento.abre(nomeArquivoDiretorio, Armazenamento.Tipo.ARQUIVO);
+    arqCestos = Armazenamento.abre(nomeArquivoCestos, Armazenamento.Tipo.ARQUIVO);
+    log = LogTransacoes.instancia();
+    boolean novo = arqDiretorio.tamanho() == 0 || arqCestos.tamanho() == 0;
+
+    // Capacidade dos cestos: a gravada no diretório, se ele existir, ou a
+    // pedida, para um índice novo
+    int bytesPorElemento = construtor.newInstance().size();
+    if (!novo) {
+      Diretorio d = leDiretorio();
+      if (d.tamanhoCestoGravado > 0) {
+        n = d.capacidadeGravada;
+        bytesPorCesto = d.tamanhoCestoGravado;
+      } else {
+        bytesPorCesto = tamanhoCestoLegado(d);
+        n = (bytesPorCesto - 3) / bytesPorElemento;
+        if (n <= 0 || n * bytesPorElemento + 3 != bytesPorCesto)
+          throw new Exception("Tamanho de cesto não reconhecido em " + nc);
+      }
+    } else if (n == 0) {
+      n = (bytesPorCesto - 3) / bytesPorElemento;
+    }
+    if (n <= 0 || Math.max(n * bytesPorElemento + 3, bytesPorCesto) > Short.MAX_VALUE)
+      throw new Exception("Tamanho de cesto inválido: " + bytesPorCesto + " bytes");
+    quantidadeDadosPorCesto = n;
+    tamanhoCesto = Math.max(n * bytesPorElemento + 3, bytesPorCesto);
+    limiteJuncao = (int) (quantidadeDadosPorCesto * OCUPACAO_JUNCAO);
 
     // Se o diretório ou os cestos estiverem vazios, cria um novo diretório e lista
     // de cestos
-    if (arqDiretorio.length() == 0 || arqCestos.length() == 0) {
+    if (novo) {
+      log.inicia();
+      try {
+        // Cria um novo diretório, com profundidade de 0 bits (1 único elemento)
+        diretorio = new Diretorio();
+        byte[] bd = diretorio.toByteArray();
+        arqDiretorio.escreve(0, bd);
+
+        // Cria um cesto vazio, já apontado pelo único elemento do diretório
+        Cesto c = new Cesto(construtor, quantidadeDadosPorCesto);
+        bd = c.toByteArray();
+        arqCestos.escreve(0, bd);
+        log.confirma();
+      } catch (Exception e) {
+        log.cancela();
+        throw e;
+      }
+    }
 
-      // Cria um novo diretório, com profundidade de 0 bits (1 único elemento)
-      diretorio = new Diretorio();
-      byte[] bd = diretorio.toByteArray();
-      arqDiretorio.write(bd);
+    diretorio = null;
+    carregaDiretorio();
+    log.adicionaOuvinteCancelamento(descartaDiretorio);
+  }
 
-      // Cria um cesto vazio, já apontado pelo único elemento do diretório
-      Cesto c = new Cesto(construtor, quantidadeDadosPorCesto);
-      bd = c.toByteArray();
-      arqCestos.seek(0);
-      arqCestos.write(bd);
-    }
+  public void close() throws Exception {
+    log.executaExclusivo(() -> {
+      trava.writeLock().lock();
+      try {
+        log.removeOuvinteCancelamento(descartaDiretorio);
+        arqDiretorio.close();
+        arqCestos.close();
+      } finally {
+        trava.writeLock().unlock();
+      }
+      return null;
+    });
   }
 
-  public boolean create(T elem) throws Exception {
+  // Instância auxiliar para o cálculo do hash dos elementos serializados. Há
+  // uma por thread, já que o cálculo pode decodificar o elemento nela.
+  T elementoAuxiliar() throws Exception {
+    T aux = elementoAuxiliar.get();
+    if (aux == null) {
+      aux = construtor.newInstance();
+      elementoAuxiliar.set(aux);
+    }
+    return aux;
+  }
 
-    //Carrega todo o diretório para a memória
-    byte[] bd = new byte[(int) arqDiretorio.length()];
-    arqDiretorio.seek(0);
-    arqDiretorio.read(bd);
-    diretorio = new Diretorio();
-    diretorio.fromByteArray(bd);
+  private ReentrantReadWriteLock travaDoCesto(long enderecoCesto) {
+    return travasCestos[(int) ((enderecoCesto / tamanhoCesto) % TRAVAS_CESTOS)];
+  }
 
-    // Identifica a hash do diretório,
-    int i = diretorio.hash(elem.hashCode());
+  // Lê o cesto armazenado no endereço indicado
+  private Cesto leCesto(long enderecoCesto) throws Exception {
+    return leCesto(enderecoCesto, false);
+  }
 
-    // Recupera o cesto
-    long enderecoCesto = diretorio.endereço(i);
+  private Cesto leCesto(long enderecoCesto, boolean paraBusca) throws Exception {
     Cesto c = new Cesto(construtor, quantidadeDadosPorCesto);
     byte[] ba = new byte[c.size()];
-    arqCestos.seek(enderecoCesto);
-    arqCestos.read(ba);
-    c.fromByteArray(ba);
-
-    // Testa se a chave já não existe no cesto
-    if (c.read(elem.hashCode()) != null)
-      throw new Exception("Elemento já existe");
-
-    // Testa se o cesto já não está cheio
-    // Se não estiver, create o par de chave e dado
-    if (!c.full()) {
-      // Insere a chave no cesto e o atualiza
-      c.create(elem);
-      arqCestos.seek(enderecoCesto);
-      arqCestos.write(c.toByteArray());
+    Lock l = travaDoCesto(enderecoCesto).readLock();
+    l.lock();
+    try {
+      arqCestos.le(enderecoCesto, ba);
+    } finally {
+      l.unlock();
+    }
+    if (paraBusca)
+      c.fromByteArrayParaBusca(ba);
+    else
+      c.fromByteArray(ba);
+    return c;
+  }
+
+  // Grava o cesto no endereço indicado
+  private void gravaCesto(long enderecoCesto, Cesto c) throws Exception {
+    Lock l = travaDoCesto(enderecoCesto).writeLock();
+    l.lock();
+    try {
+      arqCestos.escreve(enderecoCesto, c.toByteArray());
+    } finally {
+      l.unlock();
+    }
+  }
+
+  // Carrega o diretório do arquivo, a menos que ele já esteja residente em
+  // memória. Sem o diretório residente, cada operação usa a sua própria cópia.
+  private Diretorio carregaDiretorio() throws IOException {
+    Diretorio d = diretorio;
+    if (diretorioLote != null && trava.isWriteLockedByCurrentThread())
+      return diretorioLote;
+    if (diretorioResidente && d != null)
+      return d;
+    d = leDiretorio();
+    diretorio = d;
+    return d;
+  }
+
+  private Diretorio leDiretorio() throws IOException {
+    byte[] bd = new byte[(int) arqDiretorio.tamanho()];
+    arqDiretorio.le(0, bd);
+    Diretorio d = new Diretorio();
+    d.fromByteArray(bd);
+    return d;
+  }
+
+  // Índices gravados antes de o tamanho dos cestos ir para o diretório: o
+  // tamanho é o máximo divisor comum entre o tamanho do arquivo de cestos e
+  // os endereços dos cestos (o segundo cesto criado fica no endereço igual
+  // ao tamanho de um cesto)
+  private int tamanhoCestoLegado(Diretorio d) throws IOException {
+    long t = arqCestos.tamanho();
+    for (long e : d.enderecos)
+      t = mdc(t, e);
+    if (d.cestoLivre > 0)
+      t = mdc(t, d.cestoLivre);
+    return t > Short.MAX_VALUE ? -1 : (int) t;
+  }
+
+  private static long mdc(long a, long b) {
+    while (b != 0) {
+      long r = a % b;
+      a = b;
+      b = r;
+    }
+    return a;
+  }
+
+  // Regrava o diretório no arquivo (write-through das alterações) e o torna
+  // o diretório corrente
+  private void gravaDiretorio(Diretorio diretorio) throws IOException {
+    if (diretorio == diretorioLote) {
+      diretorioLoteAlterado = true;
+      return;
+    }
+    byte[] bd = diretorio.toByteArray();
+    arqDiretorio.escreve(0, bd);
+    this.diretorio = diretorio;
+  }
+
+  // Com a transação cancelada, o diretório é relido do arquivo. A versão muda
+  // para que as leituras em andamento sejam repetidas.
+  private void descartaDiretorio() {
+    diretorio = null;
+    versaoDiretorio.addAndGet(2);
+  }
+
+  // As operações que alteram a tabela formam uma transação no log: um cesto
+  // dividido e o diretório atualizado chegam juntos ao disco (ou nenhum deles)
+  public boolean create(T elem) throws Exception {
+    return log.executa(() -> create0(elem));
+  }
+
+  // Inclusão de vários elementos, em uma única transação. Os elementos são
+  // agrupados pelo cesto de destino, de modo que cada cesto é lido e gravado
+  // uma só vez. Cada cesto em que sobrarem elementos é dividido (pela
+  // inclusão normal do primeiro deles) e os demais são distribuídos de novo,
+  // agrupados, até que todos tenham sido incluídos: com cestos grandes, cada
+  // cesto continua sendo gravado poucas vezes. As divisões feitas nessa etapa
+  // gravam o diretório uma única vez, ao final, em vez de uma vez por divisão.
+  public void createAll(Collection<T> elementos) throws Exception {
+    log.executa(() -> {
+      ArrayList<T> restantes = comDiretorioCompartilhado(() -> createAll1(elementos));
+      if (restantes.isEmpty())
+        return null;
+      trava.writeLock().lock();
+      versaoDiretorio.incrementAndGet();
+      try {
+        diretorioLote = carregaDiretorio().copia();
+        while (!restantes.isEmpty()) {
+          HashSet<Long> divididos = new HashSet<>();
+          ArrayList<T> proximos = new ArrayList<>();
+          for (T elem : restantes) {
+            if (divididos.add(diretorioLote.endereço(diretorioLote.hash(elem.hash()))))
+              create1(elem, true);
+            else
+              proximos.add(elem);
+          }
+          restantes = createAll1(proximos);
+        }
+        Diretorio d = diretorioLote;
+        diretorioLote = null;
+        if (diretorioLoteAlterado)
+          gravaDiretorio(d);
+      } finally {
+        diretorioLote = null;
+        diretorioLoteAlterado = false;
+        versaoDiretorio.incrementAndGet();
+        trava.writeLock().unlock();
+      }
+      return null;
+    });
+  }
+
+  public boolean update(T elem) throws Exception {
+    return log.executa(() -> comDiretorioCompartilhado(() -> update1(elem)));
+  }
+
+  // Exclui o elemento com a mesma chave completa de 'chave'
+  public boolean delete(T chave) throws Exception {
+    return log.executa(() -> delete0(chave.hash(), chave, false));
+  }
+
+  // Exclui o elemento apenas se o gravado for idêntico a 'elemento' (a mesma
+  // chave e o mesmo ID, nos pares chave/ID). Serve aos índices em que um
+  // registro pode estar fora do índice por ter a chave de outro: a exclusão
+  // em nome dele não apaga o par do outro.
+  public boolean deleteExato(T elemento) throws Exception {
+    return log.executa(() -> delete0(elemento.hash(), elemento, true));
+  }
+
+  // Exclui o primeiro elemento com o hash indicado (chaves numéricas, em que
+  // o hash é a própria chave)
+  public boolean delete(long chave) throws Exception {
+    return log.executa(() -> delete0(chave, null, false));
+  }
+
+  // A trava do diretório é sempre obtida depois da trava do log (a transação)
+  // e antes das travas dos cestos
+  private <R> R comDiretorioCompartilhado(LogTransacoes.Operacao<R> operacao) throws Exception {
+    trava.readLock().lock();
+    try {
+      return operacao.executa();
+    } finally {
+      trava.readLock().unlock();
+    }
+  }
+
+  // A inclusão tenta primeiro usar o cesto como está; só se ele estiver
+  // cheio é que o diretório é obtido de forma exclusiva, para a divisão
+  private boolean create0(T elem) throws Exception {
+    Boolean inserido = comDiretorioCompartilhado(() -> create1(elem, false));
+    if (inserido != null)
+      return inserido;
+    trava.writeLock().lock();
+    versaoDiretorio.incrementAndGet();
+    try {
+      return create1(elem, true);
+    } finally {
+      versaoDiretorio.incrementAndGet();
+      trava.writeLock().unlock();
+    }
+  }
+
+  // Como na inclusão, a exclusão é feita com o diretório compartilhado; só
+  // se o cesto puder ser juntado ao seu irmão é que o diretório é obtido de
+  // forma exclusiva
+  private boolean delete0(long hashChave, T chave, boolean exato) throws Exception {
+    Boolean excluido = comDiretorioCompartilhado(() -> delete1(hashChave, chave, exato));
+    if (excluido != null)
+      return excluido;
+    trava.writeLock().lock();
+    versaoDiretorio.incrementAndGet();
+    try {
+      junta(hashChave);
       return true;
+    } finally {
+      versaoDiretorio.incrementAndGet();
+      trava.writeLock().unlock();
     }
+  }
+
+  // Retorna null se o cesto estiver cheio e a divisão não for permitida
+  private Boolean create1(T elem, boolean divide) throws Exception {
+
+    // Carrega o diretório (se ainda não estiver residente)
+    Diretorio diretorio = carregaDiretorio();
+
+    // Identifica a hash do diretório,
+    long hashElem = elem.hash();
+    int i = diretorio.hash(hashElem);
 
-    // Duplica o diretório
+    // Recupera o cesto, travado até que seja atualizado
+    long enderecoCesto = diretorio.endereço(i);
+    Cesto c;
+    Lock travaCesto = travaDoCesto(enderecoCesto).writeLock();
+    travaCesto.lock();
+    try {
+      c = leCesto(enderecoCesto);
+
+      // Testa se a chave já não existe no cesto (outros elementos podem ter
+      // o mesmo hash)
+      if (c.posicao(hashElem, elem) != -1)
+        throw new Exception("Elemento já existe");
+
+      // Testa se o cesto já não está cheio
+      // Se não estiver, create o par de chave e dado
+      if (!c.full()) {
+        // Insere a chave no cesto e o atualiza
+        c.create(elem);
+        gravaCesto(enderecoCesto, c);
+        return true;
+      }
+    } finally {
+      travaCesto.unlock();
+    }
+    if (!divide)
+      return null;
+
+    // Se todos os elementos tiverem o mesmo hash do novo, nenhuma divisão os
+    // separaria
+    if (c.todosComHash(hashElem))
+      throw new Exception("Mais de " + quantidadeDadosPorCesto + " elementos com o mesmo hash");
+
+    // Duplica o diretório (em uma cópia, publicada quando for gravada; no
+    // lote, a cópia já é a do lote)
+    if (diretorio != diretorioLote)
+      diretorio = diretorio.copia();
     byte pl = c.profundidadeLocal;
     if (pl >= diretorio.profundidadeGlobal)
       diretorio.duplica();
     byte pg = diretorio.profundidadeGlobal;
 
-    // Cria os novos cestos, com os seus dados no arquivo de cestos
+    // Separa em memória os elementos do cesto antigo pelo bit 'pl' do hash:
+    // com o bit 0 ficam no endereço antigo; com o bit 1 vão para o novo cesto.
+    // A ordem por hash se mantém em cada metade.
     Cesto c1 = new Cesto(construtor, quantidadeDadosPorCesto, pl + 1);
-    arqCestos.seek(enderecoCesto);
-    arqCestos.write(c1.toByteArray());
-
     Cesto c2 = new Cesto(construtor, quantidadeDadosPorCesto, pl + 1);
-    long novoEndereco = arqCestos.length();
-    arqCestos.seek(novoEndereco);
-    arqCestos.write(c2.toByteArray());
+    for (int j = 0; j < c.quantidade; j++) {
+      if (((c.hashes[j] >>> pl) & 1) == 0)
+        c1.acrescenta(c, j);
+      else
+        c2.acrescenta(c, j);
+    }
+
+    // O novo elemento entra na sua metade, se houver espaço. Se todos os
+    // elementos caíram na mesma metade, ela ainda está cheia e será dividida
+    // novamente na inclusão abaixo.
+    Cesto destino = ((hashElem >>> pl) & 1) == 0 ? c1 : c2;
+    boolean inserido = destino.create(elem);
+
+    // Grava os dois cestos, uma única vez cada (o novo em um cesto liberado,
+    // se houver)
+    long novoEndereco = alocaCesto(diretorio);
+    gravaCesto(enderecoCesto, c1);
+    gravaCesto(novoEndereco, c2);
 
     // Atualiza os endereços no diretório
-    int inicio = diretorio.hash2(elem.hashCode(), c.profundidadeLocal);
+    int inicio = diretorio.hash2(hashElem, c.profundidadeLocal);
     int deslocamento = (int) Math.pow(2, pl);
     int max = (int) Math.pow(2, pg);
     boolean troca = false;
@@ -355,125 +860,326 @@ public class HashExtensivel<T extends RegistroHashExtensivel> {
     }
 
     // Atualiza o arquivo do diretório
-    bd = diretorio.toByteArray();
-    arqDiretorio.seek(0);
-    arqDiretorio.write(bd);
+    gravaDiretorio(diretorio);
 
-    // Reinsere as chaves do cesto antigo
-    for (int j = 0; j < c.quantidade; j++) {
-      create(c.elementos.get(j));
-    }
-    create(elem); // insere o nome elemento
+    if (!inserido)
+      return create1(elem, true);
     return true;
+  }
+
+  // Insere nos cestos os elementos que couberem e retorna os demais
+  private ArrayList<T> createAll1(Collection<T> elementos) throws Exception {
+    Diretorio diretorio = carregaDiretorio();
+    ArrayList<T> ordenados = new ArrayList<>(elementos);
+    ordenados.sort((a, b) -> Long.compare(diretorio.endereço(diretorio.hash(a.hash())),
+        diretorio.endereço(diretorio.hash(b.hash()))));
+
+    ArrayList<T> restantes = new ArrayList<>();
+    int i = 0;
+    while (i < ordenados.size()) {
+      long enderecoCesto = diretorio.endereço(diretorio.hash(ordenados.get(i).hash()));
+      Lock travaCesto = travaDoCesto(enderecoCesto).writeLock();
+      travaCesto.lock();
+      try {
+        Cesto c = leCesto(enderecoCesto);
+        boolean alterado = false;
+        for (; i < ordenados.size()
+            && diretorio.endereço(diretorio.hash(ordenados.get(i).hash())) == enderecoCesto; i++) {
+          T elem = ordenados.get(i);
+          if (c.posicao(elem.hash(), elem) != -1)
+            throw new Exception("Elemento já existe");
+          if (c.full())
+            restantes.add(elem);
+          else {
+            c.create(elem);
+            alterado = true;
+          }
+        }
+        if (alterado)
+          gravaCesto(enderecoCesto, c);
+      } finally {
+        travaCesto.unlock();
+      }
+    }
+    return restantes;
+  }
+
+  // Busca o elemento com a mesma chave completa de 'chave'
+  public T read(T chave) throws Exception {
+    return read1(chave.hash(), chave);
+  }
 
+  // Busca o primeiro elemento com o hash indicado (chaves numéricas, em que o
+  // hash é a própria chave)
+  public T read(long chave) throws Exception {
+    return read1(chave, null);
   }
 
-  public T read(int chave) throws Exception {
+  // Leitura otimista: sem a trava do diretório, a busca é repetida se uma
+  // divisão de cestos ocorrer durante ela. Depois de algumas tentativas (ou
+  // sem o diretório residente, que é relido do arquivo), a leitura espera a
+  // divisão terminar, com a trava do diretório.
+  private T read1(long hashChave, T chave) throws Exception {
+    if (diretorioResidente) {
+      for (int tentativa = 0; tentativa < TENTATIVAS_OTIMISTAS; tentativa++) {
+        long versao = versaoDiretorio.get();
+        if ((versao & 1) == 0) {
+          Cesto c = leCestoDaChave(hashChave);
+          if (versaoDiretorio.get() == versao)
+            return c.read(hashChave, chave);
+        }
+        Thread.onSpinWait();
+      }
+    }
+    return comDiretorioCompartilhado(() -> leCestoDaChave(hashChave).read(hashChave, chave));
+  }
 
-    // Carrega o diretório
-    byte[] bd = new byte[(int) arqDiretorio.length()];
-    arqDiretorio.seek(0);
-    arqDiretorio.read(bd);
-    diretorio = new Diretorio();
-    diretorio.fromByteArray(bd);
+  private Cesto leCestoDaChave(long chave) throws Exception {
+    // Carrega o diretório (se ainda não estiver residente)
+    Diretorio diretorio = carregaDiretorio();
 
     // Identifica a hash do diretório,
     int i = diretorio.hash(chave);
 
-    // Recupera o cesto
+    // Recupera o cesto (apenas para a busca)
     long enderecoCesto = diretorio.endereço(i);
-    Cesto c = new Cesto(construtor, quantidadeDadosPorCesto);
-    byte[] ba = new byte[c.size()];
-    arqCestos.seek(enderecoCesto);
-    arqCestos.read(ba);
-    c.fromByteArray(ba);
-
-    return c.read(chave);
+    return leCesto(enderecoCesto, true);
   }
 
-  public boolean update(T elem) throws Exception {
+  private boolean update1(T elem) throws Exception {
 
-    // Carrega o diretório
-    byte[] bd = new byte[(int) arqDiretorio.length()];
-    arqDiretorio.seek(0);
-    arqDiretorio.read(bd);
-    diretorio = new Diretorio();
-    diretorio.fromByteArray(bd);
+    // Carrega o diretório (se ainda não estiver residente)
+    Diretorio diretorio = carregaDiretorio();
 
     // Identifica a hash do diretório,
-    int i = diretorio.hash(elem.hashCode());
+    int i = diretorio.hash(elem.hash());
 
-    // Recupera o cesto
+    // Recupera o cesto, travado até que seja atualizado
     long enderecoCesto = diretorio.endereço(i);
-    Cesto c = new Cesto(construtor, quantidadeDadosPorCesto);
-    byte[] ba = new byte[c.size()];
-    arqCestos.seek(enderecoCesto);
-    arqCestos.read(ba);
-    c.fromByteArray(ba);
+    Lock travaCesto = travaDoCesto(enderecoCesto).writeLock();
+    travaCesto.lock();
+    try {
+      Cesto c = leCesto(enderecoCesto);
 
-    // atualiza o dado
-    if (!c.update(elem))
-      return false;
+      // atualiza o dado
+      if (!c.update(elem))
+        return false;
 
-    // Atualiza o cesto
-    arqCestos.seek(enderecoCesto);
-    arqCestos.write(c.toByteArray());
-    return true;
+      // Atualiza o cesto
+      gravaCesto(enderecoCesto, c);
+      return true;
+    } finally {
+      travaCesto.unlock();
+    }
 
   }
 
-  public boolean delete(int chave) throws Exception {
+  // Retorna null se o elemento foi excluído e o cesto pode ser juntado ao seu
+  // irmão (a junção é feita depois, com o diretório exclusivo)
+  private Boolean delete1(long hashChave, T chave, boolean exato) throws Exception {
 
-    // Carrega o diretório
-    byte[] bd = new byte[(int) arqDiretorio.length()];
-    arqDiretorio.seek(0);
-    arqDiretorio.read(bd);
-    diretorio = new Diretorio();
-    diretorio.fromByteArray(bd);
+    // Carrega o diretório (se ainda não estiver residente)
+    Diretorio diretorio = carregaDiretorio();
 
     // Identifica a hash do diretório,
-    int i = diretorio.hash(chave);
+    int i = diretorio.hash(hashChave);
 
-    // Recupera o cesto
+    // Recupera o cesto, travado até que seja atualizado
     long enderecoCesto = diretorio.endereço(i);
-    Cesto c = new Cesto(construtor, quantidadeDadosPorCesto);
-    byte[] ba = new byte[c.size()];
-    arqCestos.seek(enderecoCesto);
-    arqCestos.read(ba);
-    c.fromByteArray(ba);
+    Cesto c;
+    Lock travaCesto = travaDoCesto(enderecoCesto).writeLock();
+    travaCesto.lock();
+    try {
+      c = leCesto(enderecoCesto);
 
-    // delete a chave
-    if (!c.delete(chave))
-      return false;
+      // delete a chave
+      if (!c.delete(hashChave, chave, exato))
+        return false;
 
-    // Atualiza o cesto
-    arqCestos.seek(enderecoCesto);
-    arqCestos.write(c.toByteArray());
-    return true;
+      // Atualiza o cesto
+      gravaCesto(enderecoCesto, c);
+    } finally {
+      travaCesto.unlock();
+    }
+
+    // Verifica se o cesto ficou pequeno o bastante para a junção
+    if (c.profundidadeLocal == 0 || c.quantidade > limiteJuncao)
+      return true;
+    Cesto irmao = leCesto(diretorio.endereço(irmao(i, c.profundidadeLocal)));
+    if (irmao.profundidadeLocal != c.profundidadeLocal || c.quantidade + irmao.quantidade > limiteJuncao)
+      return true;
+    return null;
+  }
+
+  // Índice do diretório do cesto irmão: difere no bit (pl - 1)
+  private static int irmao(int i, int pl) {
+    return i ^ (1 << (pl - 1));
+  }
+
+  // Junta o cesto da chave ao seu irmão, enquanto a ocupação somada permitir,
+  // e reduz o diretório à metade enquanto nenhum cesto usar a profundidade
+  // global. Deve ser chamado com a trava exclusiva do diretório.
+  private void junta(long hashChave) throws Exception {
+    Diretorio diretorio = carregaDiretorio();
+    boolean alterado = false;
+    while (true) {
+      int i = diretorio.hash(hashChave);
+      long enderecoCesto = diretorio.endereço(i);
+      Cesto c = leCesto(enderecoCesto);
+      byte pl = c.profundidadeLocal;
+      if (pl == 0)
+        break;
+      int j = irmao(i, pl);
+      long enderecoIrmao = diretorio.endereço(j);
+      Cesto irmao = leCesto(enderecoIrmao);
+      if (irmao.profundidadeLocal != pl || c.quantidade + irmao.quantidade > limiteJuncao)
+        break;
+
+      // O cesto resultante fica no endereço do índice com o bit (pl - 1)
+      // zerado; o outro endereço é liberado
+      long enderecoFica = (i & (1 << (pl - 1))) == 0 ? enderecoCesto : enderecoIrmao;
+      long enderecoLibera = enderecoFica == enderecoCesto ? enderecoIrmao : enderecoCesto;
+      Cesto junto = new Cesto(construtor, quantidadeDadosPorCesto, pl - 1);
+      junto.junta(c, irmao);
+
+      // Altera uma cópia do diretório (no lote, a cópia já é a do lote)
+      if (!alterado && diretorio != diretorioLote)
+        diretorio = diretorio.copia();
+      alterado = true;
+      for (int k = 0; k < diretorio.enderecos.length; k++)
+        if (diretorio.enderecos[k] == enderecoLibera)
+          diretorio.enderecos[k] = enderecoFica;
+
+      gravaCesto(enderecoFica, junto);
+      liberaCesto(diretorio, enderecoLibera);
+      while (diretorio.podeReduzir())
+        diretorio.reduz();
+    }
+    if (alterado)
+      gravaDiretorio(diretorio);
+  }
+
+  // Endereço para um novo cesto: o primeiro da lista de cestos liberados ou,
+  // se ela estiver vazia, o fim do arquivo. O diretório (alterado) deve ser
+  // gravado em seguida.
+  private long alocaCesto(Diretorio diretorio) throws Exception {
+    long endereco = diretorio.cestoLivre;
+    if (endereco == -1)
+      return arqCestos.tamanho();
+    byte[] ba = new byte[11];
+    arqCestos.le(endereco, ba);
+    diretorio.cestoLivre = ByteBuffer.wrap(ba, 3, 8).getLong();
+    return endereco;
+  }
+
+  // Marca o cesto como livre (profundidade local -1) e o coloca no início
+  // da lista de cestos liberados, encadeada pelos 8 bytes após o cabeçalho.
+  // Cestos menores que isso não são reaproveitados.
+  private void liberaCesto(Diretorio diretorio, long endereco) throws Exception {
+    if (tamanhoCesto < 11)
+      return;
+    byte[] ba = new byte[tamanhoCesto];
+    ba[0] = -1;
+    ByteBuffer.wrap(ba, 3, 8).putLong(diretorio.cestoLivre);
+    Lock l = travaDoCesto(endereco).writeLock();
+    l.lock();
+    try {
+      arqCestos.escreve(endereco, ba);
+    } finally {
+      l.unlock();
+    }
+    diretorio.cestoLivre = endereco;
+  }
+
+  // Endereços distintos dos cestos apontados pelo diretório, em ordem
+  private long[] enderecosCestos(Diretorio d) {
+    return Arrays.stream(d.enderecos).distinct().sorted().toArray();
+  }
+
+  // Todos os elementos, cesto a cesto (sem ordem definida)
+  public ArrayList<T> readAll() throws Exception {
+    return comDiretorioCompartilhado(() -> {
+      ArrayList<T> elementos = new ArrayList<>();
+      for (long endereco : enderecosCestos(carregaDiretorio())) {
+        Cesto c = leCesto(endereco);
+        for (int i = 0; i < c.quantidade; i++)
+          elementos.add(c.elemento(i));
+      }
+      return elementos;
+    });
+  }
+
+  // Testa se a tabela está vazia (para no primeiro cesto com algum elemento)
+  public boolean empty() throws Exception {
+    return comDiretorioCompartilhado(() -> {
+      for (long endereco : enderecosCestos(carregaDiretorio()))
+        if (leCesto(endereco).quantidade > 0)
+          return false;
+      return true;
+    });
+  }
+
+  /**
+   * Números da estrutura: profundidade do diretório e ocupação dos cestos.
+   */
+  public static class Estatisticas {
+    public int profundidadeGlobal;
+    public int cestos; // cestos apontados pelo diretório
+    public int cestosLivres; // cestos liberados por junções, à espera de reuso
+    public long elementos;
+    public int capacidadeCesto; // elementos por cesto
+    public int tamanhoCesto; // bytes por cesto
+
+    // Fração média das posições ocupadas nos cestos
+    public double ocupacaoMedia() {
+      return cestos == 0 ? 0 : (double) elementos / ((long) cestos * capacidadeCesto);
+    }
+
+    @Override
+    public String toString() {
+      return "Profundidade global: " + profundidadeGlobal
+          + "\nCestos: " + cestos + " (" + cestosLivres + " livres)"
+          + "\nCesto: " + capacidadeCesto + " elementos em " + tamanhoCesto + " bytes"
+          + "\nElementos: " + elementos
+          + String.format("\nOcupação média dos cestos: %.1f%%", ocupacaoMedia() * 100);
+    }
+  }
+
+  public Estatisticas estatisticas() throws Exception {
+    return comDiretorioCompartilhado(() -> {
+      Estatisticas e = new Estatisticas();
+      Diretorio d = carregaDiretorio();
+      long[] enderecos = enderecosCestos(d);
+      e.profundidadeGlobal = d.profundidadeGlobal;
+      e.cestos = enderecos.length;
+      e.cestosLivres = (int) (arqCestos.tamanho() / tamanhoCesto) - enderecos.length;
+      e.capacidadeCesto = quantidadeDadosPorCesto;
+      e.tamanhoCesto = tamanhoCesto;
+      for (long endereco : enderecos)
+        e.elementos += leCesto(endereco).quantidade;
+      return e;
+    });
   }
 
   public void print() {
+    trava.writeLock().lock();
     try {
-      byte[] bd = new byte[(int) arqDiretorio.length()];
-      arqDiretorio.seek(0);
-      arqDiretorio.read(bd);
-      diretorio = new Diretorio();
-      diretorio.fromByteArray(bd);
+      Diretorio diretorio = carregaDiretorio();
       System.out.println("\nDIRETÓRIO ------------------");
       System.out.println(diretorio);
 
       System.out.println("\nCESTOS ---------------------");
-      arqCestos.seek(0);
-      while (arqCestos.getFilePointer() != arqCestos.length()) {
-        System.out.println("Endereço: " + arqCestos.getFilePointer());
-        Cesto c = new Cesto(construtor, quantidadeDadosPorCesto);
-        byte[] ba = new byte[c.size()];
-        arqCestos.read(ba);
-        c.fromByteArray(ba);
-        System.out.println(c + "\n");
+      long endereco = 0;
+      while (endereco < arqCestos.tamanho()) {
+        System.out.println("Endereço: " + endereco);
+        Cesto c = leCesto(endereco);
+        System.out.println((c.profundidadeLocal < 0 ? "(livre)" : c) + "\n");
+        endereco += c.size();
       }
     } catch (Exception e) {
       e.printStackTrace();
+    } finally {
+      trava.writeLock().unlock();
     }
   }
 }
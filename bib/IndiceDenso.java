@@ -0,0 +1,225 @@
+/*
+ÍNDICE DENSO
+
+Índice primário em que o endereço do registro de ID i fica na
+posição i de um vetor (long[]). Como os IDs são gerados em
+sequência (SequenciaIds), o vetor praticamente não tem lacunas, e
+a busca de um ID é um único acesso à memória, sem diretório nem
+cestos para ler e decodificar.
+
+- O vetor é gravado em um arquivo mapeado em memória, com 8 bytes
+  por ID (o endereço do ID i fica na posição 8 * i). As gravações
+  passam pelo log de transações, como as dos demais arquivos.
+- IDs sem registro (ainda não usados ou excluídos) guardam o
+  endereço -1, que funciona como lápide.
+- O arquivo cresce em blocos de CRESCIMENTO IDs, já preenchidos
+  com -1.
+- Alterações feitas dentro de uma transação são anotadas e
+  desfeitas no vetor se a transação for cancelada (as do arquivo
+  são desfeitas pelo próprio log).
+
+Instâncias de Arquivo sobre o mesmo arquivo de dados compartilham
+o mesmo índice.
+*/
+
+package bib;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+
+public class IndiceDenso implements IndicePrimario {
+
+    // IDs acrescentados ao arquivo de cada vez
+    public static final int CRESCIMENTO = 1024;
+
+    // Maior ID aceito pelo índice denso (2^26 IDs ocupam 512 MiB, no arquivo
+    // e em memória). Um índice hash com IDs maiores não é convertido.
+    public static final int MAXIMO_ID = 1 << 26;
+
+    // Índices abertos, pelo caminho do arquivo
+    private static final HashMap<String, IndiceDenso> abertos = new HashMap<>();
+
+    private final String chave;
+    private final Armazenamento arquivo;
+    private final LogTransacoes log;
+    private int referencias;
+
+    // Endereço de cada ID (-1 se não houver registro). O vetor é substituído
+    // por um maior quando o índice cresce; as leituras usam o vigente.
+    private volatile long[] enderecos;
+
+    // Alterações da transação corrente, para o cancelamento. Cada entrada é
+    // {ID, endereço anterior}.
+    private final ArrayList<long[]> desfazer = new ArrayList<>();
+    private final Runnable aoConfirmar = this::esqueceTransacao;
+    private final Runnable aoCancelar = this::desfazTransacao;
+
+    // Abre o índice do arquivo indicado (ou compartilha o que já estiver aberto)
+    public static synchronized IndiceDenso abre(String nomeArquivo) throws IOException {
+        String chave = new File(nomeArquivo).getCanonicalPath();
+        IndiceDenso i = abertos.get(chave);
+        if (i == null) {
+            i = new IndiceDenso(chave, nomeArquivo);
+            abertos.put(chave, i);
+        }
+        i.referencias++;
+        return i;
+    }
+
+    private IndiceDenso(String chave, String nomeArquivo) throws IOException {
+        this.chave = chave;
+        this.log = LogTransacoes.instancia();
+        this.arquivo = Armazenamento.abre(nomeArquivo, Armazenamento.Tipo.MAPEADO);
+        carrega();
+        log.adicionaOuvinteConfirmacao(aoConfirmar);
+        log.adicionaOuvinteCancelamento(aoCancelar);
+    }
+
+    // Lê o arquivo inteiro para o vetor
+    private void carrega() throws IOException {
+        int n = (int) (arquivo.tamanho() / 8);
+        byte[] ba = new byte[n * 8];
+        arquivo.le(0, ba);
+        long[] v = new long[n];
+        ByteBuffer.wrap(ba).asLongBuffer().get(v);
+        enderecos = v;
+    }
+
+    // Indica se o índice ainda não tem nenhuma posição gravada
+    public boolean vazio() throws IOException {
+        return arquivo.tamanho() == 0;
+    }
+
+    public long read(int id) {
+        long[] v = enderecos;
+        return id > 0 && id < v.length ? v[id] : -1;
+    }
+
+    public synchronized boolean create(int id, long endereco) throws Exception {
+        if (read(id) != -1)
+            throw new Exception("Elemento já existe");
+        grava(id, endereco);
+        return true;
+    }
+
+    // Os pares são gravados em ordem de ID: cada sequência de IDs consecutivos
+    // (o caso de uma inclusão em lote) vai para o arquivo em uma única escrita
+    public synchronized void createAll(Collection<ParIDEndereco> pares) throws Exception {
+        ParIDEndereco[] ordenados = pares.toArray(new ParIDEndereco[0]);
+        Arrays.sort(ordenados, (a, b) -> Integer.compare(a.getId(), b.getId()));
+        for (ParIDEndereco pie : ordenados) {
+            confereId(pie.getId());
+            if (read(pie.getId()) != -1)
+                throw new Exception("Elemento já existe");
+        }
+        if (ordenados.length == 0)
+            return;
+        garante(ordenados[ordenados.length - 1].getId());
+
+        int i = 0;
+        while (i < ordenados.length) {
+            int inicio = i;
+            while (i + 1 < ordenados.length && ordenados[i + 1].getId() == ordenados[i].getId() + 1)
+                i++;
+            i++;
+            ByteBuffer bb = ByteBuffer.allocate((i - inicio) * 8);
+            for (int j = inicio; j < i; j++) {
+                int id = ordenados[j].getId();
+                anota(id, enderecos[id]);
+                bb.putLong(ordenados[j].getEndereco());
+            }
+            arquivo.escreve(8L * ordenados[inicio].getId(), bb.array());
+            for (int j = inicio; j < i; j++)
+                enderecos[ordenados[j].getId()] = ordenados[j].getEndereco();
+        }
+    }
+
+    public synchronized boolean update(int id, long endereco) throws Exception {
+        if (read(id) == -1)
+            return false;
+        grava(id, endereco);
+        return true;
+    }
+
+    public synchronized boolean delete(int id) throws Exception {
+        if (read(id) == -1)
+            return false;
+        grava(id, -1);
+        return true;
+    }
+
+    private void grava(int id, long endereco) throws IOException {
+        confereId(id);
+        garante(id);
+        anota(id, enderecos[id]);
+        arquivo.escreveLong(8L * id, endereco);
+        enderecos[id] = endereco;
+    }
+
+    private static void confereId(int id) throws IOException {
+        if (id <= 0 || id > MAXIMO_ID)
+            throw new IOException("ID fora dos limites do índice denso: " + id);
+    }
+
+    // Quantidade de posições que comporta o ID indicado: o próximo múltiplo de
+    // CRESCIMENTO, limitado a MAXIMO_ID + 1
+    private static int posicoesPara(int id) {
+        return (int) Math.min(((long) id / CRESCIMENTO + 1) * CRESCIMENTO, (long) MAXIMO_ID + 1);
+    }
+
+    // Garante que o arquivo e o vetor tenham a posição do ID indicado,
+    // acrescentando ao arquivo um bloco de posições vazias (-1)
+    private void garante(int id) throws IOException {
+        long tamanho = arquivo.tamanho();
+        if (8L * (id + 1) > tamanho) {
+            long novoTamanho = 8L * posicoesPara(id);
+            byte[] vazias = new byte[(int) (novoTamanho - tamanho)];
+            Arrays.fill(vazias, (byte) -1);
+            arquivo.escreve(tamanho, vazias);
+        }
+        if (id >= enderecos.length) {
+            int n = posicoesPara(id);
+            long[] v = Arrays.copyOf(enderecos, n);
+            Arrays.fill(v, enderecos.length, n, -1);
+            enderecos = v;
+        }
+    }
+
+    // Fecha uma referência. Na última, fecha o arquivo.
+    public void close() throws IOException {
+        synchronized (IndiceDenso.class) {
+            if (referencias == 0 || --referencias > 0)
+                return;
+            abertos.remove(chave);
+        }
+        log.removeOuvinteConfirmacao(aoConfirmar);
+        log.removeOuvinteCancelamento(aoCancelar);
+        arquivo.close();
+    }
+
+    // ------------------------------------------------------------------
+    // Integração com o log
+    // ------------------------------------------------------------------
+
+    private void anota(int id, long anterior) {
+        if (log.emTransacao())
+            desfazer.add(new long[] { id, anterior });
+    }
+
+    private synchronized void esqueceTransacao() {
+        desfazer.clear();
+    }
+
+    private synchronized void desfazTransacao() {
+        for (int i = desfazer.size() - 1; i >= 0; i--) {
+            long[] d = desfazer.get(i);
+            enderecos[(int) d[0]] = d[1];
+        }
+        desfazer.clear();
+    }
+}
@@ -0,0 +1,44 @@
+package bib;
+
+import java.util.Collection;
+
+// Índice primário em uma tabela hash extensível de pares (ID; endereço)
+public class IndiceHash implements IndicePrimario {
+
+    private final HashExtensivel<ParIDEndereco> hash;
+
+    public IndiceHash(String nomeDiretorio, String nomeCestos) throws Exception {
+        hash = new HashExtensivel<>(ParIDEndereco.class.getConstructor(), nomeDiretorio, nomeCestos,
+                HashExtensivel.TAMANHO_CESTO_PADRAO);
+    }
+
+    public long read(int id) throws Exception {
+        ParIDEndereco pie = hash.read(id);
+        return pie == null ? -1 : pie.getEndereco();
+    }
+
+    public boolean create(int id, long endereco) throws Exception {
+        return hash.create(new ParIDEndereco(id, endereco));
+    }
+
+    public void createAll(Collection<ParIDEndereco> pares) throws Exception {
+        hash.createAll(pares);
+    }
+
+    public boolean update(int id, long endereco) throws Exception {
+        return hash.update(new ParIDEndereco(id, endereco));
+    }
+
+    public boolean delete(int id) throws Exception {
+        return hash.delete(id);
+    }
+
+    // Todos os pares, sem ordem definida (usado na conversão para o índice denso)
+    public Collection<ParIDEndereco> readAll() throws Exception {
+        return hash.readAll();
+    }
+
+    public void close() throws Exception {
+        hash.close();
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ÍNDICE PRIMÁRIO
+
+Associa o ID de cada registro de um Arquivo ao endereço do
+registro no arquivo de dados. Há duas implementações:
+- IndiceDenso: vetor de endereços indexado pelo próprio ID (os
+  IDs são sequenciais), em que a busca é um acesso ao vetor
+- IndiceHash: tabela hash extensível de pares (ID; endereço),
+  usada pelos arquivos cujo índice ainda não foi convertido
+
+As alterações devem ser feitas dentro de uma transação do
+LogTransacoes (a mesma que grava o registro).
+*/
+
+package bib;
+
+import java.util.Collection;
+
+public interface IndicePrimario {
+
+    // Endereço do registro com o ID indicado, ou -1 se não houver
+    public long read(int id) throws Exception;
+
+    // Inclui o par; lança uma exceção se o ID já estiver no índice
+    public boolean create(int id, long endereco) throws Exception;
+
+    public void createAll(Collection<ParIDEndereco> pares) throws Exception;
+
+    public boolean update(int id, long endereco) throws Exception;
+
+    public boolean delete(int id) throws Exception;
+
+    public void close() throws Exception;
+}
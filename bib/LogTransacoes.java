@@ -0,0 +1,482 @@
+/*
+LOG DE TRANSAÇÕES (WRITE-AHEAD LOG)
+
+Todas as alterações feitas nos arquivos de dados e de índices
+passam por este log antes de chegar aos arquivos propriamente
+ditos:
+
+- Uma operação lógica (por exemplo, incluir um produto em uma
+  lista: registro + tabela hash + árvores B+) é delimitada por
+  inicia() e confirma(). As chamadas podem ser aninhadas: apenas
+  a mais externa confirma de fato a transação.
+- Cada escrita feita durante a transação fica em memória
+  (ArmazenamentoRegistrado) e é anotada como um trecho
+  (arquivo, posição, bytes).
+- Na confirmação, todos os trechos da transação são gravados no
+  log como um único registro, protegido por CRC32. A gravação é
+  feita em grupo (group commit): as transações confirmadas
+  enquanto um fsync está em andamento são gravadas juntas, no
+  fsync seguinte.
+- As páginas alteradas só são aplicadas aos arquivos no
+  checkpoint, quando não há transação em andamento e o log (ou a
+  memória ocupada pelas alterações) passa de um limite, ou quando
+  um arquivo é fechado. Depois disso, o log é esvaziado.
+- Na abertura, os registros completos do log são reaplicados aos
+  arquivos (redo). Um registro incompleto ou com CRC inválido
+  marca o fim do log: ele pertence a uma transação cuja
+  confirmação não chegou ao disco.
+
+Formato do log:
+  cabeçalho: int MAGICO, int VERSAO
+  registros: int tamanho, byte[tamanho] conteúdo, int crc32
+  conteúdo:  int nArquivos, e para cada arquivo:
+             UTF caminho, int nTrechos, e para cada trecho:
+             long posição, int tamanho (-1 = novo tamanho do
+             arquivo igual à posição), byte[tamanho] dados
+*/
+
+package bib;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+public class LogTransacoes {
+
+    public static final String NOME_PADRAO = "./dados/transacoes.log";
+    private static final int MAGICO = 0x50464c47; // "PFLG"
+    private static final int VERSAO = 1;
+    private static final int TAM_CABECALHO = 8;
+
+    // Limites que disparam um checkpoint (tamanho do log e memória ocupada pelas
+    // páginas alteradas ainda não aplicadas aos arquivos)
+    public static final long LIMITE_LOG = 16L << 20;
+    public static final long LIMITE_MEMORIA = 32L << 20;
+
+    private static LogTransacoes instancia;
+
+    private final String nomeArquivo;
+    private final RandomAccessFile raf;
+    private final FileChannel canal;
+    private long fimLog; // próxima posição livre no arquivo de log
+
+    // Arquivos abertos através do log, por caminho
+    private final HashMap<String, ArmazenamentoRegistrado> abertos = new HashMap<>();
+
+    // Transação corrente. As transações são serializadas pela trava; o
+    // aninhamento é controlado pela profundidade.
+    private final ReentrantLock trava = new ReentrantLock();
+    private int profundidade;
+    private boolean cancelada;
+    private final LinkedHashSet<ArmazenamentoRegistrado> alterados = new LinkedHashSet<>();
+    private final ArrayList<Runnable> ouvintesCancelamento = new ArrayList<>();
+    private final ArrayList<Runnable> ouvintesConfirmacao = new ArrayList<>();
+
+    // Group commit: registros já confirmados, à espera do próximo fsync
+    private final Object monitorDisco = new Object();
+    private ByteArrayOutputStream pendentes = new ByteArrayOutputStream();
+    private long sequenciaAnexada; // número de transações confirmadas
+    private long sequenciaDuravel; // número de transações já gravadas com fsync
+    private boolean gravando;
+
+    // Log compartilhado por todos os arquivos da aplicação
+    public static synchronized LogTransacoes instancia() throws IOException {
+        if (instancia == null)
+            instancia = new LogTransacoes(NOME_PADRAO);
+        return instancia;
+    }
+
+    private LogTransacoes(String nomeArquivo) throws IOException {
+        this.nomeArquivo = nomeArquivo;
+        File d = new File(nomeArquivo).getParentFile();
+        if (d != null && !d.exists())
+            d.mkdirs();
+        raf = new RandomAccessFile(nomeArquivo, "rw");
+        canal = raf.getChannel();
+        recupera();
+    }
+
+    public String getNomeArquivo() {
+        return nomeArquivo;
+    }
+
+    // ------------------------------------------------------------------
+    // Abertura e fechamento dos arquivos registrados
+    // ------------------------------------------------------------------
+
+    // Abre um arquivo sob o controle do log. Se o arquivo já estiver aberto,
+    // a mesma instância é compartilhada (as páginas alteradas precisam estar
+    // em um único lugar).
+    synchronized ArmazenamentoRegistrado abre(String caminho, Armazenamento.Tipo tipo) throws IOException {
+        String chave = new File(caminho).getCanonicalPath();
+        ArmazenamentoRegistrado a = abertos.get(chave);
+        if (a == null) {
+            a = new ArmazenamentoRegistrado(caminho, Armazenamento.abreDireto(caminho, tipo), this);
+            abertos.put(chave, a);
+        }
+        a.referencias++;
+        return a;
+    }
+
+    // Fecha uma referência ao arquivo. Na última, as alterações pendentes de
+    // todos os arquivos são aplicadas (checkpoint) antes do fechamento, de
+    // modo que o log nunca contenha trechos de um arquivo que não está aberto.
+    void fecha(ArmazenamentoRegistrado a) throws IOException {
+        if (emTransacao())
+            throw new IOException("Arquivo fechado durante uma transação");
+        trava.lock();
+        try {
+            synchronized (this) {
+                if (a.referencias == 0)
+                    return; // já fechado
+                if (--a.referencias > 0)
+                    return;
+            }
+            checkpoint();
+            synchronized (this) {
+                abertos.values().remove(a);
+            }
+            a.fechaBase();
+        } finally {
+            trava.unlock();
+        }
+    }
+
+    // ------------------------------------------------------------------
+    // Transações
+    // ------------------------------------------------------------------
+
+    public void inicia() {
+        trava.lock();
+        profundidade++;
+    }
+
+    public boolean emTransacao() {
+        return trava.isHeldByCurrentThread() && profundidade > 0;
+    }
+
+    // Confirma a transação. Somente a confirmação mais externa grava o registro
+    // no log; ela retorna depois que o registro estiver em disco.
+    public void confirma() throws IOException {
+        if (!emTransacao())
+            return;
+        if (--profundidade > 0) {
+            trava.unlock();
+            return;
+        }
+
+        long minhaSequencia = -1;
+        try {
+            if (cancelada) {
+                desfaz();
+            } else {
+                if (!alterados.isEmpty()) {
+                    byte[] registro = serializaTransacao();
+                    synchronized (monitorDisco) {
+                        pendentes.write(registro);
+                        minhaSequencia = ++sequenciaAnexada;
+                    }
+                    for (ArmazenamentoRegistrado a : alterados)
+                        a.encerraTransacao();
+                    alterados.clear();
+                }
+                avisa(ouvintesConfirmacao);
+            }
+        } finally {
+            cancelada = false;
+            trava.unlock();
+        }
+
+        // Fora da trava: enquanto esta transação espera o fsync, outras podem
+        // ser confirmadas e entrar no mesmo lote
+        if (minhaSequencia != -1) {
+            aguardaDurabilidade(minhaSequencia);
+            checkpointSeNecessario();
+        }
+    }
+
+    // Operação a ser executada dentro de uma transação
+    public interface Operacao<R> {
+        R executa() throws Exception;
+    }
+
+    // Executa a operação como uma transação: confirma se ela terminar
+    // normalmente e cancela se ela lançar uma exceção
+    public <R> R executa(Operacao<R> operacao) throws Exception {
+        inicia();
+        try {
+            R resultado = operacao.executa();
+            confirma();
+            return resultado;
+        } catch (Exception e) {
+            cancela();
+            throw e;
+        }
+    }
+
+    // Executa a operação sem que nenhuma transação esteja em andamento ou
+    // possa começar em outra thread. Dentro dela, arquivos podem ser fechados
+    // (e o log, esvaziado) e novas transações podem ser feitas pela própria
+    // thread. Usado na troca de arquivos inteiros (compactação).
+    <R> R executaExclusivo(Operacao<R> operacao) throws Exception {
+        if (emTransacao())
+            throw new IllegalStateException("Operação exclusiva iniciada dentro de uma transação");
+        trava.lock();
+        try {
+            return operacao.executa();
+        } finally {
+            trava.unlock();
+        }
+    }
+
+    // Cancela a transação, descartando todas as suas alterações. Em uma
+    // transação aninhada, a transação inteira é cancelada.
+    public void cancela() {
+        if (!emTransacao())
+            return;
+        desfaz();
+        if (--profundidade > 0) {
+            cancelada = true;
+        } else {
+            cancelada = false;
+        }
+        trava.unlock();
+    }
+
+    private void desfaz() {
+        for (ArmazenamentoRegistrado a : alterados)
+            a.desfazTransacao();
+        alterados.clear();
+        avisa(ouvintesCancelamento);
+    }
+
+    private void avisa(ArrayList<Runnable> lista) {
+        ArrayList<Runnable> ouvintes;
+        synchronized (lista) {
+            ouvintes = new ArrayList<>(lista);
+        }
+        for (Runnable r : ouvintes)
+            r.run();
+    }
+
+    // Estruturas que mantêm cópias em memória (cache de páginas, diretório)
+    // são avisadas quando uma transação é cancelada, para descartá-las.
+    public void adicionaOuvinteCancelamento(Runnable r) {
+        synchronized (ouvintesCancelamento) {
+            ouvintesCancelamento.add(r);
+        }
+    }
+
+    public void removeOuvinteCancelamento(Runnable r) {
+        synchronized (ouvintesCancelamento) {
+            ouvintesCancelamento.remove(r);
+        }
+    }
+
+    // Estruturas que guardam o necessário para desfazer as suas alterações em
+    // memória são avisadas quando a transação é confirmada, para descartá-lo.
+    public void adicionaOuvinteConfirmacao(Runnable r) {
+        synchronized (ouvintesConfirmacao) {
+            ouvintesConfirmacao.add(r);
+        }
+    }
+
+    public void removeOuvinteConfirmacao(Runnable r) {
+        synchronized (ouvintesConfirmacao) {
+            ouvintesConfirmacao.remove(r);
+        }
+    }
+
+    // Chamado por um arquivo na sua primeira alteração dentro da transação
+    void registraAlteracao(ArmazenamentoRegistrado a) {
+        alterados.add(a);
+    }
+
+    private byte[] serializaTransacao() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeInt(alterados.size());
+        for (ArmazenamentoRegistrado a : alterados)
+            a.serializaTransacao(dos);
+        byte[] conteudo = baos.toByteArray();
+
+        CRC32 crc = new CRC32();
+        crc.update(conteudo);
+        ByteArrayOutputStream registro = new ByteArrayOutputStream(conteudo.length + 8);
+        DataOutputStream dr = new DataOutputStream(registro);
+        dr.writeInt(conteudo.length);
+        dr.write(conteudo);
+        dr.writeInt((int) crc.getValue());
+        return registro.toByteArray();
+    }
+
+    // Espera até que a transação indicada esteja em disco. A primeira thread
+    // que encontra registros pendentes e nenhum fsync em andamento se
+    // encarrega de gravar o lote inteiro.
+    private void aguardaDurabilidade(long sequencia) throws IOException {
+        while (true) {
+            byte[] lote;
+            long ate;
+            synchronized (monitorDisco) {
+                while (sequenciaDuravel < sequencia && gravando) {
+                    try {
+                        monitorDisco.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrompido aguardando o log", e);
+                    }
+                }
+                if (sequenciaDuravel >= sequencia)
+                    return;
+                gravando = true;
+                lote = pendentes.toByteArray();
+                pendentes = new ByteArrayOutputStream();
+                ate = sequenciaAnexada;
+            }
+
+            boolean sucesso = false;
+            try {
+                ByteBuffer bb = ByteBuffer.wrap(lote);
+                while (bb.hasRemaining())
+                    canal.write(bb, fimLog + bb.position());
+                canal.force(false);
+                fimLog += lote.length;
+                sucesso = true;
+            } finally {
+                synchronized (monitorDisco) {
+                    gravando = false;
+                    if (sucesso)
+                        sequenciaDuravel = ate;
+                    monitorDisco.notifyAll();
+                }
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------
+    // Checkpoint
+    // ------------------------------------------------------------------
+
+    private void checkpointSeNecessario() throws IOException {
+        long memoria = 0;
+        synchronized (this) {
+            for (ArmazenamentoRegistrado a : abertos.values())
+                memoria += a.bytesEmMemoria();
+        }
+        if (fimLog > LIMITE_LOG || memoria > LIMITE_MEMORIA) {
+            trava.lock();
+            try {
+                if (profundidade == 0)
+                    checkpoint();
+            } finally {
+                trava.unlock();
+            }
+        }
+    }
+
+    // Aplica aos arquivos todas as alterações confirmadas e esvazia o log.
+    // Deve ser chamado com a trava e fora de uma transação.
+    private void checkpoint() throws IOException {
+        long ultima;
+        synchronized (monitorDisco) {
+            ultima = sequenciaAnexada;
+        }
+        aguardaDurabilidade(ultima);
+
+        ArrayList<ArmazenamentoRegistrado> lista;
+        synchronized (this) {
+            lista = new ArrayList<>(abertos.values());
+        }
+        for (ArmazenamentoRegistrado a : lista)
+            a.aplica();
+        if (fimLog > TAM_CABECALHO) {
+            canal.truncate(TAM_CABECALHO);
+            canal.force(true);
+            fimLog = TAM_CABECALHO;
+        }
+    }
+
+    // ------------------------------------------------------------------
+    // Recuperação
+    // ------------------------------------------------------------------
+
+    // Reaplica as transações completas do log e o esvazia
+    private void recupera() throws IOException {
+        long tamanho = canal.size();
+        if (tamanho < TAM_CABECALHO || raf.readInt() != MAGICO) {
+            raf.setLength(0);
+            raf.seek(0);
+            raf.writeInt(MAGICO);
+            raf.writeInt(VERSAO);
+            canal.force(true);
+            fimLog = TAM_CABECALHO;
+            return;
+        }
+
+        HashMap<String, RandomAccessFile> arquivos = new HashMap<>();
+        long pos = TAM_CABECALHO;
+        try {
+            while (pos + 4 <= tamanho) {
+                raf.seek(pos);
+                int tam = raf.readInt();
+                if (tam < 0 || pos + 4 + tam + 4 > tamanho)
+                    break; // registro incompleto
+                byte[] conteudo = new byte[tam];
+                raf.readFully(conteudo);
+                int crcGravado = raf.readInt();
+                CRC32 crc = new CRC32();
+                crc.update(conteudo);
+                if ((int) crc.getValue() != crcGravado)
+                    break; // registro corrompido
+                reaplica(conteudo, arquivos);
+                pos += 4 + tam + 4;
+            }
+        } finally {
+            for (RandomAccessFile r : arquivos.values()) {
+                r.getChannel().force(true);
+                r.close();
+            }
+        }
+
+        canal.truncate(TAM_CABECALHO);
+        canal.force(true);
+        fimLog = TAM_CABECALHO;
+    }
+
+    private void reaplica(byte[] conteudo, HashMap<String, RandomAccessFile> arquivos) throws IOException {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(conteudo));
+        int nArquivos = dis.readInt();
+        for (int i = 0; i < nArquivos; i++) {
+            String caminho = dis.readUTF();
+            RandomAccessFile r = arquivos.get(caminho);
+            if (r == null) {
+                r = new RandomAccessFile(caminho, "rw");
+                arquivos.put(caminho, r);
+            }
+            int nTrechos = dis.readInt();
+            for (int j = 0; j < nTrechos; j++) {
+                long posicao = dis.readLong();
+                int tam = dis.readInt();
+                if (tam < 0) {
+                    r.setLength(posicao);
+                } else {
+                    byte[] dados = new byte[tam];
+                    dis.readFully(dados);
+                    r.seek(posicao);
+                    r.write(dados);
+                }
+            }
+        }
+    }
+}
@@ -26,11 +26,18 @@ public class ParIDEndereco implements RegistroHashExtensivel {
         return endereco;
     }
 
+    // O hash é o próprio ID (IDs consecutivos ocupam cestos diferentes)
     @Override
-    public int hashCode() {
+    public long hash() {
         return this.id;
     }
 
+    // Mesmo hash, lido diretamente de um par serializado
+    @Override
+    public long hash(byte[] ba, int inicio) {
+        return RegistroHashExtensivel.leInt(ba, inicio);
+    }
+
     public short size() {
         return this.TAMANHO;
     }
@@ -0,0 +1,83 @@
+package bib;
+
+import java.io.*;
+
+// Par de inteiros (chave, valor) para a árvore B+. A chave pode repetir; o
+// valor -1 em uma busca indica "qualquer valor" (todos os pares da chave).
+// É usado pelas ferramentas de teste e de desempenho da árvore.
+public class ParIntInt implements RegistroArvoreBMais<ParIntInt> {
+
+    private int chave;
+    private int valor;
+    private final short TAMANHO = 8; // tamanho em bytes
+
+    public ParIntInt() {
+        this(-1, -1);
+    }
+
+    public ParIntInt(int chave) {
+        this(chave, -1);
+    }
+
+    public ParIntInt(int chave, int valor) {
+        this.chave = chave;
+        this.valor = valor;
+    }
+
+    public int getChave() {
+        return chave;
+    }
+
+    public int getValor() {
+        return valor;
+    }
+
+    @Override
+    public ParIntInt clone() {
+        return new ParIntInt(this.chave, this.valor);
+    }
+
+    public short size() {
+        return this.TAMANHO;
+    }
+
+    public int compareTo(ParIntInt outro) {
+        if (this.chave != outro.chave)
+            return Integer.compare(this.chave, outro.chave);
+        if (this.valor == -1 || outro.valor == -1)
+            return 0;
+        return Integer.compare(this.valor, outro.valor);
+    }
+
+    // Mesma comparação, feita diretamente sobre um par serializado
+    @Override
+    public int compareTo(byte[] ba, int inicio) {
+        int chaveOutro = RegistroArvoreBMais.leInt(ba, inicio);
+        int valorOutro = RegistroArvoreBMais.leInt(ba, inicio + 4);
+        if (this.chave != chaveOutro)
+            return Integer.compare(this.chave, chaveOutro);
+        if (this.valor == -1 || valorOutro == -1)
+            return 0;
+        return Integer.compare(this.valor, valorOutro);
+    }
+
+    public String toString() {
+        return "(" + this.chave + ";" + this.valor + ")";
+    }
+
+    public byte[] toByteArray() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeInt(this.chave);
+        dos.writeInt(this.valor);
+        return baos.toByteArray();
+    }
+
+    public void fromByteArray(byte[] ba) throws IOException {
+        ByteArrayInputStream bais = new ByteArrayInputStream(ba);
+        DataInputStream dis = new DataInputStream(bais);
+        this.chave = dis.readInt();
+        this.valor = dis.readInt();
+    }
+
+}
@@ -0,0 +1,108 @@
+/*
+RECONSTRÓI HASH
+
+Regrava um índice de hash extensível (HashExtensivel) com um novo
+tamanho de cesto. Deve ser usado com a aplicação parada:
+
+  java bib.ReconstroiHash <classe> <diretorio> <cestos> [bytesPorCesto]
+
+- <classe> é a classe dos elementos (por exemplo, bib.ParIDEndereco
+  ou model.ParGtinId), que deve ter um construtor sem parâmetros.
+- O tamanho padrão é HashExtensivel.TAMANHO_CESTO_PADRAO (uma página
+  de 4 KiB).
+- Os elementos são copiados para um novo par de arquivos (com o
+  sufixo .novo), que só depois substitui o original. Antes da troca,
+  é gravado um marcador (<diretorio>.troca): sem ele, os arquivos
+  .novo são descartados e o índice original continua valendo; com
+  ele, a troca é concluída. Se o processo for interrompido durante
+  a troca, ela é completada na próxima abertura do índice (pelo
+  próprio HashExtensivel) ou na próxima execução desta ferramenta.
+- A profundidade do diretório e a ocupação dos cestos são exibidas
+  antes e depois da reconstrução.
+*/
+
+package bib;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.lang.reflect.Constructor;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ReconstroiHash {
+
+    // Elementos incluídos por transação
+    private static final int BLOCO = 10000;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.out.println("Uso: java bib.ReconstroiHash <classe> <diretorio> <cestos> [bytesPorCesto]");
+            return;
+        }
+        int bytesPorCesto = args.length > 3 ? Integer.parseInt(args[3]) : HashExtensivel.TAMANHO_CESTO_PADRAO;
+        reconstroi(Class.forName(args[0]), args[1], args[2], bytesPorCesto);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends RegistroHashExtensivel> void reconstroi(Class<?> classe, String nomeDiretorio,
+            String nomeCestos, int bytesPorCesto) throws Exception {
+        if (!RegistroHashExtensivel.class.isAssignableFrom(classe))
+            throw new Exception(classe.getName() + " não implementa RegistroHashExtensivel");
+        if (!new File(nomeDiretorio).exists() || !new File(nomeCestos).exists())
+            throw new Exception("Índice não encontrado: " + nomeDiretorio + ", " + nomeCestos);
+        Constructor<T> construtor = (Constructor<T>) classe.getConstructor();
+        concluiTroca(nomeDiretorio, nomeCestos);
+
+        String novoDiretorio = nomeDiretorio + ".novo";
+        String novoCestos = nomeCestos + ".novo";
+
+        HashExtensivel<T> antigo = new HashExtensivel<>(construtor, nomeDiretorio, nomeCestos, bytesPorCesto);
+        HashExtensivel<T> novo = new HashExtensivel<>(construtor, novoDiretorio, novoCestos, bytesPorCesto);
+        try {
+            System.out.println("\nANTES ----------------------");
+            System.out.println(antigo.estatisticas());
+
+            ArrayList<T> elementos = antigo.readAll();
+            for (int i = 0; i < elementos.size(); i += BLOCO) {
+                List<T> bloco = elementos.subList(i, Math.min(i + BLOCO, elementos.size()));
+                novo.createAll(bloco);
+            }
+
+            System.out.println("\nDEPOIS ---------------------");
+            System.out.println(novo.estatisticas());
+        } finally {
+            antigo.close();
+            novo.close();
+        }
+
+        // Ponto de confirmação: a partir do marcador, a troca é sempre concluída
+        try (FileOutputStream fos = new FileOutputStream(nomeDiretorio + ".troca")) {
+            fos.getFD().sync();
+        }
+        concluiTroca(nomeDiretorio, nomeCestos);
+    }
+
+    // Conclui (ou descarta) uma troca de arquivos interrompida. Com o marcador,
+    // cada arquivo .novo que ainda existir substitui o original (cada troca
+    // é uma única renomeação, que pode ser repetida); sem ele, os arquivos
+    // .novo são restos de uma reconstrução incompleta.
+    static void concluiTroca(String nomeDiretorio, String nomeCestos) throws Exception {
+        File marcador = new File(nomeDiretorio + ".troca");
+        File novoDiretorio = new File(nomeDiretorio + ".novo");
+        File novoCestos = new File(nomeCestos + ".novo");
+        if (marcador.exists()) {
+            if (novoDiretorio.exists())
+                Files.move(novoDiretorio.toPath(), new File(nomeDiretorio).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            if (novoCestos.exists())
+                Files.move(novoCestos.toPath(), new File(nomeCestos).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            Files.delete(marcador.toPath());
+        } else {
+            Files.deleteIfExists(novoDiretorio.toPath());
+            Files.deleteIfExists(novoCestos.toPath());
+        }
+    }
+}
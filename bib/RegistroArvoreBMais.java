@@ -11,6 +11,7 @@ v1.0 - 2021
 package bib;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 public interface RegistroArvoreBMais<T> {
 
@@ -24,4 +25,21 @@ public interface RegistroArvoreBMais<T> {
 
   public T clone(); // clonagem de objetos
 
+  // Compara este elemento com outro que está serializado em 'ba', a partir da
+  // posição 'inicio' (no formato de toByteArray). É usado pela árvore para
+  // comparar diretamente com os bytes das páginas. A implementação padrão
+  // reconstrói o outro elemento; as classes podem sobrescrevê-la para
+  // comparar os bytes sem criar objetos.
+  @SuppressWarnings("unchecked")
+  public default int compareTo(byte[] ba, int inicio) throws IOException {
+    T outro = clone();
+    ((RegistroArvoreBMais<T>) outro).fromByteArray(Arrays.copyOfRange(ba, inicio, inicio + size()));
+    return compareTo(outro);
+  }
+
+  // Lê um int gravado por DataOutputStream.writeInt (big-endian)
+  public static int leInt(byte[] ba, int pos) {
+    return ((ba[pos] & 0xFF) << 24) | ((ba[pos + 1] & 0xFF) << 16) | ((ba[pos + 2] & 0xFF) << 8) | (ba[pos + 3] & 0xFF);
+  }
+
 }
@@ -10,9 +10,14 @@ v1.1 - 2021
 */
 package bib;
 
+import java.util.Arrays;
+
 public interface RegistroHashExtensivel {
 
-  public int hashCode(); // chave numérica positiva para ser usada no diretório
+  // Chave numérica de 64 bits usada no diretório (bits menos significativos)
+  // e nos cestos. Elementos diferentes podem ter o mesmo hash: a chave
+  // completa é comparada por mesmaChave().
+  public long hash();
 
   public short size(); // tamanho FIXO do registro
 
@@ -20,4 +25,74 @@ public interface RegistroHashExtensivel {
 
   public void fromByteArray(byte[] ba) throws Exception; // vetor de bytes a ser usado na construção do elemento
 
+  // hash() do elemento que está serializado em 'ba', a partir da posição
+  // 'inicio' (no formato de toByteArray). É usado pelos cestos, que guardam os
+  // elementos serializados e só criam objetos para os que forem devolvidos.
+  // A implementação padrão reconstrói o elemento nesta própria instância (por
+  // isso a tabela a chama sobre uma instância auxiliar); as classes podem
+  // sobrescrevê-la para calcular o hash diretamente dos bytes.
+  public default long hash(byte[] ba, int inicio) throws Exception {
+    fromByteArray(Arrays.copyOfRange(ba, inicio, inicio + size()));
+    return hash();
+  }
+
+  // Verifica se os dois elementos têm a mesma chave. A tabela só chama este
+  // método para elementos com o mesmo hash; o padrão serve para as classes
+  // em que o hash é a própria chave (como um ID).
+  public default boolean mesmaChave(RegistroHashExtensivel outro) {
+    return hash() == outro.hash();
+  }
+
+  // Hash de 64 bits de uma String, sem os espaços das pontas
+  public static long hashTexto(String s) {
+    int ini = 0, fim = s.length();
+    while (ini < fim && s.charAt(ini) <= ' ')
+      ini++;
+    while (fim > ini && s.charAt(fim - 1) <= ' ')
+      fim--;
+    long h = FNV_INICIAL;
+    for (int k = ini; k < fim; k++)
+      h = (h ^ s.charAt(k)) * FNV_PRIMO;
+    return misturaBits(h);
+  }
+
+  // Hash de uma String gravada com writeChars em 'quantidade' caracteres,
+  // igual ao hashTexto() da String lida
+  public static long hashTexto(byte[] ba, int inicio, int quantidade) {
+    int ini = 0, fim = quantidade;
+    while (ini < fim && leChar(ba, inicio + 2 * ini) <= ' ')
+      ini++;
+    while (fim > ini && leChar(ba, inicio + 2 * (fim - 1)) <= ' ')
+      fim--;
+    long h = FNV_INICIAL;
+    for (int k = ini; k < fim; k++)
+      h = (h ^ leChar(ba, inicio + 2 * k)) * FNV_PRIMO;
+    return misturaBits(h);
+  }
+
+  // FNV-1a de 64 bits, seguido da mistura final do MurmurHash3, que espalha
+  // por todos os bits (inclusive os menos significativos, usados pelo
+  // diretório) a diferença entre textos quase iguais
+  static final long FNV_INICIAL = 0xcbf29ce484222325L;
+  static final long FNV_PRIMO = 0x100000001b3L;
+
+  public static long misturaBits(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  // Lê um char gravado por DataOutputStream.writeChar (big-endian)
+  public static char leChar(byte[] ba, int pos) {
+    return (char) (((ba[pos] & 0xFF) << 8) | (ba[pos + 1] & 0xFF));
+  }
+
+  // Lê um int gravado por DataOutputStream.writeInt (big-endian)
+  public static int leInt(byte[] ba, int pos) {
+    return ((ba[pos] & 0xFF) << 24) | ((ba[pos + 1] & 0xFF) << 16) | ((ba[pos + 2] & 0xFF) << 8) | (ba[pos + 3] & 0xFF);
+  }
+
 }
@@ -0,0 +1,130 @@
+/*
+SEQUÊNCIA DE IDS
+
+Gera os IDs dos registros de um arquivo de dados sem ler nem
+gravar o cabeçalho a cada inclusão:
+
+- O próximo ID fica em memória (AtomicInteger), carregado na
+  abertura a partir do cabeçalho do arquivo.
+- O cabeçalho guarda o maior ID reservado. Quando os IDs
+  reservados acabam, um novo bloco de BLOCO IDs é reservado com
+  uma única gravação, feita na transação da inclusão.
+- Após uma queda, a contagem recomeça depois do último ID
+  reservado: alguns IDs são pulados, mas nenhum é repetido. No
+  fechamento, o cabeçalho volta a guardar o último ID usado.
+- Os IDs entregues a uma transação cancelada voltam para a
+  sequência.
+
+Instâncias de Arquivo sobre o mesmo arquivo de dados compartilham
+a mesma sequência.
+*/
+
+package bib;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SequenciaIds {
+
+    public static final int BLOCO = 1000;
+
+    // Sequências abertas, pelo caminho do arquivo de dados
+    private static final HashMap<String, SequenciaIds> abertas = new HashMap<>();
+
+    private final String chave;
+    private final LogTransacoes log;
+    private int referencias;
+
+    private final AtomicInteger proximo;
+    private volatile int reservado; // maior ID reservado no cabeçalho
+    private volatile int inicioTransacao = -1; // primeiro ID entregue na transação corrente
+    private final Runnable aoConfirmar = this::confirmaTransacao;
+    private final Runnable aoCancelar = this::desfazTransacao;
+
+    // Abre a sequência do arquivo de dados (ou compartilha a que já estiver
+    // aberta). 'reservado' é o valor gravado no cabeçalho do arquivo.
+    public static synchronized SequenciaIds abre(String nomeDados, int reservado) throws IOException {
+        String chave = new File(nomeDados).getCanonicalPath();
+        SequenciaIds s = abertas.get(chave);
+        if (s == null) {
+            s = new SequenciaIds(chave, reservado);
+            abertas.put(chave, s);
+        }
+        s.referencias++;
+        return s;
+    }
+
+    private SequenciaIds(String chave, int reservado) throws IOException {
+        this.chave = chave;
+        this.proximo = new AtomicInteger(reservado + 1);
+        this.reservado = reservado;
+        this.log = LogTransacoes.instancia();
+        log.adicionaOuvinteConfirmacao(aoConfirmar);
+        log.adicionaOuvinteCancelamento(aoCancelar);
+    }
+
+    // Retorna um novo ID. Deve ser chamado dentro da transação que grava o
+    // registro, para que a eventual reserva de um novo bloco faça parte dela.
+    public int proximo(Armazenamento arquivo) throws IOException {
+        return proximos(arquivo, 1);
+    }
+
+    // Retorna o primeiro de 'quantidade' IDs consecutivos (inclusão em lote)
+    public int proximos(Armazenamento arquivo, int quantidade) throws IOException {
+        int primeiro = proximo.getAndAdd(quantidade);
+        int ultimo = primeiro + quantidade - 1;
+        if (ultimo > reservado || inicioTransacao == -1) {
+            synchronized (this) {
+                if (inicioTransacao == -1 && log.emTransacao())
+                    inicioTransacao = primeiro;
+                if (ultimo > reservado) {
+                    int limite = ultimo + BLOCO - 1;
+                    arquivo.escreveInt(0, limite);
+                    reservado = limite;
+                }
+            }
+        }
+        return primeiro;
+    }
+
+    // Último ID entregue
+    public int ultimo() {
+        return proximo.get() - 1;
+    }
+
+    // Fecha uma referência. Na última, grava no cabeçalho o último ID usado,
+    // liberando o restante do bloco reservado.
+    public void fecha(Armazenamento arquivo) throws Exception {
+        synchronized (SequenciaIds.class) {
+            if (referencias == 0 || --referencias > 0)
+                return;
+            abertas.remove(chave);
+        }
+        log.removeOuvinteConfirmacao(aoConfirmar);
+        log.removeOuvinteCancelamento(aoCancelar);
+        int ultimo = ultimo();
+        if (reservado != ultimo) {
+            log.executa(() -> {
+                arquivo.escreveInt(0, ultimo);
+                return null;
+            });
+        }
+    }
+
+    private synchronized void confirmaTransacao() {
+        inicioTransacao = -1;
+    }
+
+    // As transações são serializadas pelo log, então todos os IDs entregues
+    // desde o início da transação cancelada pertencem a ela. A gravação da
+    // reserva também pode ter sido desfeita: a próxima inclusão reserva um
+    // novo bloco.
+    private synchronized void desfazTransacao() {
+        if (inicioTransacao != -1)
+            proximo.set(inicioTransacao);
+        inicioTransacao = -1;
+        reservado = 0;
+    }
+}
@@ -167,9 +167,6 @@ public void menuProcurarLista() {
 // Novo método: menu de detalhes do produto dentro da lista
 private void menuDetalhesProdutoLista(ListaProduto lp, Lista lista, Usuario usuarioLogado) {
     try {
-        CRUDProduto crudProduto = new CRUDProduto();
-        CRUDListaProduto crudListaProduto = new CRUDListaProduto();
-
         Produto produto = crudProduto.read(lp.getIdProduto());
         if (produto == null) {
             System.out.println("\nERRO: Produto não encontrado!");
@@ -312,7 +309,6 @@ private void menuDetalhesProdutoLista(ListaProduto lp, Lista lista, Usuario usua
 private void GerenciarProdutoLista(Lista lista, Usuario usuarioLogado) {
     try {
         String opcao;
-        CRUDListaProduto crudListaProduto = new CRUDListaProduto();
 
         do {
             System.out.println("\nPresenteFácil 2.0");
@@ -406,8 +402,7 @@ private void buscarProdutoPorGTIN(Lista lista, CRUDListaProduto crudListaProduto
     }
 
     // Verifica se já está na lista
-    ListaProduto existente = crudListaProduto.findAssociacao(lista.getID(), produto.getID());
-    if (existente != null) {
+    if (crudListaProduto.readIdAssociacao(lista.getID(), produto.getID()) != -1) {
         System.out.println("\nEsse produto já está na lista!");
         visaoUsuario.pausa();
         return;
@@ -424,16 +419,8 @@ private void buscarProdutoPorGTIN(Lista lista, CRUDListaProduto crudListaProduto
 }
 
 private void listarTodosProdutosParaAdicionar(Lista lista, CRUDListaProduto crudListaProduto) throws Exception {
-    // Pega todos os produtos
-    ArrayList<Produto> todos = crudProduto.readAll();
-
-    // Cria uma lista apenas com produtos ativos
-    ArrayList<Produto> ativos = new ArrayList<>();
-    for (Produto p : todos) {
-        if (p.isAtivo()) {
-            ativos.add(p);
-        }
-    }
+    // Pega apenas os produtos ativos (o filtro é aplicado durante a varredura)
+    ArrayList<Produto> ativos = crudProduto.readAllAtivos();
 
     if (ativos.isEmpty()) {
         System.out.println("\nNenhum produto ativo disponível!");
@@ -464,8 +451,7 @@ private void listarTodosProdutosParaAdicionar(Lista lista, CRUDListaProduto crud
     Produto produto = ativos.get(opc - 1);
 
     // Verifica duplicidade
-    ListaProduto existente = crudListaProduto.findAssociacao(lista.getID(), produto.getID());
-    if (existente != null) {
+    if (crudListaProduto.readIdAssociacao(lista.getID(), produto.getID()) != -1) {
         System.out.println("\nEsse produto já está na lista!");
         visaoUsuario.pausa();
         return;
@@ -38,6 +38,7 @@ public class ControlePrincipal {
         CRUDUsuario crudUsuario = new CRUDUsuario();
         CRUDLista crudLista = new CRUDLista();
         CRUDProduto crudProduto = new CRUDProduto();
+        this.crudListaProduto = new CRUDListaProduto();
 
         // E são injetadas nos outros controladores
         this.controleUsuario = new ControleUsuario(crudUsuario, crudLista);
@@ -46,6 +47,17 @@ public class ControlePrincipal {
 
         this.usuarioLogado = null;
         this.teclado = new Scanner(System.in);
+
+        // Bases antigas podem ter registros com o e-mail, o código ou o GTIN
+        // de outro; na reconstrução dos índices, eles ficam de fora
+        avisaRepetidos("utilizadores com e-mail repetido", crudUsuario.getIdsRepetidos());
+        avisaRepetidos("listas com código repetido", crudLista.getIdsRepetidos());
+        avisaRepetidos("produtos com GTIN repetido", crudProduto.getIdsRepetidos());
+    }
+
+    private void avisaRepetidos(String descricao, List<Integer> ids) {
+        if (!ids.isEmpty())
+            visaoUsuario.mostrarMensagem("AVISO: " + descricao + " ficaram fora da busca (IDs " + ids + ")");
     }
 
     // ------------------------------------------ Métodos de Menu
@@ -1,10 +1,11 @@
 package controller;
 
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.ArrayList;
 import java.util.List;
 
 import model.CRUDProduto;
+import model.ImportadorProdutos;
+import model.ParNomeId;
 import model.Produto;
 import view.VisaoProduto;
 import view.VisaoUsuario;
@@ -52,6 +53,9 @@ public class ControleProduto {
                 case "3":
                     cadastrarNovoProduto();
                     break;
+                case "4":
+                    importarCatalogo();
+                    break;
                 case "r":
                     break;
                 default:
@@ -100,36 +104,41 @@ public class ControleProduto {
 
     /**
      * Controla a lógica de paginação para a listagem de produtos.
-     * Lê todos os produtos ativos, ordena-os e exibe-os em páginas.
+     * As páginas são lidas diretamente do índice de nomes do CRUD: para cada
+     * página visitada, guarda-se apenas a chave do seu primeiro produto.
      */
     private void listarProdutosPaginado() {
         try {
-            // 1. Lê TODOS os produtos do CRUD
-            List<Produto> todosProdutos = crudProduto.readAll();
-
-            // 2. Ordena a lista completa por nome
-            Collections.sort(todosProdutos, Comparator.comparing(Produto::getNome, String.CASE_INSENSITIVE_ORDER));
-
             final int ITENS_POR_PAGINA = 10;
-            int totalPaginas = (int) Math.ceil((double) todosProdutos.size() / ITENS_POR_PAGINA);
-            if (totalPaginas == 0)
-                totalPaginas = 1;
+
+            // Chave inicial de cada página já visitada (null = primeira página)
+            List<ParNomeId> iniciosPaginas = new ArrayList<>();
+            iniciosPaginas.add(null);
             int paginaAtual = 1;
 
             String opcao;
             do {
-                int inicio = (paginaAtual - 1) * ITENS_POR_PAGINA;
-                int fim = Math.min(inicio + ITENS_POR_PAGINA, todosProdutos.size());
+                int totalPaginas = (int) Math.ceil((double) crudProduto.getQuantidadeProdutos() / ITENS_POR_PAGINA);
+                if (totalPaginas == 0)
+                    totalPaginas = 1;
 
-                // 3. Envia apenas a "fatia" de 10 para a visão
-                List<Produto> produtosPagina = todosProdutos.subList(inicio, fim);
+                // 1. Lê apenas os 10 produtos da página atual, já ordenados por nome
+                List<Produto> produtosPagina = crudProduto.readPaginaPorNome(
+                        iniciosPaginas.get(paginaAtual - 1), ITENS_POR_PAGINA);
 
                 opcao = visaoProduto.mostrarListagemPaginada(produtosPagina, paginaAtual, totalPaginas);
 
                 switch (opcao) {
                     case "p":
-                        if (paginaAtual < totalPaginas)
+                        if (paginaAtual < totalPaginas && !produtosPagina.isEmpty()) {
+                            // A próxima página começa logo depois do último produto desta
+                            Produto ultimo = produtosPagina.get(produtosPagina.size() - 1);
+                            if (iniciosPaginas.size() == paginaAtual)
+                                iniciosPaginas.add(new ParNomeId(ultimo.getNome(), ultimo.getID() + 1));
+                            else
+                                iniciosPaginas.set(paginaAtual, new ParNomeId(ultimo.getNome(), ultimo.getID() + 1));
                             paginaAtual++;
+                        }
                         break;
                     case "a":
                         if (paginaAtual > 1)
@@ -147,9 +156,9 @@ public class ControleProduto {
 
                             if (indice >= 0 && indice < produtosPagina.size()) {
                                 gerenciarProduto(produtosPagina.get(indice));
-                                // Ao retornar, recarrega a lista para refletir possíveis alterações
-                                listarProdutosPaginado();
-                                return;
+                                // Ao retornar, a página atual é relida no início do laço,
+                                // refletindo possíveis alterações
+                                break;
                             } else {
                                 visaoUsuario.mostrarMensagem("ERRO: Opção numérica inválida!");
                             }
@@ -184,6 +193,31 @@ public class ControleProduto {
         visaoUsuario.pausa();
     }
 
+    /**
+     * Gere o fluxo de importação de um catálogo de produtos a partir de um
+     * arquivo CSV, apresentando ao final os totais de produtos importados e
+     * de linhas rejeitadas.
+     */
+    private void importarCatalogo() {
+        String caminho = visaoProduto.lerArquivoImportacao();
+        try {
+            ImportadorProdutos.Resultado r = new ImportadorProdutos(crudProduto).importa(caminho);
+            visaoUsuario.mostrarMensagem("\nLinhas lidas: " + r.linhas
+                    + String.format(" (%.0f linhas/s)", r.linhasPorSegundo()));
+            visaoUsuario.mostrarMensagem("Produtos importados: " + r.importados);
+            visaoUsuario.mostrarMensagem("Linhas rejeitadas: " + r.rejeitados());
+            if (r.rejeitados() > 0) {
+                visaoUsuario.mostrarMensagem("  Formato inválido.....: " + r.formatoInvalido);
+                visaoUsuario.mostrarMensagem("  GTIN-13 inválido.....: " + r.gtinInvalido);
+                visaoUsuario.mostrarMensagem("  Repetidos no arquivo.: " + r.repetidosNoArquivo);
+                visaoUsuario.mostrarMensagem("  Já cadastrados.......: " + r.jaCadastrados);
+            }
+        } catch (Exception e) {
+            visaoUsuario.mostrarMensagem("ERRO ao importar catálogo: " + e.getMessage());
+        }
+        visaoUsuario.pausa();
+    }
+
     /**
      * Gere o fluxo de busca de um produto pelo seu GTIN.
      */
@@ -5,6 +5,7 @@ import bib.HashExtensivel;
 import bib.ArvoreBMais;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Random;
 
@@ -29,17 +30,24 @@ public class CRUDLista extends Arquivo<Lista> {
         File d = new File("data");
         if (!d.exists()) d.mkdir();
 
+        // O índice de códigos usa hash de 64 bits, em arquivos próprios. Se ele
+        // estiver vazio (base criada antes dele, ou reconstrução interrompida),
+        // é reconstruído a partir das listas.
         indiceCodigo = new HashExtensivel<>(
             ParCodigoId.class.getConstructor(),
-            4,
-            "data/listas_codigo.diretorio.idx",
-            "data/listas_codigo.cestos.idx"
+            "data/listas_codigo64.diretorio.idx",
+            "data/listas_codigo64.cestos.idx",
+            HashExtensivel.TAMANHO_CESTO_PADRAO
         );
+        if (indiceCodigo.empty())
+            reconstroiIndiceUnico(indiceCodigo, null,
+                l -> new ParCodigoId(l.getCodigoCompartilhavel(), l.getID()), ParCodigoId::getCodigo,
+                "data/listas_codigo.diretorio.idx", "data/listas_codigo.cestos.idx");
         
         indiceUsuarioLista = new ArvoreBMais<>(
             ParUsuarioLista.class.getConstructor(), 
-            5,
-            "data/listas_usuario.idx"
+            "data/listas_usuario.idx",
+            ArvoreBMais.TAMANHO_BLOCO_PADRAO
         );
     }
 
@@ -69,15 +77,47 @@ public class CRUDLista extends Arquivo<Lista> {
      */
     @Override
     public int create(Lista lista) throws Exception {
-        lista.setCodigoCompartilhavel(gerarCodigo());
+        // O registro e os índices são alterados em uma única transação
+        return log.executa(() -> {
+            lista.setCodigoCompartilhavel(gerarCodigo());
         
-        int id = super.create(lista);
-        lista.setID(id);
+            int id = super.create(lista);
+            lista.setID(id);
 
-        indiceCodigo.create(new ParCodigoId(lista.getCodigoCompartilhavel(), id));
-        indiceUsuarioLista.create(new ParUsuarioLista(lista.getIdUsuario(), id));
+            indiceCodigo.create(new ParCodigoId(lista.getCodigoCompartilhavel(), id));
+            indiceUsuarioLista.create(new ParUsuarioLista(lista.getIdUsuario(), id));
         
-        return id;
+            return id;
+        });
+    }
+
+    /**
+     * Cria várias listas em uma única transação (por exemplo, a partir de um modelo).
+     * @param listas As listas a serem criadas; cada uma recebe o seu ID e código.
+     * @return Os IDs gerados, na ordem da coleção.
+     * @throws Exception se ocorrer um erro durante a escrita nos ficheiros.
+     */
+    @Override
+    public int[] createAll(Collection<Lista> listas) throws Exception {
+        return log.executa(() -> {
+            for (Lista lista : listas)
+                lista.setCodigoCompartilhavel(gerarCodigo());
+
+            int[] ids = super.createAll(listas);
+
+            ArrayList<ParCodigoId> codigos = new ArrayList<>(listas.size());
+            ArrayList<ParUsuarioLista> donos = new ArrayList<>(listas.size());
+            for (Lista lista : listas) {
+                codigos.add(new ParCodigoId(lista.getCodigoCompartilhavel(), lista.getID()));
+                donos.add(new ParUsuarioLista(lista.getIdUsuario(), lista.getID()));
+            }
+            indiceCodigo.createAll(codigos);
+            donos.sort((a, b) -> a.compareTo(b));
+            for (ParUsuarioLista par : donos)
+                indiceUsuarioLista.create(par);
+
+            return ids;
+        });
     }
 
     /**
@@ -87,7 +127,8 @@ public class CRUDLista extends Arquivo<Lista> {
      * @throws Exception se ocorrer um erro durante a leitura dos ficheiros.
      */
     public Lista readByCodigo(String codigo) throws Exception {
-        ParCodigoId par = indiceCodigo.read(codigo.hashCode());
+        // O índice compara o código completo, não apenas o hash
+        ParCodigoId par = indiceCodigo.read(new ParCodigoId(codigo, -1));
         
         if (par != null) {
             return super.read(par.getId());
@@ -127,18 +168,31 @@ public class CRUDLista extends Arquivo<Lista> {
      */
     @Override
     public boolean delete(int id) throws Exception {
-        Lista lista = super.read(id);
-        if (lista == null) {
+        return log.executa(() -> {
+            Lista lista = super.read(id);
+            if (lista == null) {
+                return false;
+            }
+
+            if (super.delete(id)) {
+                indiceCodigo.deleteExato(new ParCodigoId(lista.getCodigoCompartilhavel(), id));
+                indiceUsuarioLista.delete(new ParUsuarioLista(lista.getIdUsuario(), lista.getID()));
+                return true;
+            }
+        
             return false;
-        }
+        });
+    }
 
-        if (super.delete(id)) {
-            indiceCodigo.delete(lista.getCodigoCompartilhavel().hashCode());
-            indiceUsuarioLista.delete(new ParUsuarioLista(lista.getIdUsuario(), lista.getID()));
-            return true;
-        }
-        
-        return false;
+    /**
+     * Fecha o ficheiro principal e a Árvore B+ de relacionamento, gravando as
+     * páginas que ainda estiverem no cache.
+     * @throws Exception se ocorrer um erro ao fechar os ficheiros.
+     */
+    @Override
+    public void close() throws Exception {
+        indiceUsuarioLista.close();
+        indiceCodigo.close();
+        super.close();
     }
 }
-
@@ -4,12 +4,20 @@ import bib.Arquivo;
 import bib.ArvoreBMais;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 
 // CRUD para a associação ListaProduto (relacionamento N:N)
 public class CRUDListaProduto extends Arquivo<ListaProduto> {
-    // Atributos da Classe (2 Árvores B+)
+    // Atributos da Classe (3 Árvores B+)
     private ArvoreBMais<ParIdListaProduto> indiceIdLista; // Busca por Lista
     private ArvoreBMais<ParIdProdutoListaProduto> indiceIdProduto; // Busca por Produto
+    private ArvoreBMais<ParListaProdutoId> indiceListaProduto; // Par (Lista, Produto), único
+
+    // Ocupação das folhas quando os índices são reconstruídos por carga em lote
+    private static final double PREENCHIMENTO_INDICES = 0.75;
 
     // Construtores (cria arquivo de data com as listas e produtos caso não existam,
     // e
@@ -17,6 +25,10 @@ public class CRUDListaProduto extends Arquivo<ListaProduto> {
     public CRUDListaProduto() throws Exception {
         super("listaproduto", ListaProduto.class.getConstructor());
 
+        // Associações removidas deixam espaços livres no arquivo; ele é
+        // compactado em segundo plano quando eles passam do limite
+        iniciaCompactacaoAutomatica(LIMITE_COMPACTACAO_PADRAO);
+
         File d = new File("data");
         if (!d.exists())
             d.mkdir();
@@ -24,14 +36,54 @@ public class CRUDListaProduto extends Arquivo<ListaProduto> {
         // Inicializa a arvore B+ indexada por IdLista
         indiceIdLista = new ArvoreBMais<>(
                 ParIdListaProduto.class.getConstructor(),
-                5, // ordem da árvore 5
-                "data/listaproduto_idlista.btree.db");
+                "data/listaproduto_idlista.btree.db",
+                ArvoreBMais.TAMANHO_BLOCO_PADRAO);
 
         // Inicializa a árvore B+ indexada por IdProduto
         indiceIdProduto = new ArvoreBMais<>(
                 ParIdProdutoListaProduto.class.getConstructor(),
-                5, // ordem da árvore
-                "data/listaproduto_idproduto.btree.db");
+                "data/listaproduto_idproduto.btree.db",
+                ArvoreBMais.TAMANHO_BLOCO_PADRAO);
+
+        // Inicializa a árvore B+ indexada pelo par (idLista, idProduto)
+        indiceListaProduto = new ArvoreBMais<>(
+                ParListaProdutoId.class.getConstructor(),
+                "data/listaproduto_lista_produto.btree.db",
+                ArvoreBMais.TAMANHO_BLOCO_PADRAO);
+
+        // Índices ausentes (bases criadas antes deles ou arquivos de índice
+        // apagados) são reconstruídos a partir do arquivo de dados, com uma
+        // única varredura e carga em lote
+        boolean semIdLista = indiceIdLista.empty();
+        boolean semIdProduto = indiceIdProduto.empty();
+        boolean semListaProduto = indiceListaProduto.empty();
+        if (semIdLista || semIdProduto || semListaProduto) {
+            ArrayList<ParIdListaProduto> paresLista = new ArrayList<>();
+            ArrayList<ParIdProdutoListaProduto> paresProduto = new ArrayList<>();
+            ArrayList<ParListaProdutoId> paresListaProduto = new ArrayList<>();
+            Iterator<ListaProduto> it = iterador(null);
+            while (it.hasNext()) {
+                ListaProduto lp = it.next();
+                if (semIdLista)
+                    paresLista.add(new ParIdListaProduto(lp.getIdLista(), lp.getID()));
+                if (semIdProduto)
+                    paresProduto.add(new ParIdProdutoListaProduto(lp.getIdProduto(), lp.getID()));
+                if (semListaProduto)
+                    paresListaProduto.add(new ParListaProdutoId(lp.getIdLista(), lp.getIdProduto(), lp.getID()));
+            }
+            if (!paresLista.isEmpty()) {
+                paresLista.sort((a, b) -> a.compareTo(b));
+                indiceIdLista.carregaEmLote(paresLista.iterator(), PREENCHIMENTO_INDICES);
+            }
+            if (!paresProduto.isEmpty()) {
+                paresProduto.sort((a, b) -> a.compareTo(b));
+                indiceIdProduto.carregaEmLote(paresProduto.iterator(), PREENCHIMENTO_INDICES);
+            }
+            if (!paresListaProduto.isEmpty()) {
+                paresListaProduto.sort((a, b) -> a.compareTo(b));
+                indiceListaProduto.carregaEmLote(paresListaProduto.iterator(), PREENCHIMENTO_INDICES);
+            }
+        }
     }
 
         public ArrayList<ListaProduto> readAllByLista(int idLista) throws Exception {
@@ -50,23 +102,79 @@ public class CRUDListaProduto extends Arquivo<ListaProduto> {
 
     /**
      * Cria uma nova associação entre Lista e Produto
-     * Insere o registro no arquivo e atualiza ambas as árvores B+
+     * Insere o registro no arquivo e atualiza as árvores B+
      * 
      * @param lp O objeto ListaProduto a ser criado
      * @return O ID gerado para a associação
-     * @throws Exception se ocorrer erro durante a criação
+     * @throws Exception se o produto já estiver na lista ou se ocorrer erro
+     *                   durante a criação
      */
     @Override
     public int create(ListaProduto lp) throws Exception {
-        // Cria o registro no arquivo
-        int id = super.create(lp);
-        lp.setID(id);
+        // O registro e as árvores são alterados em uma única transação: uma falha no
+        // meio da operação não deixa índices apontando para registros inexistentes
+        return log.executa(() -> {
+            // Garante que o par (lista, produto) seja único
+            if (readIdAssociacao(lp.getIdLista(), lp.getIdProduto()) != -1)
+                throw new Exception("Produto já está na lista");
+
+            // Cria o registro no arquivo
+            int id = super.create(lp);
+            lp.setID(id);
+
+            // Insere nas árvores B+
+            indiceIdLista.create(new ParIdListaProduto(lp.getIdLista(), id));
+            indiceIdProduto.create(new ParIdProdutoListaProduto(lp.getIdProduto(), id));
+            indiceListaProduto.create(new ParListaProdutoId(lp.getIdLista(), lp.getIdProduto(), id));
+
+            return id;
+        });
+    }
+
+    /**
+     * Cria várias associações em uma única transação (por exemplo, os produtos
+     * de uma lista modelo). Os pares das árvores são incluídos em ordem de
+     * chave, para que as inclusões seguidas caiam nas mesmas páginas.
+     * 
+     * @param lps As associações a serem criadas
+     * @return Os IDs gerados, na ordem da coleção
+     * @throws Exception se algum produto já estiver na lista (nenhuma
+     *                   associação é criada) ou se ocorrer erro durante a criação
+     */
+    @Override
+    public int[] createAll(Collection<ListaProduto> lps) throws Exception {
+        return log.executa(() -> {
+            // Garante que os pares (lista, produto) sejam únicos, também entre
+            // as associações do lote
+            HashSet<Long> pares = new HashSet<>();
+            for (ListaProduto lp : lps) {
+                if (!pares.add(((long) lp.getIdLista() << 32) | (lp.getIdProduto() & 0xFFFFFFFFL))
+                        || readIdAssociacao(lp.getIdLista(), lp.getIdProduto()) != -1)
+                    throw new Exception("Produto já está na lista");
+            }
 
-        // Insere nas duas árvores B+
-        indiceIdLista.create(new ParIdListaProduto(lp.getIdLista(), id));
-        indiceIdProduto.create(new ParIdProdutoListaProduto(lp.getIdProduto(), id));
+            int[] ids = super.createAll(lps);
 
-        return id;
+            ArrayList<ParIdListaProduto> porLista = new ArrayList<>(lps.size());
+            ArrayList<ParIdProdutoListaProduto> porProduto = new ArrayList<>(lps.size());
+            ArrayList<ParListaProdutoId> porPar = new ArrayList<>(lps.size());
+            for (ListaProduto lp : lps) {
+                porLista.add(new ParIdListaProduto(lp.getIdLista(), lp.getID()));
+                porProduto.add(new ParIdProdutoListaProduto(lp.getIdProduto(), lp.getID()));
+                porPar.add(new ParListaProdutoId(lp.getIdLista(), lp.getIdProduto(), lp.getID()));
+            }
+            porLista.sort((a, b) -> a.compareTo(b));
+            porProduto.sort((a, b) -> a.compareTo(b));
+            porPar.sort((a, b) -> a.compareTo(b));
+            for (ParIdListaProduto par : porLista)
+                indiceIdLista.create(par);
+            for (ParIdProdutoListaProduto par : porProduto)
+                indiceIdProduto.create(par);
+            for (ParListaProdutoId par : porPar)
+                indiceListaProduto.create(par);
+
+            return ids;
+        });
     }
 
     /**
@@ -141,33 +249,41 @@ public ArrayList<ListaProduto> readByLista(int idLista) throws Exception {
      */
     @Override
     public boolean update(ListaProduto lp) throws Exception {
-        ListaProduto lpAntigo = super.read(lp.getID());
-        if (lpAntigo == null) {
-            return false;
-        }
+        return log.executa(() -> {
+            ListaProduto lpAntigo = super.read(lp.getID());
+            if (lpAntigo == null) {
+                return false;
+            }
 
-        // Se os ids de Lista ou Produto mudaram: reindexa
-        if (lpAntigo.getIdLista() != lp.getIdLista() ||
-                lpAntigo.getIdProduto() != lp.getIdProduto()) {
+            // Se os ids de Lista ou Produto mudaram: reindexa
+            if (lpAntigo.getIdLista() != lp.getIdLista() ||
+                    lpAntigo.getIdProduto() != lp.getIdProduto()) {
 
-            // Remove dos índices antigos
-            indiceIdLista.delete(new ParIdListaProduto(lpAntigo.getIdLista(), lp.getID()));
-            indiceIdProduto.delete(new ParIdProdutoListaProduto(lpAntigo.getIdProduto(), lp.getID()));
+                // O novo par (lista, produto) também precisa ser único
+                if (readIdAssociacao(lp.getIdLista(), lp.getIdProduto()) != -1)
+                    throw new Exception("Produto já está na lista");
 
-            // Atualiza o arquivo
-            boolean success = super.update(lp);
+                // Remove dos índices antigos
+                indiceIdLista.delete(new ParIdListaProduto(lpAntigo.getIdLista(), lp.getID()));
+                indiceIdProduto.delete(new ParIdProdutoListaProduto(lpAntigo.getIdProduto(), lp.getID()));
+                indiceListaProduto.delete(new ParListaProdutoId(lpAntigo.getIdLista(), lpAntigo.getIdProduto()));
 
-            if (success) {
-                // Insere nos novos índices
-                indiceIdLista.create(new ParIdListaProduto(lp.getIdLista(), lp.getID()));
-                indiceIdProduto.create(new ParIdProdutoListaProduto(lp.getIdProduto(), lp.getID()));
-            }
+                // Atualiza o arquivo
+                boolean success = super.update(lp);
 
-            return success;
-        } else {
-            // Apenas atualiza quantidade/observações (índices não mudam)
-            return super.update(lp);
-        }
+                if (success) {
+                    // Insere nos novos índices
+                    indiceIdLista.create(new ParIdListaProduto(lp.getIdLista(), lp.getID()));
+                    indiceIdProduto.create(new ParIdProdutoListaProduto(lp.getIdProduto(), lp.getID()));
+                    indiceListaProduto.create(new ParListaProdutoId(lp.getIdLista(), lp.getIdProduto(), lp.getID()));
+                }
+
+                return success;
+            } else {
+                // Apenas atualiza quantidade/observações (índices não mudam)
+                return super.update(lp);
+            }
+        });
     }
 
     /**
@@ -180,17 +296,20 @@ public ArrayList<ListaProduto> readByLista(int idLista) throws Exception {
      */
     @Override
     public boolean delete(int id) throws Exception {
-        ListaProduto lp = super.read(id);
-        if (lp == null) {
-            return false;
-        }
+        return log.executa(() -> {
+            ListaProduto lp = super.read(id);
+            if (lp == null) {
+                return false;
+            }
 
-        // Remove das duas árvores B+
-        indiceIdLista.delete(new ParIdListaProduto(lp.getIdLista(), id));
-        indiceIdProduto.delete(new ParIdProdutoListaProduto(lp.getIdProduto(), id));
+            // Remove das árvores B+
+            indiceIdLista.delete(new ParIdListaProduto(lp.getIdLista(), id));
+            indiceIdProduto.delete(new ParIdProdutoListaProduto(lp.getIdProduto(), id));
+            indiceListaProduto.delete(new ParListaProdutoId(lp.getIdLista(), lp.getIdProduto()));
 
-        // Remove do arquivo principal
-        return super.delete(id);
+            // Remove do arquivo principal
+            return super.delete(id);
+        });
     }
 
     /**
@@ -201,15 +320,17 @@ public ArrayList<ListaProduto> readByLista(int idLista) throws Exception {
      * @throws Exception se ocorrer erro durante a remoção
      */
     public int deletePorLista(int idLista) throws Exception {
-        ArrayList<ListaProduto> associacoes = readByLista(idLista);
-        int count = 0;
+        return log.executa(() -> {
+            ArrayList<ListaProduto> associacoes = readByLista(idLista);
+            int count = 0;
 
-        for (ListaProduto lp : associacoes) {
-            if (delete(lp.getID())) {
-                count++;
+            for (ListaProduto lp : associacoes) {
+                if (delete(lp.getID())) {
+                    count++;
+                }
             }
-        }
-        return count;
+            return count;
+        });
     }
 
     /**
@@ -220,15 +341,34 @@ public ArrayList<ListaProduto> readByLista(int idLista) throws Exception {
      * @throws Exception se ocorrer erro durante a remoção
      */
     public int deletePorProduto(int idProduto) throws Exception {
-        ArrayList<ListaProduto> associacoes = readByProduto(idProduto);
-        int count = 0;
+        return log.executa(() -> {
+            ArrayList<ListaProduto> associacoes = readByProduto(idProduto);
+            int count = 0;
 
-        for (ListaProduto lp : associacoes) {
-            if (delete(lp.getID())) {
-                count++;
+            for (ListaProduto lp : associacoes) {
+                if (delete(lp.getID())) {
+                    count++;
+                }
             }
-        }
-        return count;
+            return count;
+        });
+    }
+
+    /**
+     * Busca o id da associação entre uma lista e um produto
+     * Utiliza a árvore B+ indexada pelo par (idLista, idProduto), com uma única
+     * consulta ao índice e sem leitura do arquivo principal
+     * 
+     * @param idLista   id da lista
+     * @param idProduto id do produto
+     * @return id da associação, ou -1 se o produto não estiver na lista
+     * @throws Exception se ocorrer erro durante a busca
+     */
+    public int readIdAssociacao(int idLista, int idProduto) throws Exception {
+        ArrayList<ParListaProdutoId> pares = indiceListaProduto.read(new ParListaProdutoId(idLista, idProduto));
+        if (pares.isEmpty())
+            return -1;
+        return pares.get(0).getIdListaProduto();
     }
 
     /**
@@ -240,47 +380,52 @@ public ArrayList<ListaProduto> readByLista(int idLista) throws Exception {
      * @throws Exception se ocorrer erro durante a busca
      */
     public ListaProduto findAssociacao(int idLista, int idProduto) throws Exception {
-        ArrayList<ListaProduto> produtos = readByLista(idLista);
-
-        for (ListaProduto lp : produtos) {
-            if (lp.getIdProduto() == idProduto) {
-                return lp;
-            }
-        }
-        return null;
+        int id = readIdAssociacao(idLista, idProduto);
+        if (id == -1)
+            return null;
+        return super.read(id);
     }
 
-public ArrayList<ListaProduto> listarTodosListaProdutos(int idListaFiltro, CRUDProduto crudProduto) throws Exception {
-    ArrayList<ListaProduto> resultado = new ArrayList<>();
-    arquivo.seek(TAM_CABECALHO); // pular cabeçalho
-
-    int contador = 1;
-
-    while (arquivo.getFilePointer() < arquivo.length()) {
-        byte lapide = arquivo.readByte();
-        short tam = arquivo.readShort();
-        if (tam <= 0)
-            break; // proteção extra
-        byte[] dados = new byte[tam];
-        arquivo.read(dados);
-
-        if (lapide == ' ') {
-            ListaProduto lp = new ListaProduto();
-            lp.fromByteArray(dados);
-
-            if (lp.getIdLista() == idListaFiltro) {
-                Produto p = crudProduto.readByID(lp.getIdProduto());
-                if (p != null) {
-                    System.out.printf("(%d) %s (x%d)%n", contador, p.getNome(), lp.getQuantidade());
-                    contador++;
-                    resultado.add(lp); // adiciona à lista de retorno
-                }
+    /**
+     * Lista (e exibe) os produtos de uma lista
+     * Os ids das associações vêm da árvore B+ indexada por idLista; os registros
+     * são lidos em ordem de endereço no arquivo e os produtos são lidos de uma
+     * só vez, de modo que o custo é proporcional ao tamanho da lista
+     * 
+     * @param idListaFiltro id da lista
+     * @param crudProduto   CRUD usado para ler os produtos
+     * @return ArrayList com as associações exibidas
+     * @throws Exception se ocorrer erro durante a leitura
+     */
+    public ArrayList<ListaProduto> listarTodosListaProdutos(int idListaFiltro, CRUDProduto crudProduto) throws Exception {
+        ArrayList<ListaProduto> resultado = new ArrayList<>();
+
+        // Ids das associações da lista, obtidos no índice
+        ArrayList<Integer> ids = new ArrayList<>();
+        for (ParIdListaProduto par : indiceIdLista.read(new ParIdListaProduto(idListaFiltro)))
+            ids.add(par.getIdListaProduto());
+        ArrayList<ListaProduto> associacoes = readVarios(ids);
+
+        // Lê todos os produtos envolvidos de uma vez
+        HashSet<Integer> idsProdutos = new HashSet<>();
+        for (ListaProduto lp : associacoes)
+            idsProdutos.add(lp.getIdProduto());
+        HashMap<Integer, Produto> produtos = new HashMap<>();
+        for (Produto p : crudProduto.readVarios(idsProdutos))
+            produtos.put(p.getID(), p);
+
+        int contador = 1;
+        for (ListaProduto lp : associacoes) {
+            Produto p = produtos.get(lp.getIdProduto());
+            if (p != null) {
+                System.out.printf("(%d) %s (x%d)%n", contador, p.getNome(), lp.getQuantidade());
+                contador++;
+                resultado.add(lp); // adiciona à lista de retorno
             }
         }
-    }
 
-    return resultado;
-}
+        return resultado;
+    }
 
 
 
@@ -293,6 +438,9 @@ public ArrayList<ListaProduto> listarTodosListaProdutos(int idListaFiltro, CRUDP
      */
     @Override
     public void close() throws Exception {
+        indiceIdLista.close();
+        indiceIdProduto.close();
+        indiceListaProduto.close();
         super.close();
     }
 }
\ No newline at end of file
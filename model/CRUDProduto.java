@@ -1,10 +1,14 @@
 package model;
 
+import bib.Armazenamento;
 import bib.Arquivo;
+import bib.ArvoreBMais;
 import bib.HashExtensivel;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
 
 public class CRUDProduto extends Arquivo<Produto> {
 
@@ -12,22 +16,74 @@ public class CRUDProduto extends Arquivo<Produto> {
      * Atributos da Classe
      */
     private HashExtensivel<ParGtinId> indiceGtin;
+    private ArvoreBMais<ParNomeId> indiceNome; // Produtos ordenados por nome (listagem)
+    private Armazenamento arqQuantidade; // Total de produtos (ativos e inativos), gravado pelo log
+
+    // Ocupação das folhas quando o índice de nomes é construído por carga em
+    // lote (deixa espaço para as inclusões seguintes sem divisões imediatas)
+    private static final double PREENCHIMENTO_INDICE = 0.75;
 
     /*
      * Construtores
      */
     public CRUDProduto() throws Exception {
-        super("produtos", Produto.class.getConstructor());
+        super("produtos", Produto.class.getConstructor(), Armazenamento.Tipo.MAPEADO);
+
+        // Produtos editados e excluídos deixam espaços livres no arquivo; ele
+        // é compactado em segundo plano quando eles passam do limite
+        iniciaCompactacaoAutomatica(LIMITE_COMPACTACAO_PADRAO);
 
         File d = new File("data");
         if (!d.exists())
             d.mkdir();
 
+        // O índice de GTIN usa hash de 64 bits, em arquivos próprios. Se ele
+        // estiver vazio (base criada antes dele, ou reconstrução interrompida),
+        // é reconstruído a partir dos produtos ativos.
         indiceGtin = new HashExtensivel<>(
                 ParGtinId.class.getConstructor(),
-                4,
-                "data/produtos_gtin.diretorio.idx",
-                "data/produtos_gtin.cestos.idx");
+                "data/produtos_gtin64.diretorio.idx",
+                "data/produtos_gtin64.cestos.idx",
+                HashExtensivel.TAMANHO_CESTO_PADRAO);
+        if (indiceGtin.empty())
+            reconstroiIndiceUnico(indiceGtin, Produto::isAtivo,
+                    p -> new ParGtinId(p.getGtin(), p.getID()), ParGtinId::getGtin,
+                    "data/produtos_gtin.diretorio.idx", "data/produtos_gtin.cestos.idx");
+
+        indiceNome = new ArvoreBMais<>(
+                ParNomeId.class.getConstructor(),
+                "data/produtos_nome.btree.db",
+                ArvoreBMais.TAMANHO_BLOCO_PADRAO);
+
+        // O total de produtos é atualizado na mesma transação de cada inclusão.
+        // Só é preciso percorrer o arquivo se ele ainda não existir ou se o
+        // índice de nomes tiver de ser construído (base criada antes dele); a
+        // mesma varredura serve para os dois.
+        arqQuantidade = Armazenamento.abre("data/produtos_quantidade.db", Armazenamento.Tipo.ARQUIVO);
+        boolean contar = arqQuantidade.tamanho() < 4;
+        boolean construirIndice = indiceNome.empty();
+        if (!contar && !construirIndice)
+            return;
+        int quantidadeProdutos = 0;
+        ArrayList<ParNomeId> nomes = new ArrayList<>();
+        Iterator<Produto> it = iterador(null);
+        while (it.hasNext()) {
+            Produto p = it.next();
+            quantidadeProdutos++;
+            if (construirIndice)
+                nomes.add(new ParNomeId(p.getNome(), p.getID()));
+        }
+        if (contar) {
+            int total = quantidadeProdutos;
+            log.executa(() -> {
+                arqQuantidade.escreveInt(0, total);
+                return null;
+            });
+        }
+        if (!nomes.isEmpty()) {
+            nomes.sort((a, b) -> a.compareTo(b));
+            indiceNome.carregaEmLote(nomes.iterator(), PREENCHIMENTO_INDICE);
+        }
     }
 
     /*
@@ -35,11 +91,43 @@ public class CRUDProduto extends Arquivo<Produto> {
      */
     @Override
     public int create(Produto produto) throws Exception {
-        int id = super.create(produto);
-        produto.setID(id);
+        // O registro e os índices são alterados em uma única transação
+        return log.executa(() -> {
+            int id = super.create(produto);
+            produto.setID(id);
+
+            indiceGtin.create(new ParGtinId(produto.getGtin(), id));
+            indiceNome.create(new ParNomeId(produto.getNome(), id));
+            somaQuantidade(1);
+            return id;
+        });
+    }
 
-        indiceGtin.create(new ParGtinId(produto.getGtin(), id));
-        return id;
+    // Inclusão de vários produtos (por exemplo, de um catálogo de fornecedor)
+    // em uma única transação: se algum GTIN já existir, nenhum produto é
+    // incluído. Os pares do índice de nomes são incluídos um a um, mas em
+    // ordem, de modo que as inclusões seguidas caem nas mesmas páginas (já no
+    // cache) da árvore. A carga em lote da árvore não serve aqui: ela
+    // substitui a árvore inteira fora do log e não pode fazer parte da
+    // transação.
+    @Override
+    public int[] createAll(Collection<Produto> produtos) throws Exception {
+        return log.executa(() -> {
+            int[] ids = super.createAll(produtos);
+
+            ArrayList<ParGtinId> gtins = new ArrayList<>(produtos.size());
+            ArrayList<ParNomeId> nomes = new ArrayList<>(produtos.size());
+            for (Produto produto : produtos) {
+                gtins.add(new ParGtinId(produto.getGtin(), produto.getID()));
+                nomes.add(new ParNomeId(produto.getNome(), produto.getID()));
+            }
+            indiceGtin.createAll(gtins);
+            nomes.sort((a, b) -> a.compareTo(b));
+            for (ParNomeId par : nomes)
+                indiceNome.create(par);
+            somaQuantidade(ids.length);
+            return ids;
+        });
     }
 
     /**
@@ -53,9 +141,10 @@ public class CRUDProduto extends Arquivo<Produto> {
      * @throws Exception se ocorrer um erro durante a leitura dos ficheiros.
      */
     public Produto readByGtin(String gtin) throws Exception {
-        ParGtinId par = indiceGtin.read(gtin.hashCode());
+        // O índice compara o GTIN completo, não apenas o hash
+        ParGtinId par = indiceGtin.read(new ParGtinId(gtin, -1));
 
-        if (par != null && par.getGtin().equals(gtin)) {
+        if (par != null) {
             return super.read(par.getID());
         }
         return null;
@@ -74,39 +163,47 @@ public class CRUDProduto extends Arquivo<Produto> {
      */
     @Override
     public boolean update(Produto novoProduto) throws Exception {
-        Produto produtoAntigo = super.read(novoProduto.getID());
-        if (produtoAntigo == null) {
-            return false;
-        }
+        return log.executa(() -> {
+            Produto produtoAntigo = super.read(novoProduto.getID());
+            if (produtoAntigo == null) {
+                return false;
+            }
 
-        // Realiza a atualização no arquivo principal
-        boolean success = super.update(novoProduto);
+            // Realiza a atualização no arquivo principal
+            boolean success = super.update(novoProduto);
 
-        if (success) {
-            // Lógica para atualizar o índice secundário (GTIN)
-            String gtinAntigo = produtoAntigo.getGtin();
-            String gtinNovo = novoProduto.getGtin();
-            boolean eraAtivo = produtoAntigo.isAtivo();
-            boolean ehAtivo = novoProduto.isAtivo();
+            if (success) {
+                // Lógica para atualizar o índice secundário (GTIN)
+                String gtinAntigo = produtoAntigo.getGtin();
+                String gtinNovo = novoProduto.getGtin();
+                boolean eraAtivo = produtoAntigo.isAtivo();
+                boolean ehAtivo = novoProduto.isAtivo();
 
-            // Se o GTIN mudou, remove o antigo índice
-            if (!gtinAntigo.equals(gtinNovo)) {
-                indiceGtin.delete(gtinAntigo.hashCode());
-            }
+                // Se o GTIN mudou, remove o antigo índice
+                if (!gtinAntigo.equals(gtinNovo)) {
+                    indiceGtin.deleteExato(new ParGtinId(gtinAntigo, novoProduto.getID()));
+                }
 
-            // Se o produto se tornou ativo (reativação) ou se o GTIN mudou enquanto ativo
-            if ((!eraAtivo && ehAtivo) || (ehAtivo && !gtinAntigo.equals(gtinNovo))) {
-                indiceGtin.create(new ParGtinId(gtinNovo, novoProduto.getID()));
-            }
+                // Se o produto se tornou ativo (reativação) ou se o GTIN mudou enquanto ativo
+                if ((!eraAtivo && ehAtivo) || (ehAtivo && !gtinAntigo.equals(gtinNovo))) {
+                    indiceGtin.create(new ParGtinId(gtinNovo, novoProduto.getID()));
+                }
 
-            // Se o produto foi inativado
-            if (eraAtivo && !ehAtivo) {
-                indiceGtin.delete(gtinAntigo.hashCode());
-            }
+                // Se o produto foi inativado
+                if (eraAtivo && !ehAtivo) {
+                    indiceGtin.deleteExato(new ParGtinId(gtinAntigo, novoProduto.getID()));
+                }
 
-            return true;
-        }
-        return false;
+                // Se o nome mudou, reposiciona o produto no índice de nomes
+                if (!ParNomeId.normaliza(produtoAntigo.getNome()).equals(ParNomeId.normaliza(novoProduto.getNome()))) {
+                    indiceNome.delete(new ParNomeId(produtoAntigo.getNome(), novoProduto.getID()));
+                    indiceNome.create(new ParNomeId(novoProduto.getNome(), novoProduto.getID()));
+                }
+
+                return true;
+            }
+            return false;
+        });
     }
 
     /**
@@ -119,20 +216,58 @@ public class CRUDProduto extends Arquivo<Produto> {
      * @throws Exception se ocorrer um erro de acesso aos ficheiros.
      */
     public boolean delete(int id) throws Exception {
-        Produto produto = super.read(id);
-        if (produto == null || !produto.isAtivo()) {
-            // Não pode deletar um produto que não existe ou que já está inativo
-            return false;
-        }
+        return log.executa(() -> {
+            Produto produto = super.read(id);
+            if (produto == null || !produto.isAtivo()) {
+                // Não pode deletar um produto que não existe ou que já está inativo
+                return false;
+            }
 
-        // Remove do índice secundário antes de inativar
-        indiceGtin.delete(produto.getGtin().hashCode());
+            // Remove do índice secundário antes de inativar
+            indiceGtin.deleteExato(new ParGtinId(produto.getGtin(), id));
 
-        // Inativa o produto
-        produto.setAtivo(false);
+            // Inativa o produto
+            produto.setAtivo(false);
 
-        // Atualiza o registro no arquivo principal
-        return super.update(produto);
+            // Atualiza o registro no arquivo principal
+            return super.update(produto);
+        });
+    }
+
+    /**
+     * Lê uma página da listagem de produtos em ordem alfabética, usando o
+     * índice de nomes. A leitura começa no primeiro produto cuja chave seja
+     * maior ou igual a 'inicio' (null para a primeira página), de modo que o
+     * custo de cada página não depende do tamanho do catálogo.
+     * A chave de início da página seguinte é
+     * {@code new ParNomeId(ultimo.getNome(), ultimo.getID() + 1)}.
+     * 
+     * @param inicio     Chave a partir da qual a página começa.
+     * @param quantidade Número máximo de produtos na página.
+     * @return Os produtos da página, em ordem de nome.
+     * @throws Exception se ocorrer um erro durante a leitura dos ficheiros.
+     */
+    public ArrayList<Produto> readPaginaPorNome(ParNomeId inicio, int quantidade) throws Exception {
+        ArrayList<Produto> pagina = new ArrayList<>();
+        for (ParNomeId par : indiceNome.read(inicio, quantidade)) {
+            Produto p = super.read(par.getId());
+            if (p != null)
+                pagina.add(p);
+        }
+        return pagina;
+    }
+
+    // Chamado dentro da transação da inclusão: se ela for cancelada, o log
+    // desfaz também o total
+    private void somaQuantidade(int n) throws Exception {
+        arqQuantidade.escreveInt(0, arqQuantidade.leInt(0) + n);
+    }
+
+    /**
+     * Retorna o total de produtos cadastrados (ativos e inativos).
+     */
+    public int getQuantidadeProdutos() throws Exception {
+        return arqQuantidade.leInt(0);
     }
 
     /**
@@ -144,22 +279,9 @@ public class CRUDProduto extends Arquivo<Produto> {
      */
     public ArrayList<Produto> readAllAtivos() throws Exception {
         ArrayList<Produto> produtosAtivos = new ArrayList<>();
-        arquivo.seek(TAM_CABECALHO); // Pula o cabeçalho do arquivo
-
-        while (arquivo.getFilePointer() < arquivo.length()) {
-            byte lapide = arquivo.readByte();
-            short tam = arquivo.readShort();
-            byte[] dados = new byte[tam];
-            arquivo.read(dados);
-
-            if (lapide == ' ') {
-                Produto p = (Produto) construtor.newInstance();
-                p.fromByteArray(dados);
-                if (p.isAtivo()) {
-                    produtosAtivos.add(p);
-                }
-            }
-        }
+        Iterator<Produto> it = iterador(Produto::isAtivo);
+        while (it.hasNext())
+            produtosAtivos.add(it.next());
         return produtosAtivos;
     }
 
@@ -171,20 +293,9 @@ public class CRUDProduto extends Arquivo<Produto> {
      */
     public ArrayList<Produto> readAll() throws Exception {
         ArrayList<Produto> todosProdutos = new ArrayList<>();
-        arquivo.seek(TAM_CABECALHO); // Pula o cabeçalho do arquivo
-
-        while (arquivo.getFilePointer() < arquivo.length()) {
-            byte lapide = arquivo.readByte();
-            short tam = arquivo.readShort();
-            byte[] dados = new byte[tam];
-            arquivo.read(dados);
-
-            if (lapide == ' ') {
-                Produto p = (Produto) construtor.newInstance();
-                p.fromByteArray(dados);
-                todosProdutos.add(p);
-            }
-        }
+        Iterator<Produto> it = iterador(null);
+        while (it.hasNext())
+            todosProdutos.add(it.next());
         return todosProdutos;
     }
 
@@ -198,5 +309,8 @@ public class CRUDProduto extends Arquivo<Produto> {
     @Override
     public void close() throws Exception {
         super.close();
+        indiceGtin.close();
+        indiceNome.close();
+        arqQuantidade.close();
     }
 }
\ No newline at end of file
@@ -3,6 +3,8 @@ package model;
 import bib.Arquivo;
 import bib.HashExtensivel;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
 
 /**
  * A classe CRUDUsuario estende a classe genérica Arquivo e gere todas as
@@ -27,11 +29,18 @@ public class CRUDUsuario extends Arquivo<Usuario> {
         if (!d.exists())
             d.mkdir();
 
+        // O índice de e-mail usa hash de 64 bits, em arquivos próprios. Se ele
+        // estiver vazio (base criada antes dele, ou reconstrução interrompida),
+        // é reconstruído a partir dos utilizadores.
         indiceEmail = new HashExtensivel<>(
                 ParEmailId.class.getConstructor(),
-                4,
-                "data/usuarios_email.diretorio.idx",
-                "data/usuarios_email.cestos.idx");
+                "data/usuarios_email64.diretorio.idx",
+                "data/usuarios_email64.cestos.idx",
+                HashExtensivel.TAMANHO_CESTO_PADRAO);
+        if (indiceEmail.empty())
+            reconstroiIndiceUnico(indiceEmail, null,
+                    u -> new ParEmailId(u.getEmail(), u.getID()), ParEmailId::getEmail,
+                    "data/usuarios_email.diretorio.idx", "data/usuarios_email.cestos.idx");
     }
 
     // ------------------------------------------ Métodos Públicos (CRUD)
@@ -49,11 +58,29 @@ public class CRUDUsuario extends Arquivo<Usuario> {
      */
     @Override
     public int create(Usuario usuario) throws Exception {
-        int id = super.create(usuario);
-        usuario.setID(id);
+        // O registro e o índice de e-mail são alterados em uma única transação
+        return log.executa(() -> {
+            int id = super.create(usuario);
+            usuario.setID(id);
+
+            indiceEmail.create(new ParEmailId(usuario.getEmail(), id));
+            return id;
+        });
+    }
 
-        indiceEmail.create(new ParEmailId(usuario.getEmail(), id));
-        return id;
+    // Inclusão de vários utilizadores em uma única transação: se algum
+    // e-mail já existir, nenhum é incluído
+    @Override
+    public int[] createAll(Collection<Usuario> usuarios) throws Exception {
+        return log.executa(() -> {
+            int[] ids = super.createAll(usuarios);
+
+            ArrayList<ParEmailId> emails = new ArrayList<>(usuarios.size());
+            for (Usuario usuario : usuarios)
+                emails.add(new ParEmailId(usuario.getEmail(), usuario.getID()));
+            indiceEmail.createAll(emails);
+            return ids;
+        });
     }
 
     /**
@@ -67,9 +94,10 @@ public class CRUDUsuario extends Arquivo<Usuario> {
      * @throws Exception se ocorrer um erro durante a leitura dos ficheiros.
      */
     public Usuario readByEmail(String email) throws Exception {
-        ParEmailId par = indiceEmail.read(email.hashCode());
+        // O índice compara o e-mail completo, não apenas o hash
+        ParEmailId par = indiceEmail.read(new ParEmailId(email, -1));
 
-        if (par != null && par.getEmail().equals(email)) {
+        if (par != null) {
             return super.read(par.getId());
         }
         return null;
@@ -90,19 +118,21 @@ public class CRUDUsuario extends Arquivo<Usuario> {
      */
     @Override
     public boolean update(Usuario novoUsuario) throws Exception {
-        Usuario usuarioAntigo = super.read(novoUsuario.getID());
-        if (usuarioAntigo == null) {
-            return false;
-        }
+        return log.executa(() -> {
+            Usuario usuarioAntigo = super.read(novoUsuario.getID());
+            if (usuarioAntigo == null) {
+                return false;
+            }
 
-        if (super.update(novoUsuario)) {
-            if (!usuarioAntigo.getEmail().equals(novoUsuario.getEmail())) {
-                indiceEmail.delete(usuarioAntigo.getEmail().hashCode());
-                indiceEmail.create(new ParEmailId(novoUsuario.getEmail(), novoUsuario.getID()));
+            if (super.update(novoUsuario)) {
+                if (!usuarioAntigo.getEmail().equals(novoUsuario.getEmail())) {
+                    indiceEmail.deleteExato(new ParEmailId(usuarioAntigo.getEmail(), novoUsuario.getID()));
+                    indiceEmail.create(new ParEmailId(novoUsuario.getEmail(), novoUsuario.getID()));
+                }
+                return true;
             }
-            return true;
-        }
-        return false;
+            return false;
+        });
     }
 
     /**
@@ -113,14 +143,16 @@ public class CRUDUsuario extends Arquivo<Usuario> {
      */
     @Override
     public boolean delete(int id) throws Exception {
-        Usuario u = super.read(id);
-        if (u != null) {
-            if (super.delete(id)) {
-                indiceEmail.delete(u.getEmail().hashCode());
-                return true;
+        return log.executa(() -> {
+            Usuario u = super.read(id);
+            if (u != null) {
+                if (super.delete(id)) {
+                    indiceEmail.deleteExato(new ParEmailId(u.getEmail(), id));
+                    return true;
+                }
             }
-        }
-        return false;
+            return false;
+        });
     }
 
     /**
@@ -133,5 +165,6 @@ public class CRUDUsuario extends Arquivo<Usuario> {
     @Override
     public void close() throws Exception {
         super.close();
+        indiceEmail.close();
     }
 }
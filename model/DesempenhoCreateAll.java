@@ -0,0 +1,106 @@
+/*
+DESEMPENHO DA INCLUSÃO DE PRODUTOS EM LOTE
+
+Compara a inclusão de produtos um a um (CRUDProduto.create, uma
+transação por produto) com a inclusão em lote (CRUDProduto.createAll,
+uma única transação):
+
+  java model.DesempenhoCreateAll [quantidade1 quantidade2 ...]
+
+- As quantidades padrão são 1.000 e 5.000 produtos.
+- Cada medição é feita em um processo separado, executado em um
+  diretório temporário vazio: a base (dados/ e data/) e o log de
+  transações são sempre novos, e a base da aplicação não é tocada.
+- O tempo medido é o das inclusões (sem a abertura da base), com
+  GTINs distintos e nomes em ordem aleatória, como em um catálogo.
+
+Uma única medição pode ser feita diretamente, em um diretório vazio:
+
+  java model.DesempenhoCreateAll laco|lote quantidade
+*/
+
+package model;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+public class DesempenhoCreateAll {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && (args[0].equals("laco") || args[0].equals("lote"))) {
+            System.out.println(mede(args[0].equals("lote"), Integer.parseInt(args[1])));
+            return;
+        }
+
+        int[] quantidades = { 1000, 5000 };
+        if (args.length > 0) {
+            quantidades = new int[args.length];
+            for (int i = 0; i < args.length; i++)
+                quantidades[i] = Integer.parseInt(args[i]);
+        }
+
+        System.out.println(String.format("%10s %16s %16s", "produtos", "create (ms)", "createAll (ms)"));
+        for (int n : quantidades) {
+            long laco = emProcessoSeparado("laco", n);
+            long lote = emProcessoSeparado("lote", n);
+            System.out.println(String.format("%10d %16d %16d", n, laco, lote));
+        }
+    }
+
+    // Inclui n produtos na base do diretório atual, que deve estar vazio, e
+    // devolve o tempo das inclusões em milissegundos
+    private static long mede(boolean emLote, int n) throws Exception {
+        if (new File("dados").exists() || new File("data").exists())
+            throw new Exception("a medição deve ser feita em um diretório vazio");
+
+        ArrayList<Produto> produtos = new ArrayList<>(n);
+        Random r = new Random(1);
+        for (int i = 0; i < n; i++)
+            produtos.add(new Produto(-1, String.format("789%010d", i),
+                    String.format("Produto %08d", r.nextInt(100000000)), "Descrição do produto " + i, true));
+
+        CRUDProduto crud = new CRUDProduto();
+        try {
+            long t0 = System.nanoTime();
+            if (emLote)
+                crud.createAll(produtos);
+            else
+                for (Produto p : produtos)
+                    crud.create(p);
+            return (System.nanoTime() - t0) / 1_000_000;
+        } finally {
+            crud.close();
+        }
+    }
+
+    // Executa uma medição em outro processo, em um diretório temporário
+    private static long emProcessoSeparado(String modo, int n) throws Exception {
+        Path dir = Files.createTempDirectory("createall");
+        try {
+            // O classpath pode ser relativo ao diretório atual
+            ArrayList<String> classpath = new ArrayList<>();
+            for (String c : System.getProperty("java.class.path").split(File.pathSeparator))
+                classpath.add(new File(c).getAbsolutePath());
+            String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+            Process p = new ProcessBuilder(java, "-cp", String.join(File.pathSeparator, classpath),
+                    DesempenhoCreateAll.class.getName(), modo, Integer.toString(n))
+                    .directory(dir.toFile())
+                    .redirectErrorStream(true)
+                    .start();
+            List<String> saida = new String(p.getInputStream().readAllBytes()).lines().toList();
+            if (p.waitFor() != 0 || saida.isEmpty())
+                throw new Exception("falha na medição (" + modo + ", " + n + "): " + String.join("\n", saida));
+            return Long.parseLong(saida.get(saida.size() - 1).trim());
+        } finally {
+            try (Stream<Path> caminhos = Files.walk(dir)) {
+                caminhos.sorted(Comparator.reverseOrder()).forEach(c -> c.toFile().delete());
+            }
+        }
+    }
+}
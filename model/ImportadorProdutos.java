@@ -0,0 +1,242 @@
+package model;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A classe 'ImportadorProdutos' carrega um catálogo de produtos a partir de um
+ * arquivo CSV, com uma linha por produto no formato
+ *
+ * <pre>
+ * gtin;nome;descricao
+ * </pre>
+ *
+ * O separador pode ser ';' ou ',' e os campos podem vir entre aspas. Uma
+ * primeira linha de cabeçalho é ignorada.
+ *
+ * O arquivo é lido em blocos de linhas. Enquanto um bloco é gravado, o
+ * seguinte já é interpretado e validado em paralelo (em todos os núcleos).
+ * Cada bloco é gravado com CRUDProduto.createAll, em uma única transação: os
+ * registros são acrescentados ao fim de produtos.db e os pares do índice de
+ * GTIN são incluídos agrupados por cesto.
+ */
+public class ImportadorProdutos {
+
+    // Linhas interpretadas e gravadas de cada vez
+    public static final int TAMANHO_BLOCO = 10000;
+
+    private final CRUDProduto crudProduto;
+
+    public ImportadorProdutos(CRUDProduto crudProduto) {
+        this.crudProduto = crudProduto;
+    }
+
+    /**
+     * Totais de uma importação.
+     */
+    public static class Resultado {
+        public int linhas; // Linhas de dados lidas
+        public int importados;
+        public int formatoInvalido; // Linha sem GTIN e nome
+        public int gtinInvalido; // GTIN que não é um GTIN-13 válido
+        public int repetidosNoArquivo; // GTIN repetido em uma linha anterior
+        public int jaCadastrados; // GTIN já existente na base
+        public long milissegundos;
+
+        public int rejeitados() {
+            return formatoInvalido + gtinInvalido + repetidosNoArquivo + jaCadastrados;
+        }
+
+        public double linhasPorSegundo() {
+            return milissegundos == 0 ? linhas : linhas * 1000.0 / milissegundos;
+        }
+    }
+
+    // Linha interpretada: um produto ou o motivo da rejeição
+    private static final int OK = 0, FORMATO = 1, GTIN = 2;
+
+    private static class Linha {
+        final Produto produto;
+        final int situacao;
+
+        Linha(Produto produto, int situacao) {
+            this.produto = produto;
+            this.situacao = situacao;
+        }
+    }
+
+    /**
+     * Importa o catálogo do arquivo indicado.
+     *
+     * @param caminho Caminho do arquivo CSV.
+     * @return Os totais da importação.
+     * @throws Exception se ocorrer um erro de leitura ou de gravação.
+     */
+    public Resultado importa(String caminho) throws Exception {
+        Resultado r = new Resultado();
+        long inicio = System.nanoTime();
+
+        // GTINs já importados: cada GTIN só é gravado na primeira ocorrência
+        HashSet<String> vistos = new HashSet<>();
+
+        try (BufferedReader in = Files.newBufferedReader(Path.of(caminho), StandardCharsets.UTF_8)) {
+            List<String> bloco = leBloco(in, true);
+            CompletableFuture<List<Linha>> proximo = interpretaEmParalelo(bloco);
+            while (!bloco.isEmpty()) {
+                List<Linha> linhas = proximo.join();
+                r.linhas += bloco.size();
+
+                // Interpreta o bloco seguinte enquanto este é gravado
+                bloco = leBloco(in, false);
+                proximo = interpretaEmParalelo(bloco);
+
+                grava(linhas, vistos, r);
+            }
+        }
+
+        r.milissegundos = (System.nanoTime() - inicio) / 1_000_000;
+        return r;
+    }
+
+    // Lê até TAMANHO_BLOCO linhas não vazias. Na primeira leitura, descarta a
+    // linha de cabeçalho, se houver.
+    private List<String> leBloco(BufferedReader in, boolean primeiro) throws IOException {
+        ArrayList<String> bloco = new ArrayList<>(TAMANHO_BLOCO);
+        String linha;
+        while (bloco.size() < TAMANHO_BLOCO && (linha = in.readLine()) != null) {
+            if (linha.isBlank())
+                continue;
+            if (primeiro) {
+                primeiro = false;
+                if (linha.startsWith("\uFEFF"))
+                    linha = linha.substring(1);
+                if (ehCabecalho(linha))
+                    continue;
+            }
+            bloco.add(linha);
+        }
+        return bloco;
+    }
+
+    private static boolean ehCabecalho(String linha) {
+        List<String> campos = separaCampos(linha);
+        return !campos.isEmpty() && campos.get(0).equalsIgnoreCase("gtin");
+    }
+
+    private static CompletableFuture<List<Linha>> interpretaEmParalelo(List<String> bloco) {
+        return CompletableFuture.supplyAsync(
+                () -> bloco.parallelStream().map(ImportadorProdutos::interpreta).toList());
+    }
+
+    private static Linha interpreta(String linha) {
+        List<String> campos = separaCampos(linha);
+        if (campos.size() < 2 || campos.get(1).isEmpty())
+            return new Linha(null, FORMATO);
+        String gtin = campos.get(0);
+        if (!gtin13Valido(gtin))
+            return new Linha(null, GTIN);
+        String descricao = campos.size() > 2 ? campos.get(2) : "";
+        return new Linha(new Produto(-1, gtin, campos.get(1), descricao, true), OK);
+    }
+
+    // Separa os campos de uma linha. Aceita ';' ou ',' como separador (o
+    // primeiro que aparecer fora de aspas) e campos entre aspas, com "" para
+    // representar uma aspa.
+    private static List<String> separaCampos(String linha) {
+        ArrayList<String> campos = new ArrayList<>(3);
+        StringBuilder campo = new StringBuilder();
+        char separador = 0;
+        boolean entreAspas = false;
+        for (int i = 0; i < linha.length(); i++) {
+            char c = linha.charAt(i);
+            if (entreAspas) {
+                if (c == '"' && i + 1 < linha.length() && linha.charAt(i + 1) == '"') {
+                    campo.append('"');
+                    i++;
+                } else if (c == '"') {
+                    entreAspas = false;
+                } else {
+                    campo.append(c);
+                }
+            } else if (c == '"') {
+                entreAspas = true;
+            } else if (c == separador || (separador == 0 && (c == ';' || c == ','))) {
+                separador = c;
+                campos.add(campo.toString().trim());
+                campo.setLength(0);
+            } else {
+                campo.append(c);
+            }
+        }
+        campos.add(campo.toString().trim());
+        return campos;
+    }
+
+    /**
+     * Verifica se o texto é um GTIN-13: treze dígitos, sendo o último o dígito
+     * verificador (pesos 1 e 3 alternados, da esquerda para a direita).
+     */
+    public static boolean gtin13Valido(String gtin) {
+        if (gtin.length() != 13)
+            return false;
+        int soma = 0;
+        for (int i = 0; i < 12; i++) {
+            char c = gtin.charAt(i);
+            if (c < '0' || c > '9')
+                return false;
+            soma += (c - '0') * (i % 2 == 0 ? 1 : 3);
+        }
+        char dv = gtin.charAt(12);
+        return dv >= '0' && dv <= '9' && (10 - soma % 10) % 10 == dv - '0';
+    }
+
+    // Grava os produtos válidos de um bloco, descartando os GTINs repetidos no
+    // arquivo e os já cadastrados
+    private void grava(List<Linha> linhas, HashSet<String> vistos, Resultado r) throws Exception {
+        ArrayList<Produto> novos = new ArrayList<>(linhas.size());
+        for (Linha l : linhas) {
+            if (l.situacao == FORMATO) {
+                r.formatoInvalido++;
+            } else if (l.situacao == GTIN) {
+                r.gtinInvalido++;
+            } else if (!vistos.add(l.produto.getGtin())) {
+                r.repetidosNoArquivo++;
+            } else if (crudProduto.readByGtin(l.produto.getGtin()) != null) {
+                r.jaCadastrados++;
+            } else {
+                novos.add(l.produto);
+            }
+        }
+        if (novos.isEmpty())
+            return;
+
+        try {
+            crudProduto.createAll(novos);
+            r.importados += novos.size();
+        } catch (Exception e) {
+            // O lote foi cancelado por inteiro. A única falha esperada é um GTIN
+            // incluído por outra operação depois da verificação acima: nesse
+            // caso, o lote é gravado de novo sem os já cadastrados. Qualquer
+            // outro erro interrompe a importação.
+            ArrayList<Produto> restantes = new ArrayList<>(novos.size());
+            for (Produto p : novos) {
+                if (crudProduto.readByGtin(p.getGtin()) != null)
+                    r.jaCadastrados++;
+                else
+                    restantes.add(p);
+            }
+            if (restantes.size() == novos.size())
+                throw e;
+            if (!restantes.isEmpty())
+                crudProduto.createAll(restantes);
+            r.importados += restantes.size();
+        }
+    }
+}
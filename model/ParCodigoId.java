@@ -18,16 +18,33 @@ public class ParCodigoId implements RegistroHashExtensivel {
     }
 
     public ParCodigoId(String codigo, int id) {
-        this.codigo = codigo;
+        this.codigo = normaliza(codigo);
         this.id = id;
     }
 
+    // O código na forma em que é gravado (10 caracteres, sem os espaços das
+    // pontas), de modo que a chave lida do índice seja igual à procurada
+    private static String normaliza(String codigo) {
+        return (codigo.length() > 10 ? codigo.substring(0, 10) : codigo).trim();
+    }
+
     public String getCodigo() { return this.codigo; }
     public int getId() { return this.id; }
 
     @Override
-    public int hashCode() {
-        return this.codigo.hashCode();
+    public long hash() {
+        return RegistroHashExtensivel.hashTexto(this.codigo);
+    }
+
+    // Mesmo hash, calculado diretamente sobre um par serializado
+    @Override
+    public long hash(byte[] ba, int inicio) {
+        return RegistroHashExtensivel.hashTexto(ba, inicio + 4, 10);
+    }
+
+    @Override
+    public boolean mesmaChave(RegistroHashExtensivel outro) {
+        return this.codigo.equals(((ParCodigoId) outro).codigo);
     }
 
     @Override
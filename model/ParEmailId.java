@@ -31,10 +31,15 @@ public class ParEmailId implements RegistroHashExtensivel {
     }
 
     @Override
-    public int hashCode() {
-        // O hashCode do objeto é o hashCode da String do e-mail.
+    public long hash() {
+        // O hash do par é o hash de 64 bits da String do e-mail.
         // É assim que a HashExtensivel vai encontrar o registro no cesto correto.
-        return this.email.hashCode();
+        return RegistroHashExtensivel.hashTexto(this.email);
+    }
+
+    @Override
+    public boolean mesmaChave(RegistroHashExtensivel outro) {
+        return this.email.equals(((ParEmailId) outro).email);
     }
 
     @Override
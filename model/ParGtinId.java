@@ -20,13 +20,30 @@ public class ParGtinId implements RegistroHashExtensivel {
     }
 
     public ParGtinId(String gtin, int id) {
-        this.gtin = gtin;
+        this.gtin = normaliza(gtin);
         this.id = id;
     }
 
+    // O GTIN na forma em que é gravado (20 caracteres, sem os espaços das
+    // pontas), de modo que a chave lida do índice seja igual à procurada
+    private static String normaliza(String gtin) {
+        return (gtin.length() > 20 ? gtin.substring(0, 20) : gtin).trim();
+    }
+
+    @Override
+    public long hash() {
+        return RegistroHashExtensivel.hashTexto(this.gtin);
+    }
+
+    // Mesmo hash, calculado diretamente sobre um par serializado
+    @Override
+    public long hash(byte[] ba, int inicio) {
+        return RegistroHashExtensivel.hashTexto(ba, inicio + 4, 20);
+    }
+
     @Override
-    public int hashCode() {
-        return this.gtin.hashCode();
+    public boolean mesmaChave(RegistroHashExtensivel outro) {
+        return this.gtin.equals(((ParGtinId) outro).gtin);
     }
 
     public void setID(int id) {
@@ -38,7 +55,7 @@ public class ParGtinId implements RegistroHashExtensivel {
     }
 
     public void setGtin(String gtin) {
-        this.gtin = gtin;
+        this.gtin = normaliza(gtin);
     }
 
     public String getGtin() {
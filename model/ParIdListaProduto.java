@@ -65,11 +65,28 @@ public class ParIdListaProduto implements RegistroArvoreBMais<ParIdListaProduto>
     public int compareTo(ParIdListaProduto outro) {
         if (this.idLista != outro.idLista) {
             return Integer.compare(this.idLista, outro.idLista);
+        } else if (this.idListaProduto == -1 || outro.idListaProduto == -1) {
+            // idListaProduto = -1 indica uma busca por todos os pares com o mesmo idLista
+            return 0;
         } else {
             return Integer.compare(this.idListaProduto, outro.idListaProduto);
         }
     }
 
+    // Mesma comparação, feita diretamente sobre um par serializado
+    @Override
+    public int compareTo(byte[] ba, int inicio) {
+        int idListaOutro = RegistroArvoreBMais.leInt(ba, inicio);
+        int idListaProdutoOutro = RegistroArvoreBMais.leInt(ba, inicio + 4);
+        if (this.idLista != idListaOutro) {
+            return Integer.compare(this.idLista, idListaOutro);
+        } else if (this.idListaProduto == -1 || idListaProdutoOutro == -1) {
+            return 0;
+        } else {
+            return Integer.compare(this.idListaProduto, idListaProdutoOutro);
+        }
+    }
+
     @Override
     public byte[] toByteArray() throws IOException {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
@@ -65,11 +65,28 @@ public class ParIdProdutoListaProduto implements RegistroArvoreBMais<ParIdProdut
     public int compareTo(ParIdProdutoListaProduto outro) {
         if (this.idProduto != outro.idProduto) {
             return Integer.compare(this.idProduto, outro.idProduto);
+        } else if (this.idListaProduto == -1 || outro.idListaProduto == -1) {
+            // idListaProduto = -1 indica uma busca por todos os pares com o mesmo idProduto
+            return 0;
         } else {
             return Integer.compare(this.idListaProduto, outro.idListaProduto);
         }
     }
 
+    // Mesma comparação, feita diretamente sobre um par serializado
+    @Override
+    public int compareTo(byte[] ba, int inicio) {
+        int idProdutoOutro = RegistroArvoreBMais.leInt(ba, inicio);
+        int idListaProdutoOutro = RegistroArvoreBMais.leInt(ba, inicio + 4);
+        if (this.idProduto != idProdutoOutro) {
+            return Integer.compare(this.idProduto, idProdutoOutro);
+        } else if (this.idListaProduto == -1 || idListaProdutoOutro == -1) {
+            return 0;
+        } else {
+            return Integer.compare(this.idListaProduto, idListaProdutoOutro);
+        }
+    }
+
     @Override
     public byte[] toByteArray() throws IOException {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
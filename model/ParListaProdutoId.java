@@ -0,0 +1,106 @@
+package model;
+
+import bib.RegistroArvoreBMais;
+import java.io.*;
+
+/**
+ * Trio (idLista, idProduto, idListaProduto) para indexação na Árvore B+
+ * A chave é o par (idLista, idProduto), que é único: um produto só pode
+ * aparecer uma vez em cada lista. O idListaProduto é apenas o valor
+ * associado e não participa da comparação.
+ */
+public class ParListaProdutoId implements RegistroArvoreBMais<ParListaProdutoId> {
+
+    private int idLista; // Chave (1ª parte)
+    private int idProduto; // Chave (2ª parte)
+    private int idListaProduto; // Valor (Id do registro)
+    private final short TAMANHO = 12; // 3 inteiros = 4 + 4 + 4 bytes
+
+    // Construtores
+    public ParListaProdutoId() { // Vazio
+        this(-1, -1, -1);
+    }
+
+    public ParListaProdutoId(int idLista, int idProduto) { // Busca
+        this(idLista, idProduto, -1);
+    }
+
+    public ParListaProdutoId(int idLista, int idProduto, int idListaProduto) { // Completo
+        this.idLista = idLista;
+        this.idProduto = idProduto;
+        this.idListaProduto = idListaProduto;
+    }
+
+    // Getters
+    public int getIdLista() {
+        return idLista;
+    }
+
+    public int getIdProduto() {
+        return idProduto;
+    }
+
+    public int getIdListaProduto() {
+        return idListaProduto;
+    }
+
+    // outros métodos (interface pro RegistroArvoreBMais)
+
+    @Override
+    public ParListaProdutoId clone() {
+        return new ParListaProdutoId(this.idLista, this.idProduto, this.idListaProduto);
+    }
+
+    @Override
+    public short size() {
+        return this.TAMANHO;
+    }
+
+    /**
+     * Compara este trio com outro
+     * Ordena por idLista e depois por idProduto
+     */
+    @Override
+    public int compareTo(ParListaProdutoId outro) {
+        if (this.idLista != outro.idLista) {
+            return Integer.compare(this.idLista, outro.idLista);
+        } else {
+            return Integer.compare(this.idProduto, outro.idProduto);
+        }
+    }
+
+    // Mesma comparação, feita diretamente sobre um trio serializado
+    @Override
+    public int compareTo(byte[] ba, int inicio) {
+        int idListaOutro = RegistroArvoreBMais.leInt(ba, inicio);
+        if (this.idLista != idListaOutro) {
+            return Integer.compare(this.idLista, idListaOutro);
+        } else {
+            return Integer.compare(this.idProduto, RegistroArvoreBMais.leInt(ba, inicio + 4));
+        }
+    }
+
+    @Override
+    public byte[] toByteArray() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeInt(this.idLista);
+        dos.writeInt(this.idProduto);
+        dos.writeInt(this.idListaProduto);
+        return baos.toByteArray();
+    }
+
+    @Override
+    public void fromByteArray(byte[] vb) throws IOException {
+        ByteArrayInputStream bais = new ByteArrayInputStream(vb);
+        DataInputStream dis = new DataInputStream(bais);
+        this.idLista = dis.readInt();
+        this.idProduto = dis.readInt();
+        this.idListaProduto = dis.readInt();
+    }
+
+    @Override
+    public String toString() {
+        return "(" + idLista + ", " + idProduto + ", " + idListaProduto + ")";
+    }
+}
@@ -0,0 +1,123 @@
+package model;
+
+import bib.RegistroArvoreBMais;
+import java.io.*;
+import java.util.Locale;
+
+/**
+ * Par (nome normalizado, idProduto) para indexação na Árvore B+
+ * Mantém os produtos ordenados por nome, sem distinção entre maiúsculas e
+ * minúsculas. Produtos com o mesmo nome são desempatados pelo id.
+ */
+public class ParNomeId implements RegistroArvoreBMais<ParNomeId> {
+
+    // Quantidade de caracteres do nome guardada no índice. Nomes mais longos
+    // são truncados (a ordem passa a considerar apenas esse prefixo e o id).
+    public static final int TAMANHO_NOME = 40;
+
+    private String nome; // Chave (nome normalizado)
+    private int id; // Valor (Id do produto)
+    private final short TAMANHO = 4 + 2 * TAMANHO_NOME; // int + 40 chars
+
+    // Construtores
+    public ParNomeId() { // Vazio
+        this("", -1);
+    }
+
+    public ParNomeId(String nome, int id) { // Completo
+        this.nome = normaliza(nome);
+        this.id = id;
+    }
+
+    /**
+     * Forma do nome usada como chave: sem espaços nas pontas, em minúsculas e
+     * limitada a TAMANHO_NOME caracteres.
+     */
+    public static String normaliza(String nome) {
+        String n = nome.trim().toLowerCase(Locale.ROOT);
+        if (n.length() > TAMANHO_NOME)
+            n = n.substring(0, TAMANHO_NOME);
+        return n.stripTrailing();
+    }
+
+    // Getters
+    public String getNome() {
+        return nome;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    @Override
+    public short size() {
+        return TAMANHO;
+    }
+
+    @Override
+    public byte[] toByteArray() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeInt(id);
+        dos.writeChars(String.format("%-" + TAMANHO_NOME + "." + TAMANHO_NOME + "s", nome));
+        return baos.toByteArray();
+    }
+
+    @Override
+    public void fromByteArray(byte[] ba) throws IOException {
+        ByteArrayInputStream bais = new ByteArrayInputStream(ba);
+        DataInputStream dis = new DataInputStream(bais);
+        this.id = dis.readInt();
+        char[] nomeChars = new char[TAMANHO_NOME];
+        for (int i = 0; i < TAMANHO_NOME; i++) {
+            nomeChars[i] = dis.readChar();
+        }
+        this.nome = new String(nomeChars).stripTrailing();
+    }
+
+    @Override
+    public ParNomeId clone() {
+        ParNomeId p = new ParNomeId();
+        p.nome = this.nome;
+        p.id = this.id;
+        return p;
+    }
+
+    // Ordena pelo nome e, em caso de empate, pelo id
+    @Override
+    public int compareTo(ParNomeId obj) {
+        int c = this.nome.compareTo(obj.nome);
+        if (c != 0)
+            return c;
+        return Integer.compare(this.id, obj.id);
+    }
+
+    // Mesma comparação, feita diretamente sobre um par serializado: o nome
+    // gravado é lido caractere a caractere, ignorando os espaços de
+    // preenchimento, como em fromByteArray
+    @Override
+    public int compareTo(byte[] ba, int inicio) {
+        int posNome = inicio + 4;
+        int tamanho = TAMANHO_NOME;
+        while (tamanho > 0 && Character.isWhitespace(leChar(ba, posNome + 2 * (tamanho - 1))))
+            tamanho--;
+        int limite = Math.min(nome.length(), tamanho);
+        for (int k = 0; k < limite; k++) {
+            char c = leChar(ba, posNome + 2 * k);
+            if (nome.charAt(k) != c)
+                return nome.charAt(k) - c;
+        }
+        if (nome.length() != tamanho)
+            return nome.length() - tamanho;
+        return Integer.compare(this.id, RegistroArvoreBMais.leInt(ba, inicio));
+    }
+
+    private static char leChar(byte[] ba, int pos) {
+        return (char) (((ba[pos] & 0xFF) << 8) | (ba[pos + 1] & 0xFF));
+    }
+
+    @Override
+    public String toString() {
+        return "(" + nome + ";" + id + ")";
+    }
+}
@@ -75,6 +75,16 @@ public class ParUsuarioLista implements RegistroArvoreBMais<ParUsuarioLista> {
         return 0; // As chaves primária e secundária são idênticas.
     }
 
+    // Mesma comparação, feita diretamente sobre um par serializado
+    @Override
+    public int compareTo(byte[] ba, int inicio) {
+        int idUsuarioOutro = RegistroArvoreBMais.leInt(ba, inicio);
+        int idListaOutro = RegistroArvoreBMais.leInt(ba, inicio + 4);
+        if (this.idUsuario != idUsuarioOutro) return Integer.compare(this.idUsuario, idUsuarioOutro);
+        if (this.idLista == -1 || idListaOutro == -1) return 0;
+        return Integer.compare(this.idLista, idListaOutro);
+    }
+
     @Override
     public String toString() {
         return "(" + this.idUsuario + ";" + this.idLista + ")";
@@ -30,6 +30,7 @@ public class VisaoProduto {
         System.out.println("\n(1) Buscar produtos por GTIN");
         System.out.println("(2) Listar todos os produtos");
         System.out.println("(3) Cadastrar um novo produto");
+        System.out.println("(4) Importar catálogo de produtos (CSV)");
         System.out.println("\n(R) Retornar ao menu anterior");
         System.out.print("\nOpção: ");
         return teclado.nextLine().toLowerCase();
@@ -92,6 +93,18 @@ public class VisaoProduto {
         return new Produto(-1, gtin, nome, descricao, true);
     }
 
+    /**
+     * Pede ao utilizador o caminho do arquivo CSV a ser importado.
+     * 
+     * @return O caminho inserido pelo utilizador.
+     */
+    public String lerArquivoImportacao() {
+        System.out.println("\n--- Importação de Catálogo ---");
+        System.out.println("Formato: uma linha por produto, com gtin;nome;descricao");
+        System.out.print("Caminho do arquivo CSV: ");
+        return teclado.nextLine().trim();
+    }
+
     /**
      * Pede ao utilizador que digite um GTIN para busca.
      * 